@@ -0,0 +1,419 @@
+package com.macrokeyseditor;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import org.eclipse.jdt.annotation.NonNull;
+
+import com.macrokeys.KeyShape;
+import com.macrokeys.LimitedKeySequence;
+import com.macrokeys.MacroKey;
+import com.macrokeys.MacroKeyType;
+import com.macrokeys.rendering.RectF;
+import com.macrokeyseditor.fur.PropertyAccessor;
+
+/**
+ * Binary encoding of the edits of a {@link MacroScreenEditor}, kept in the
+ * history of an {@link com.macrokeyseditor.fur.ActionJournal}.
+ * <p>
+ * The keys are identified by their position in the screen, so an encoding is
+ * valid only in the state of the screen of the edit. The keys added or
+ * removed are written with the value of each property; the enums by name.
+ * </p>
+ */
+final class ActionCodec {
+
+	/** Types of the encoded edits */
+	private static final byte INSERT = 1;
+	private static final byte REMOVE = 2;
+	private static final byte SWAP = 3;
+	private static final byte MODIFY = 4;
+	private static final byte BATCH = 5;
+
+	/** Types of the encoded values of the properties of the keys */
+	private static final byte VALUE_NULL = 0;
+	private static final byte VALUE_STRING = 1;
+	private static final byte VALUE_INT = 2;
+	private static final byte VALUE_AREA = 3;
+	private static final byte VALUE_SHAPE = 4;
+	private static final byte VALUE_TYPE = 5;
+	private static final byte VALUE_KEY_SEQUENCE = 6;
+
+
+	private ActionCodec() { }
+
+
+
+	/**
+	 * Builds the edits read by {@link ActionCodec#decode(List, Decoder)};
+	 * the positions and the values are not checked against the screen
+	 * @param <A> Type of the edits built
+	 */
+	interface Decoder<A> {
+
+		/**
+		 * @param indices Position of each key inserted, increasing
+		 * @param keys Copy of each key inserted
+		 */
+		A insert(@NonNull int[] indices, @NonNull List<MacroKey> keys);
+
+		/**
+		 * @param indices Position of each key removed, increasing
+		 * @param keys Copy of each key removed
+		 */
+		A remove(@NonNull int[] indices, @NonNull List<MacroKey> keys);
+
+		A swap(int i, int j) throws IOException;
+
+		/**
+		 * @param p Property edited
+		 * @param indices Position of each key edited
+		 * @param oldValues Value of the property of each key before the edit
+		 * @param newValues Value of the property of each key after the edit
+		 */
+		A modify(@NonNull PropertyAccessor p, @NonNull int[] indices,
+				@NonNull List<Object> oldValues, @NonNull List<Object> newValues);
+
+		/**
+		 * @param payloads Encoding of each edit of the batch, in order
+		 */
+		A batch(@NonNull List<byte[]> payloads);
+	}
+
+
+
+	/**
+	 * @param indices Position of each key inserted, increasing
+	 * @param keys Each key inserted
+	 * @return Encoded insert
+	 * @throws IOException If a value of a key cannot be encoded
+	 */
+	static @NonNull byte[] encodeInsert(@NonNull int[] indices,
+			@NonNull List<MacroKey> keys) throws IOException {
+		return encodeKeys(INSERT, indices, keys);
+	}
+
+
+	/**
+	 * @param indices Position of each key removed, increasing
+	 * @param keys Each key removed
+	 * @return Encoded remove
+	 * @throws IOException If a value of a key cannot be encoded
+	 */
+	static @NonNull byte[] encodeRemove(@NonNull int[] indices,
+			@NonNull List<MacroKey> keys) throws IOException {
+		return encodeKeys(REMOVE, indices, keys);
+	}
+
+
+	private static @NonNull byte[] encodeKeys(byte type, @NonNull int[] indices,
+			@NonNull List<MacroKey> keys) throws IOException {
+		ByteArrayOutputStream b = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(b);
+		out.writeByte(type);
+		out.writeInt(indices.length);
+		for(int i = 0; i < indices.length; i++) {
+			out.writeInt(indices[i]);
+			writeKey(out, keys.get(i));
+		}
+		return b.toByteArray();
+	}
+
+
+	/**
+	 * @param i Position of a key swapped
+	 * @param j Position of the other key swapped
+	 * @return Encoded swap
+	 */
+	static @NonNull byte[] encodeSwap(int i, int j) {
+		ByteArrayOutputStream b = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(b);
+		try {
+			out.writeByte(SWAP);
+			out.writeInt(i);
+			out.writeInt(j);
+		} catch (IOException e) {
+			// Not thrown in memory
+			throw new AssertionError(e);
+		}
+		return b.toByteArray();
+	}
+
+
+	/**
+	 * @param property Name of the property edited
+	 * @param indices Position of each key edited
+	 * @param oldValues Value of the property of each key before the edit
+	 * @param newValues Value of the property of each key after the edit
+	 * @return Encoded edit
+	 * @throws IOException If a value cannot be encoded
+	 */
+	static @NonNull byte[] encodeModify(@NonNull String property,
+			@NonNull int[] indices, @NonNull List<Object> oldValues,
+			@NonNull List<Object> newValues) throws IOException {
+		ByteArrayOutputStream b = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(b);
+		out.writeByte(MODIFY);
+		out.writeUTF(property);
+		out.writeInt(indices.length);
+		for(int i = 0; i < indices.length; i++) {
+			out.writeInt(indices[i]);
+			writeValue(out, oldValues.get(i));
+			writeValue(out, newValues.get(i));
+		}
+		return b.toByteArray();
+	}
+
+
+	/**
+	 * @param payloads Encoding of each edit of the batch, in order; not empty
+	 * @return Encoded batch
+	 */
+	static @NonNull byte[] encodeBatch(@NonNull List<byte[]> payloads) {
+		ByteArrayOutputStream b = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(b);
+		try {
+			out.writeByte(BATCH);
+			out.writeInt(payloads.size());
+			for(byte[] p : payloads) {
+				out.writeInt(p.length);
+				out.write(p);
+			}
+		} catch (IOException e) {
+			// Not thrown in memory
+			throw new AssertionError(e);
+		}
+		return b.toByteArray();
+	}
+
+
+
+	/**
+	 * Decodes an edit
+	 * @param payloads Encoded edit followed by the encoded edits merged in it
+	 * @param d Builder of the edit decoded
+	 * @return Edit built by {@code d}
+	 * @throws IOException If the encoding is not valid
+	 * @throws IllegalArgumentException If a property or an enum is unknown
+	 * @throws ClassCastException If a value is not of the type of its property
+	 */
+	static <A> A decode(@NonNull List<byte[]> payloads, @NonNull Decoder<A> d)
+			throws IOException {
+		Objects.requireNonNull(payloads);
+		Objects.requireNonNull(d);
+		if(payloads.isEmpty() || payloads.get(0).length == 0) {
+			throw new IOException("Action not restorable");
+		}
+
+		DataInputStream in = new DataInputStream(
+				new ByteArrayInputStream(payloads.get(0)));
+		byte type = in.readByte();
+		switch(type) {
+		case INSERT:
+		case REMOVE: {
+			int n = DataFormat.length(in, in.readInt());
+			int[] indices = new int[n];
+			List<MacroKey> keys = new ArrayList<>(n);
+			for(int c = 0; c < n; c++) {
+				indices[c] = in.readInt();
+				keys.add(readKey(in));
+			}
+			return type == INSERT ? d.insert(indices, keys) :
+				d.remove(indices, keys);
+		}
+
+		case SWAP:
+			return d.swap(in.readInt(), in.readInt());
+
+		case MODIFY: {
+			PropertyAccessor p = PropertyAccessor.of(MacroKey.class, in.readUTF());
+			int n = DataFormat.length(in, in.readInt());
+			int[] indices = new int[n];
+			List<Object> oldValues = new ArrayList<>(n);
+			List<Object> newValues = new ArrayList<>(n);
+			for(int c = 0; c < n; c++) {
+				indices[c] = in.readInt();
+				oldValues.add(readValue(in));
+				newValues.add(readValue(in));
+			}
+
+			// The merged edits change only the new values
+			Map<Integer, Object> merged = new HashMap<>();
+			for(byte[] b : payloads.subList(1, payloads.size())) {
+				readMergedValues(b, merged);
+			}
+			for(int c = 0; c < n; c++) {
+				if(merged.containsKey(indices[c])) {
+					newValues.set(c, merged.get(indices[c]));
+				}
+			}
+			return d.modify(p, indices, oldValues, newValues);
+		}
+
+		case BATCH: {
+			int n = DataFormat.length(in, in.readInt());
+			List<byte[]> l = new ArrayList<>(n);
+			for(int c = 0; c < n; c++) {
+				byte[] p = new byte[DataFormat.length(in, in.readInt())];
+				in.readFully(p);
+				l.add(p);
+			}
+			return d.batch(l);
+		}
+
+		default:
+			throw new IOException("Unknown action " + type);
+		}
+	}
+
+
+	/**
+	 * Reads the new values of an encoded edit merged in another
+	 * @param payload Encoded edit
+	 * @param values Where to put the new value of each position
+	 * @throws IOException If the encoding is not valid
+	 */
+	private static void readMergedValues(@NonNull byte[] payload,
+			@NonNull Map<Integer, Object> values) throws IOException {
+		DataInputStream in = new DataInputStream(
+				new ByteArrayInputStream(payload));
+		if(in.readByte() != MODIFY) {
+			throw new IOException("Merge of a not modify action");
+		}
+		in.readUTF();
+		int n = in.readInt();
+		for(int c = 0; c < n; c++) {
+			int index = in.readInt();
+			readValue(in);
+			values.put(index, readValue(in));
+		}
+	}
+
+
+
+	/**
+	 * Writes the value of each property of
+	 * {@link MacroScreenEditor#KEY_PROPERTIES} of a key
+	 * @param out Where to write
+	 * @param k Key to write
+	 * @throws IOException If a value cannot be encoded
+	 */
+	private static void writeKey(@NonNull DataOutputStream out,
+			@NonNull MacroKey k) throws IOException {
+		for(PropertyAccessor p : MacroScreenEditor.KEY_PROPERTIES) {
+			writeValue(out, p.get(k));
+		}
+	}
+
+
+	/**
+	 * @param in Where to read
+	 * @return Key written by {@link #writeKey(DataOutputStream, MacroKey)}
+	 * @throws IOException If the encoding is not valid
+	 */
+	private static @NonNull MacroKey readKey(@NonNull DataInputStream in)
+			throws IOException {
+		MacroKey k = new MacroKey();
+		for(PropertyAccessor p : MacroScreenEditor.KEY_PROPERTIES) {
+			p.set(k, readValue(in));
+		}
+		return k;
+	}
+
+
+	/**
+	 * Writes the value of a property of a key
+	 * @param out Where to write
+	 * @param v Value to write
+	 * @throws IOException If the type of {@code v} is not one of the
+	 * properties of {@link MacroKey}
+	 */
+	private static void writeValue(@NonNull DataOutputStream out, Object v)
+			throws IOException {
+		if(v == null) {
+			out.writeByte(VALUE_NULL);
+		} else if(v instanceof String) {
+			out.writeByte(VALUE_STRING);
+			DataFormat.writeString(out, (String) v);
+		} else if(v instanceof Integer) {
+			out.writeByte(VALUE_INT);
+			out.writeInt((Integer) v);
+		} else if(v instanceof RectF) {
+			RectF r = (RectF) v;
+			out.writeByte(VALUE_AREA);
+			out.writeFloat(r.left);
+			out.writeFloat(r.top);
+			out.writeFloat(r.right);
+			out.writeFloat(r.bottom);
+		} else if(v instanceof KeyShape) {
+			KeyShape.Type t = ((KeyShape) v).getType();
+			out.writeByte(VALUE_SHAPE);
+			DataFormat.writeString(out, t == null ? null : t.name());
+		} else if(v instanceof MacroKeyType) {
+			out.writeByte(VALUE_TYPE);
+			DataFormat.writeString(out, ((MacroKeyType) v).name());
+		} else if(v instanceof LimitedKeySequence) {
+			Integer[] a = ((LimitedKeySequence) v).getKeys();
+			int n = a == null ? 0 : a.length;
+			out.writeByte(VALUE_KEY_SEQUENCE);
+			out.writeInt(n);
+			for(int i = 0; i < n; i++) {
+				out.writeInt(a[i]);
+			}
+		} else {
+			throw new IOException("Value not encodable: " + v.getClass().getName());
+		}
+	}
+
+
+	/**
+	 * @param in Where to read
+	 * @return Value written by {@link #writeValue(DataOutputStream, Object)}
+	 * @throws IOException If the encoding is not valid
+	 */
+	private static Object readValue(@NonNull DataInputStream in)
+			throws IOException {
+		byte type = in.readByte();
+		switch(type) {
+		case VALUE_NULL:
+			return null;
+
+		case VALUE_STRING:
+			return DataFormat.readString(in);
+
+		case VALUE_INT:
+			return in.readInt();
+
+		case VALUE_AREA:
+			return new RectF(in.readFloat(), in.readFloat(),
+					in.readFloat(), in.readFloat());
+
+		case VALUE_SHAPE: {
+			String t = DataFormat.readString(in);
+			return new KeyShape(t == null ? null : KeyShape.Type.valueOf(t));
+		}
+
+		case VALUE_TYPE:
+			return MacroKeyType.valueOf(DataFormat.readString(in));
+
+		case VALUE_KEY_SEQUENCE: {
+			Integer[] a = new Integer[DataFormat.length(in, in.readInt())];
+			for(int i = 0; i < a.length; i++) {
+				a[i] = in.readInt();
+			}
+			return new LimitedKeySequence(a);
+		}
+
+		default:
+			throw new IOException("Unknown value " + type);
+		}
+	}
+}
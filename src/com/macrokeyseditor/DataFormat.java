@@ -0,0 +1,123 @@
+package com.macrokeyseditor;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.eclipse.jdt.annotation.NonNull;
+
+/**
+ * Primitives shared by the binary formats of this package: the one of
+ * {@link MacroSetupFile} and the one of the edits, see {@link ActionCodec}.
+ * A string is written as the length of its UTF-8 bytes, followed by them;
+ * a string null as the length {@link #NULL_STRING}
+ */
+final class DataFormat {
+
+	/** Length of a string null */
+	static final int NULL_STRING = -1;
+
+
+	private DataFormat() { }
+
+
+
+	/**
+	 * @param out Where to write
+	 * @param s String to write; can be null
+	 * @throws IOException In case of an IO error
+	 */
+	static void writeString(@NonNull DataOutputStream out, String s)
+			throws IOException {
+		if(s == null) {
+			out.writeInt(NULL_STRING);
+		} else {
+			byte[] a = s.getBytes(StandardCharsets.UTF_8);
+			out.writeInt(a.length);
+			out.write(a);
+		}
+	}
+
+
+	/**
+	 * @param s String; can be null
+	 * @return Bytes written by {@link #writeString(DataOutputStream, String)}
+	 * for {@code s}, without encoding it
+	 */
+	static int length(String s) {
+		if(s == null) {
+			return Integer.BYTES;
+		}
+		int n = Integer.BYTES;
+		for(int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if(c < 0x80) {
+				n += 1;
+			} else if(c < 0x800) {
+				n += 2;
+			} else if(Character.isHighSurrogate(c) && i + 1 < s.length() &&
+					Character.isLowSurrogate(s.charAt(i + 1))) {
+				n += 4;
+				i++;
+			} else if(Character.isSurrogate(c)) {
+				// Not paired: encoded as '?'
+				n += 1;
+			} else {
+				n += 3;
+			}
+		}
+		return n;
+	}
+
+
+	/**
+	 * @param b Where to read
+	 * @return String written by {@link #writeString(DataOutputStream, String)}
+	 * @throws IOException If the length is not valid
+	 */
+	static String readString(@NonNull ByteBuffer b) throws IOException {
+		int n = b.getInt();
+		if(n == NULL_STRING) {
+			return null;
+		}
+		if(n < 0 || n > b.remaining()) {
+			throw new IOException("Invalid length " + n);
+		}
+		byte[] a = new byte[n];
+		b.get(a);
+		return new String(a, StandardCharsets.UTF_8);
+	}
+
+
+	/**
+	 * @param in Where to read, in memory
+	 * @return String written by {@link #writeString(DataOutputStream, String)}
+	 * @throws IOException If the length is not valid
+	 */
+	static String readString(@NonNull DataInputStream in) throws IOException {
+		int n = in.readInt();
+		if(n == NULL_STRING) {
+			return null;
+		}
+		byte[] a = new byte[length(in, n)];
+		in.readFully(a);
+		return new String(a, StandardCharsets.UTF_8);
+	}
+
+
+	/**
+	 * Checks a length read, before allocating it
+	 * @param in Stream of the elements, in memory
+	 * @param n Number of elements of at least one byte
+	 * @return {@code n}
+	 * @throws IOException If the elements can not be in {@code in}
+	 */
+	static int length(@NonNull DataInputStream in, int n) throws IOException {
+		if(n < 0 || n > in.available()) {
+			throw new IOException("Invalid length " + n);
+		}
+		return n;
+	}
+}
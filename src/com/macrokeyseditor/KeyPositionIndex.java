@@ -0,0 +1,129 @@
+package com.macrokeyseditor;
+
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import org.eclipse.jdt.annotation.NonNull;
+
+import com.macrokeys.MacroKey;
+import com.macrokeys.MacroScreen;
+
+/**
+ * Position of each {@link MacroKey} in the list {@link MacroScreen#getKeys()},
+ * with the keys compared by instance.
+ * <p>
+ * The changes to the list must be notified to this. The positions after a
+ * changed index are recalculated lazily, in a single pass, at the next lookup.
+ * </p>
+ */
+final class KeyPositionIndex {
+
+	/** Indexed list */
+	private final List<MacroKey> keys;
+
+	/** Position of each key; the entries from {@link #valid} may be stale */
+	private final Map<MacroKey, Integer> positions = new IdentityHashMap<>();
+
+	/** Number of keys, from the start of the list, whose position is up to date */
+	private int valid = 0;
+
+
+	/**
+	 * @param keys List to index
+	 */
+	KeyPositionIndex(@NonNull List<MacroKey> keys) {
+		Objects.requireNonNull(keys);
+		this.keys = keys;
+	}
+
+
+
+	/**
+	 * Finds the position of the given key
+	 * @param k Key to find
+	 * @return Index of {@code k} in the list; -1 if not present
+	 */
+	public int indexOf(@NonNull MacroKey k) {
+		Integer p = positions.get(k);
+		if(p != null && p < valid) {
+			if(p < keys.size() && keys.get(p) == k) {
+				return p;
+			}
+
+			// The list was changed without notification
+			positions.clear();
+			valid = 0;
+		}
+
+		update();
+
+		p = positions.get(k);
+		// An entry of a removed key can be left behind
+		return p != null && p < keys.size() && keys.get(p) == k ? p : -1;
+	}
+
+
+	/**
+	 * Updates the positions of the keys not up to date
+	 */
+	private void update() {
+		int size = keys.size();
+		for(int i = valid; i < size; i++) {
+			positions.put(keys.get(i), i);
+		}
+		valid = size;
+	}
+
+
+	/**
+	 * Must be called after the insert of a key in the list
+	 * @param index Index where the key was inserted
+	 * @param k Inserted key
+	 */
+	public void inserted(int index, @NonNull MacroKey k) {
+		if(index == valid && index == keys.size() - 1) {
+			// Append: the other keys do not move
+			positions.put(k, index);
+			valid++;
+		} else {
+			valid = Math.min(valid, index);
+		}
+	}
+
+
+	/**
+	 * Must be called after the remove of a key from the list
+	 * @param index Index where the key was
+	 * @param k Removed key
+	 */
+	public void removed(int index, @NonNull MacroKey k) {
+		positions.remove(k);
+		valid = Math.min(valid, index);
+	}
+
+
+	/**
+	 * Must be called after the swap of two keys in the list
+	 * @param i Index of the first key
+	 * @param j Index of the second key
+	 */
+	public void swapped(int i, int j) {
+		if(i < valid && j < valid) {
+			positions.put(keys.get(i), i);
+			positions.put(keys.get(j), j);
+		} else {
+			valid = Math.min(valid, Math.min(i, j));
+		}
+	}
+	
+	
+	/**
+	 * Must be called after an unknown change of the list
+	 */
+	public void reset() {
+		positions.clear();
+		valid = 0;
+	}
+}
@@ -0,0 +1,277 @@
+package com.macrokeyseditor;
+
+import java.util.AbstractSequentialList;
+import java.util.ArrayList;
+import java.util.ConcurrentModificationException;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+
+import org.eclipse.jdt.annotation.NonNull;
+
+import com.macrokeys.MacroKey;
+
+/**
+ * Set of selected {@link MacroKey} that keeps the order of selection.
+ * <p>
+ * The keys are compared by instance. Membership, insertion and removal of a
+ * key are done in constant time.
+ * </p>
+ */
+final class MacroKeySelection {
+
+	/** Node of each selected key */
+	private final Map<MacroKey, Node> nodes = new IdentityHashMap<>();
+
+	/** First selected key; null if none */
+	private Node head;
+
+	/** Last selected key; null if none */
+	private Node tail;
+
+	/** Number of structural changes; used to detect changes while iterating */
+	private int modCount = 0;
+
+	/** Read-only view of this; never null */
+	private final List<MacroKey> view = new View();
+
+
+	MacroKeySelection() {
+
+	}
+
+
+	/**
+	 * @param k Key to check
+	 * @return True if {@code k} is selected, false otherwise
+	 */
+	public boolean contains(MacroKey k) {
+		return nodes.containsKey(k);
+	}
+
+
+	/**
+	 * Adds the key at the end of the selection
+	 * @param k Key to add
+	 * @return True if the key was added, false if already present
+	 */
+	public boolean add(@NonNull MacroKey k) {
+		Objects.requireNonNull(k);
+		if(nodes.containsKey(k)) {
+			return false;
+		}
+
+		Node n = new Node(k);
+		if(tail == null) {
+			head = n;
+		} else {
+			tail.next = n;
+			n.prev = tail;
+		}
+		tail = n;
+		nodes.put(k, n);
+		modCount++;
+
+		return true;
+	}
+
+
+	/**
+	 * Remove the key from the selection
+	 * @param k Key to remove
+	 * @return True if the key was removed, false if not present
+	 */
+	public boolean remove(MacroKey k) {
+		Node n = nodes.remove(k);
+		if(n == null) {
+			return false;
+		}
+
+		if(n.prev == null) {
+			head = n.next;
+		} else {
+			n.prev.next = n.next;
+		}
+		if(n.next == null) {
+			tail = n.prev;
+		} else {
+			n.next.prev = n.prev;
+		}
+		modCount++;
+
+		return true;
+	}
+
+
+	/**
+	 * Remove all the keys
+	 */
+	public void clear() {
+		nodes.clear();
+		head = null;
+		tail = null;
+		modCount++;
+	}
+
+
+	/**
+	 * @return Number of selected keys
+	 */
+	public int size() {
+		return nodes.size();
+	}
+
+
+	/**
+	 * @return True if no key is selected
+	 */
+	public boolean isEmpty() {
+		return nodes.isEmpty();
+	}
+
+
+	/**
+	 * @return Read-only view of the selected keys, in selection order; changes
+	 * done to this are reflected in the view
+	 */
+	public @NonNull List<MacroKey> view() {
+		return view;
+	}
+
+
+	/**
+	 * @return Copy of the selected keys, in selection order
+	 */
+	public @NonNull List<MacroKey> toList() {
+		List<MacroKey> l = new ArrayList<>(nodes.size());
+		for(Node n = head; n != null; n = n.next) {
+			l.add(n.key);
+		}
+		return l;
+	}
+
+
+
+	private static final class Node {
+		final MacroKey key;
+		Node prev;
+		Node next;
+
+		Node(MacroKey key) {
+			this.key = key;
+		}
+	}
+
+
+	/** Read-only list of the selected keys */
+	private final class View extends AbstractSequentialList<MacroKey> {
+
+		@Override
+		public boolean contains(Object o) {
+			return nodes.containsKey(o);
+		}
+
+		@Override
+		public boolean isEmpty() {
+			return nodes.isEmpty();
+		}
+
+		@Override
+		public int size() {
+			return nodes.size();
+		}
+
+		@Override
+		public ListIterator<MacroKey> listIterator(int index) {
+			if(index < 0 || index > size()) {
+				throw new IndexOutOfBoundsException();
+			}
+			return new ViewIterator(index);
+		}
+	}
+
+
+	/** Read-only iterator of {@link View} */
+	private final class ViewIterator implements ListIterator<MacroKey> {
+
+		/** Node returned by the next call of {@link #next()}; null if at the end */
+		private Node next;
+		private int index;
+		private final int expectedModCount = modCount;
+
+		ViewIterator(int index) {
+			this.index = index;
+			next = head;
+			for(int i = 0; i < index; i++) {
+				next = next.next;
+			}
+		}
+
+		@Override
+		public boolean hasNext() {
+			return next != null;
+		}
+
+		@Override
+		public MacroKey next() {
+			checkModCount();
+			if(next == null) {
+				throw new NoSuchElementException();
+			}
+			MacroKey k = next.key;
+			next = next.next;
+			index++;
+			return k;
+		}
+
+		@Override
+		public boolean hasPrevious() {
+			return index > 0;
+		}
+
+		@Override
+		public MacroKey previous() {
+			checkModCount();
+			if(index == 0) {
+				throw new NoSuchElementException();
+			}
+			next = next == null ? tail : next.prev;
+			index--;
+			return next.key;
+		}
+
+		@Override
+		public int nextIndex() {
+			return index;
+		}
+
+		@Override
+		public int previousIndex() {
+			return index - 1;
+		}
+
+		private void checkModCount() {
+			if(modCount != expectedModCount) {
+				throw new ConcurrentModificationException();
+			}
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException("Read-only view");
+		}
+
+		@Override
+		public void set(MacroKey e) {
+			throw new UnsupportedOperationException("Read-only view");
+		}
+
+		@Override
+		public void add(MacroKey e) {
+			throw new UnsupportedOperationException("Read-only view");
+		}
+	}
+}
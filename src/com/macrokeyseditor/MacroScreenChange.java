@@ -0,0 +1,239 @@
+package com.macrokeyseditor;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+import org.eclipse.jdt.annotation.NonNull;
+
+import com.macrokeys.MacroKey;
+import com.macrokeys.MacroScreen;
+
+/**
+ * Changes done to a {@link MacroScreen} by an operation of
+ * {@link MacroScreenEditor} made of many edits, notified at once.
+ * <p>
+ * Contains only the net changes: a key added and edited is only added,
+ * a key added and removed is not present. The keys are compared by instance.
+ * </p>
+ */
+public final class MacroScreenChange {
+
+	private final MacroScreen screen;
+	private final List<MacroKey> added;
+	private final List<MacroKey> removed;
+	private final Map<String, List<MacroKey>> edited;
+	private final boolean orderChanged;
+	private final boolean screenEdited;
+
+	/** Keys selected after the change; null if the selection is not changed */
+	private final List<MacroKey> selection;
+
+
+	private MacroScreenChange(@NonNull Builder b) {
+		this.screen = b.screen;
+		this.added = Collections.unmodifiableList(b.added.toList());
+		this.removed = Collections.unmodifiableList(b.removed.toList());
+
+		Map<String, List<MacroKey>> m = new LinkedHashMap<>();
+		for(Map.Entry<String, MacroKeySelection> e : b.edited.entrySet()) {
+			if(!e.getValue().isEmpty()) {
+				m.put(e.getKey(),
+						Collections.unmodifiableList(e.getValue().toList()));
+			}
+		}
+		this.edited = Collections.unmodifiableMap(m);
+
+		this.orderChanged = b.orderChanged;
+		this.screenEdited = b.screenEdited;
+		this.selection = b.selection == null ? null :
+			Collections.unmodifiableList(b.selection);
+	}
+
+
+
+	/**
+	 * @return {@link MacroScreen} changed
+	 */
+	public @NonNull MacroScreen getMacroScreen() {
+		return screen;
+	}
+
+
+	/**
+	 * @return Keys added to the {@link MacroScreen}
+	 */
+	public @NonNull List<MacroKey> getAdded() {
+		return added;
+	}
+
+
+	/**
+	 * @return Keys removed from the {@link MacroScreen}
+	 */
+	public @NonNull List<MacroKey> getRemoved() {
+		return removed;
+	}
+
+
+	/**
+	 * @return Names of the edited properties of the keys; see {@link MacroScreenEditor}
+	 */
+	public @NonNull Set<String> getEditedProperties() {
+		return edited.keySet();
+	}
+
+
+	/**
+	 * @param property Name of a property of the keys; see {@link MacroScreenEditor}
+	 * @return Keys whose property was edited; empty if none
+	 */
+	public @NonNull List<MacroKey> getEdited(@NonNull String property) {
+		List<MacroKey> l = edited.get(property);
+		return l == null ? Collections.emptyList() : l;
+	}
+
+
+	/**
+	 * @return True if the rendering order of the keys is changed
+	 */
+	public boolean isOrderChanged() {
+		return orderChanged;
+	}
+
+
+	/**
+	 * @return True if a property of the {@link MacroScreen} was edited
+	 */
+	public boolean isScreenEdited() {
+		return screenEdited;
+	}
+
+
+	/**
+	 * @return True if the selection of the keys is changed
+	 */
+	public boolean isSelectionChanged() {
+		return selection != null;
+	}
+
+
+	/**
+	 * @return Keys selected after the change; null if the selection is not changed
+	 */
+	public List<MacroKey> getSelection() {
+		return selection;
+	}
+
+
+	/**
+	 * @return True if nothing is changed
+	 */
+	public boolean isEmpty() {
+		return added.isEmpty() && removed.isEmpty() && edited.isEmpty() &&
+				!orderChanged && !screenEdited && selection == null;
+	}
+
+
+
+	/**
+	 * Collects the changes of an operation
+	 */
+	static final class Builder {
+
+		private final MacroScreen screen;
+		private final MacroKeySelection added = new MacroKeySelection();
+		private final MacroKeySelection removed = new MacroKeySelection();
+		private final Map<String, MacroKeySelection> edited = new LinkedHashMap<>();
+		private boolean orderChanged = false;
+		private boolean screenEdited = false;
+		private List<MacroKey> selection;
+
+
+		/**
+		 * @param screen {@link MacroScreen} changed
+		 */
+		Builder(@NonNull MacroScreen screen) {
+			Objects.requireNonNull(screen);
+			this.screen = screen;
+		}
+
+
+		/**
+		 * @param l Keys added
+		 */
+		void added(@NonNull List<MacroKey> l) {
+			for(MacroKey k : l) {
+				if(removed.remove(k)) {
+					// Put back: may be in another position
+					orderChanged = true;
+				} else {
+					added.add(k);
+				}
+			}
+		}
+
+
+		/**
+		 * @param l Keys removed
+		 */
+		void removed(@NonNull List<MacroKey> l) {
+			for(MacroKey k : l) {
+				for(MacroKeySelection s : edited.values()) {
+					s.remove(k);
+				}
+				if(!added.remove(k)) {
+					removed.add(k);
+				}
+			}
+		}
+
+
+		/**
+		 * @param l Keys edited
+		 * @param property Name of the edited property
+		 */
+		void edited(@NonNull List<MacroKey> l, @NonNull String property) {
+			MacroKeySelection s = null;
+			for(MacroKey k : l) {
+				// The edits of the added keys are part of the add
+				if(!added.contains(k)) {
+					if(s == null) {
+						s = edited.computeIfAbsent(property,
+								p -> new MacroKeySelection());
+					}
+					s.add(k);
+				}
+			}
+		}
+
+
+		void orderChanged() {
+			orderChanged = true;
+		}
+
+
+		void screenEdited() {
+			screenEdited = true;
+		}
+
+
+		/**
+		 * @param actual Keys selected after the change
+		 */
+		void selectionChanged(@NonNull List<MacroKey> actual) {
+			selection = actual;
+		}
+
+
+		/**
+		 * @return Collected changes
+		 */
+		MacroScreenChange build() {
+			return new MacroScreenChange(this);
+		}
+	}
+}
@@ -1,11 +1,14 @@
 package com.macrokeyseditor;
 
 
-import java.lang.reflect.InvocationTargetException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.ListIterator;
+import java.util.Map;
 import java.util.Objects;
 
 import javax.swing.event.EventListenerList;
@@ -15,8 +18,13 @@ import org.eclipse.jdt.annotation.NonNull;
 import com.macrokeys.MacroKey;
 import com.macrokeys.MacroScreen;
 import com.macrokeyseditor.fur.Action;
+import com.macrokeyseditor.fur.ActionJournal;
 import com.macrokeyseditor.fur.ActionManager;
+import com.macrokeyseditor.fur.ActionManagerListener;
+import com.macrokeyseditor.fur.CompoundAction;
 import com.macrokeyseditor.fur.ModifyAction;
+import com.macrokeyseditor.fur.PropertyAccessor;
+import com.macrokeyseditor.fur.Snapshotter;
 
 
 /**
@@ -36,6 +44,12 @@ public class MacroScreenEditor {
 	 */
 	private static final int MAX_DELAY_BETWEEN_MODIFY= 200;
 	
+	/**
+	 * Memory estimated for a {@link MacroKey} retained by an action, with
+	 * its position in the action
+	 */
+	private static final long KEY_SIZE = 320;
+	
 	public static final String MACRO_SCREEN_PROPETY_COLOR = "ColorBackground";
 	public static final String MACRO_SCREEN_PROPETY_TEXT = "BackgroundText";
 	public static final String MACRO_SCREEN_PROPETY_SWIPE_TYPE = "SwipeType";
@@ -51,25 +65,152 @@ public class MacroScreenEditor {
 	public static final String MACRO_KEY_PROPETY_COLOR_FILL_PRESS = "ColorFillPress";
 	public static final String MACRO_KEY_PROPETY_KEYSEQ = "KeySeq";
 	
+	/**
+	 * Properties of the keys captured by the snapshots of the history, and
+	 * written by {@link ActionCodec}
+	 */
+	static final PropertyAccessor[] KEY_PROPERTIES = {
+			PropertyAccessor.of(MacroKey.class, MACRO_KEY_PROPETY_TEXT),
+			PropertyAccessor.of(MacroKey.class, MACRO_KEY_PROPETY_AREA),
+			PropertyAccessor.of(MacroKey.class, MACRO_KEY_PROPETY_SHAPE),
+			PropertyAccessor.of(MacroKey.class, MACRO_KEY_PROPETY_TYPE),
+			PropertyAccessor.of(MacroKey.class, MACRO_KEY_PROPETY_COLOR_EDGE),
+			PropertyAccessor.of(MacroKey.class, MACRO_KEY_PROPETY_COLOR_FILL),
+			PropertyAccessor.of(MacroKey.class, MACRO_KEY_PROPETY_COLOR_EDGE_PRESS),
+			PropertyAccessor.of(MacroKey.class, MACRO_KEY_PROPETY_COLOR_FILL_PRESS),
+			PropertyAccessor.of(MacroKey.class, MACRO_KEY_PROPETY_KEYSEQ)
+	};
+	
+	/**
+	 * Memory estimated for a key in a snapshot: the reference to the key
+	 * and to the value of each property
+	 */
+	private static final long KEY_SNAPSHOT_SIZE = 8 + 8 * KEY_PROPERTIES.length;
+	
+	/** Memory estimated for a key added or removed by an action */
+	private static final long KEY_ACTION_SIZE = KEY_SIZE + KEY_SNAPSHOT_SIZE;
+	
 	private final EventListenerList editList = new EventListenerList();
 	
 	/** Action done to the MacroScreen */
 	private final ActionManager actions;
 	
+	/** Captures the keys of {@link #macroScreen} */
+	private final KeySnapshotter snapshotter = new KeySnapshotter();
+	
 	/** MacroScreen this is working on */
 	private final MacroScreen macroScreen;
 	
+	/** Position of each key of {@link #macroScreen} */
+	private final KeyPositionIndex positions;
+	
+	/** Reads the keys not yet in {@link #macroScreen}; null if read */
+	private KeysLoader loader;
+	
 	/** Keys actually selected; never null */
-	private final List<MacroKey> selected = new ArrayList<>();
+	private final MacroKeySelection selected = new MacroKeySelection();
+	
+	/** Incremented at each change notified; see {@link #getVersion()} */
+	private long version = 0;
+	
+	/** Incremented at each change of the keys or of the screen */
+	private long editVersion = 0;
+	
+	/** Last copy of {@link #macroScreen}; null if none */
+	private MacroScreen snapshot;
+	
+	/**
+	 * Copy of each key in {@link #snapshot}, reused by the following copies;
+	 * removed when the key is edited, added or removed
+	 */
+	private final Map<MacroKey, MacroKey> keyCopies = new IdentityHashMap<>();
+	
+	/** Value of {@link #editVersion} when {@link #snapshot} was copied */
+	private long snapshotVersion;
+	
+	/** Last action encoded by {@link #encodeAction(Action)}; null if none */
+	private Action encodedAction;
+	
+	/** Encoding of {@link #encodedAction} */
+	private byte[] encoded;
+	
+	/** Number of batches open; see {@link #beginBatch()} */
+	private int batchDepth = 0;
+	
+	/** Actions done in the open batch; null if no batch is open */
+	private BatchAction batch;
+	
+	/** Changes collected in place of the events; null if the events are fired */
+	private MacroScreenChange.Builder changes;
+	
+	/** True if the selection is changed while collecting in {@link #changes} */
+	private boolean changesSelection;
 	
 	
 	/**
 	 * @param m Screen to edit
 	 */
 	public MacroScreenEditor(@NonNull MacroScreen m) {
+		this(m, null);
+	}
+	
+	
+	/**
+	 * @param m Screen to edit
+	 * @param loader Reads the keys of {@code m} not yet read, added
+	 * by {@link #load()}; null if all the keys are in {@code m}
+	 */
+	public MacroScreenEditor(@NonNull MacroScreen m, KeysLoader loader) {
 		this.macroScreen = m;
+		this.positions = new KeyPositionIndex(m.getKeys());
+		this.loader = loader;
 		
-		actions = new ActionManager();
+		actions = new ActionManager(ActionManager.DEFAULT_BUDGET, snapshotter);
+	}
+	
+	
+	/**
+	 * @return True if all the keys of the screen are read; until then the
+	 * screen can not be edited
+	 * @see #load()
+	 */
+	public boolean isLoaded() {
+		return loader == null;
+	}
+	
+	
+	/**
+	 * @return Reader of the keys not yet read; null if all the keys are read
+	 */
+	KeysLoader getLoader() {
+		return loader;
+	}
+	
+	
+	/**
+	 * Reads the keys of the screen not yet read, if any. The keys are added
+	 * after the others, notified as added but not undoable
+	 * @throws IOException In case of an IO error; the keys can be read
+	 * again with another call
+	 */
+	public void load() throws IOException {
+		if(loader == null) {
+			return;
+		}
+		
+		List<MacroKey> l = loader.load();
+		loader = null;
+		if(l.isEmpty()) {
+			return;
+		}
+		
+		List<MacroKey> keys = macroScreen.getKeys();
+		int start = keys.size();
+		keys.addAll(l);
+		for(int i = 0; i < l.size(); i++) {
+			positions.inserted(start + i, l.get(i));
+		}
+		fireAddMacroKey(l);
 	}
 	
 	
@@ -77,7 +218,21 @@ public class MacroScreenEditor {
 	 * @return {@link MacroKey} actually selected
 	 */
 	public @NonNull List<MacroKey> getMacroKeySelected() {
-		return new ArrayList<>(selected);
+		return selected.toList();
+	}
+	
+	
+	/**
+	 * Read-only view of the {@link MacroKey} actually selected, useful
+	 * to not copy the selection at each use (eg. while rendering).
+	 * <p>
+	 * The view reflects the following selection changes: must not be iterated
+	 * while the selection is changed.
+	 * </p>
+	 * @return {@link MacroKey} actually selected, in selection order
+	 */
+	public @NonNull List<MacroKey> getMacroKeySelectedView() {
+		return selected.view();
 	}
 	
 	
@@ -111,8 +266,88 @@ public class MacroScreenEditor {
 	}
 	
 	
+	/**
+	 * The version changes at each change notified to the listeners,
+	 * included the changes of the selection
+	 * @return Version of the state of the {@link MacroScreen}
+	 */
+	public long getVersion() {
+		return version;
+	}
+	
+	
+	/**
+	 * As {@link #getVersion()}, but not changed by the selection
+	 * @return Version of the content of the {@link MacroScreen}
+	 */
+	public long getEditVersion() {
+		return editVersion;
+	}
+	
+	
+	/**
+	 * Copies the {@link MacroScreen}, eg. to save it in another thread:
+	 * the copy is not changed by the following edits and must not be edited.
+	 * The copy is reused until the next edit, and the copies of the keys
+	 * not edited are shared with the previous copy: only the edited keys
+	 * are copied again. The keys not yet read are not copied, see {@link #load()}
+	 * @return Copy of the {@link MacroScreen}, with the keys in the same
+	 * order of the edited screen
+	 */
+	public @NonNull MacroScreen snapshot() {
+		if(snapshot == null || snapshotVersion != editVersion) {
+			MacroScreen c = new MacroScreen();
+			c.setOrientation(macroScreen.getOrientation());
+			c.setSwipeType(macroScreen.getSwipeType());
+			c.setBackgroundColor(macroScreen.getBackgroundColor());
+			c.setBackgroundText(macroScreen.getBackgroundText());
+			
+			List<MacroKey> keys = c.getKeys();
+			for(MacroKey k : macroScreen.getKeys()) {
+				MacroKey n = keyCopies.get(k);
+				if(n == null) {
+					// The values of the properties are shared, as in the history
+					n = new MacroKey();
+					for(PropertyAccessor p : KEY_PROPERTIES) {
+						p.set(n, p.get(k));
+					}
+					keyCopies.put(k, n);
+				}
+				keys.add(n);
+			}
+			
+			snapshot = c;
+			snapshotVersion = editVersion;
+		}
+		return snapshot;
+	}
+	
+	
+	/**
+	 * Drops the copies of keys changed, to copy them again at the next
+	 * {@link #snapshot()}
+	 * @param l Keys edited, added or removed
+	 */
+	private void forgetCopies(@NonNull List<MacroKey> l) {
+		if(keyCopies.isEmpty()) {
+			return;
+		}
+		for(MacroKey k : l) {
+			keyCopies.remove(k);
+		}
+	}
+	
+	
 	private void fireEditMacroKey(@NonNull List<MacroKey> mk,
 			@NonNull String property) {
+		version++;
+		editVersion++;
+		forgetCopies(mk);
+		if(changes != null) {
+			changes.edited(mk, property);
+			return;
+		}
+		
 		List<MacroKey> copy = new ArrayList<>(mk);
 		for(MacroScreenEditorListener l : 
 			editList.getListeners(MacroScreenEditorListener.class)) {
@@ -124,6 +359,13 @@ public class MacroScreenEditor {
 	
 	
 	private void fireEditMacroScreen() {
+		version++;
+		editVersion++;
+		if(changes != null) {
+			changes.screenEdited();
+			return;
+		}
+		
 		for(MacroScreenEditorListener l : 
 			editList.getListeners(MacroScreenEditorListener.class)) {
 			l.macroScreenEdited(macroScreen);
@@ -137,6 +379,14 @@ public class MacroScreenEditor {
 	 * @param mk Added keys; this list is cloned
 	 */
 	private void fireAddMacroKey(@NonNull List<MacroKey> mk) {
+		version++;
+		editVersion++;
+		forgetCopies(mk);
+		if(changes != null) {
+			changes.added(mk);
+			return;
+		}
+		
 		List<MacroKey> copy = new ArrayList<>(mk);
 		for(MacroScreenEditorListener l : 
 			editList.getListeners(MacroScreenEditorListener.class)) {
@@ -151,6 +401,14 @@ public class MacroScreenEditor {
 	 * @param mk Removed keys; this list is cloned
 	 */
 	private void fireRemoveAcroKey(@NonNull List<MacroKey> mk) {
+		version++;
+		editVersion++;
+		forgetCopies(mk);
+		if(changes != null) {
+			changes.removed(mk);
+			return;
+		}
+		
 		List<MacroKey> copy = new ArrayList<>(mk);
 		for(MacroScreenEditorListener l : 
 			editList.getListeners(MacroScreenEditorListener.class)) {
@@ -159,6 +417,12 @@ public class MacroScreenEditor {
 	}
 	
 	private void fireSelectionChanged() {
+		version++;
+		if(changes != null) {
+			changesSelection = true;
+			return;
+		}
+		
 		List<MacroKey> sel = getMacroKeySelected();
 		
 		for(MacroScreenEditorListener l : 
@@ -168,12 +432,167 @@ public class MacroScreenEditor {
 	}
 	
 	private void fireSwapMacroKeys(@NonNull MacroKey a, @NonNull MacroKey b) {
+		version++;
+		editVersion++;
+		if(changes != null) {
+			changes.orderChanged();
+			return;
+		}
+		
 		for(MacroScreenEditorListener l : 
 			editList.getListeners(MacroScreenEditorListener.class)) {
 			l.swapMacroKeys(a, b);
 		}
 	}
 	
+	private void fireMacroScreenChanged(@NonNull MacroScreenChange c) {
+		version++;
+		// Also the changes of a jump in the history, not fired one by one
+		if(!c.getAdded().isEmpty() || !c.getRemoved().isEmpty() ||
+				!c.getEditedProperties().isEmpty() || c.isOrderChanged() ||
+				c.isScreenEdited()) {
+			editVersion++;
+		}
+		forgetCopies(c.getAdded());
+		forgetCopies(c.getRemoved());
+		for(String p : c.getEditedProperties()) {
+			forgetCopies(c.getEdited(p));
+		}
+		for(MacroScreenEditorListener l : 
+			editList.getListeners(MacroScreenEditorListener.class)) {
+			l.macroScreenChanged(c);
+		}
+	}
+	
+	
+	/**
+	 * Starts to collect the events in a {@link MacroScreenChange}
+	 * @see #fireCollected()
+	 */
+	private void collect() {
+		assert changes == null;
+		changes = new MacroScreenChange.Builder(macroScreen);
+		changesSelection = false;
+	}
+	
+	
+	/**
+	 * Stops to collect the events and fires the collected changes, if any
+	 * @see #collect()
+	 */
+	private void fireCollected() {
+		MacroScreenChange.Builder c = changes;
+		changes = null;
+		if(changesSelection) {
+			c.selectionChanged(getMacroKeySelected());
+		}
+		
+		MacroScreenChange mc = c.build();
+		if(!mc.isEmpty()) {
+			fireMacroScreenChanged(mc);
+		}
+	}
+	
+	
+	/**
+	 * Executes an action and adds it to the history, or to the open batch
+	 * @param a Action to perform
+	 */
+	private void perform(@NonNull Action a) {
+		checkLoaded();
+		
+		// A merge changes the encoding of the last action
+		encodedAction = null;
+		encoded = null;
+		
+		if(batch != null) {
+			a.execute();
+			batch.add(a, encodeExecuted(a));
+		} else {
+			actions.add(a);
+		}
+	}
+	
+	
+	/**
+	 * Opens a batch of edits: until the matching {@link #endBatch()} the edits
+	 * are undone and redone as one, and the changes are notified at the end
+	 * with a single {@link MacroScreenEditorListener#macroScreenChanged(MacroScreenChange)}.
+	 * <p>
+	 * The batches can be nested: only the outermost is kept. Must be always
+	 * closed, with a {@code try ... finally}
+	 * </p>
+	 * @see #endBatch()
+	 */
+	public void beginBatch() {
+		if(batchDepth == 0) {
+			batch = new BatchAction();
+			collect();
+		}
+		batchDepth++;
+	}
+	
+	
+	/**
+	 * Closes a batch of edits opened by {@link #beginBatch()}
+	 * @throws IllegalStateException If no batch is open
+	 */
+	public void endBatch() {
+		if(batchDepth == 0) {
+			throw new IllegalStateException("No batch open");
+		}
+		
+		batchDepth--;
+		if(batchDepth == 0) {
+			BatchAction b = batch;
+			batch = null;
+			
+			// A single edit is kept as is: can still be merged
+			List<Action> l = b.getActions();
+			if(l.size() == 1) {
+				// The state is still the one after the edit
+				encodedAction = l.get(0);
+				encoded = b.encoded.get(0);
+				actions.add(l.get(0), false);
+			} else if(!l.isEmpty()) {
+				actions.add(b, false);
+			}
+			
+			fireCollected();
+		}
+	}
+	
+	
+	/**
+	 * @return True if a batch of edits is open
+	 * @see #beginBatch()
+	 */
+	public boolean isBatchOpen() {
+		return batchDepth > 0;
+	}
+	
+	
+	/**
+	 * @throws IllegalStateException If a batch of edits is open
+	 */
+	private void checkNoBatch() {
+		if(batchDepth > 0) {
+			throw new IllegalStateException("Batch open");
+		}
+	}
+	
+	
+	/**
+	 * @throws IllegalStateException If the keys are not read: the keys read
+	 * later would not be the ones edited
+	 * @see #load()
+	 */
+	private void checkLoaded() {
+		if(loader != null) {
+			throw new IllegalStateException("Keys not read");
+		}
+	}
+	
 	
 	/**
 	 * Index of the given element
@@ -181,14 +600,7 @@ public class MacroScreenEditor {
 	 * @return Idex of the given element; -1 if not found
 	 */
 	public int find(@NonNull MacroKey k) {
-		Iterator<MacroKey> it = getMacroScreen().getKeys().iterator();
-		MacroKey last = null;
-		int i = 0;
-		while(it.hasNext() && k != (last = it.next())) {
-			i++;
-		}
-		
-		return last == k ? i : -1;
+		return positions.indexOf(k);
 	}
 	
 	
@@ -215,31 +627,26 @@ public class MacroScreenEditor {
 		// Find the position of the keys to remove
 		int[] indices = indicesOf(l);
 		
-		// Deselect the keys to remove
-		boolean selectedFlag = false;
-		for(MacroKey m : l) {
-			if(isSelected(m)) {
-				deselect(m, false);
-				selectedFlag = true;
+		// The deselect and the remove are notified together
+		beginBatch();
+		try {
+			for(MacroKey m : l) {
+				deselect(m);
 			}
+			
+			// Compose the action for the remove action and add it to the action list
+			RemoveAction r = new RemoveAction(macroScreen);
+			for(int j = 0; j < indices.length; j++) {
+				int index = indices[j];
+				MacroKey k = l.get(j);
+				r.remove(index, k);
+			}
+			perform(r);
+			
+			fireRemoveAcroKey(l);
+		} finally {
+			endBatch();
 		}
-		
-		// Fire the event of selection change
-		if(selectedFlag) {
-			fireSelectionChanged();
-		}
-		
-		
-		// Compose the action for the remove action and add it to the action list
-		RemoveAction r = new RemoveAction(macroScreen);
-		for(int j = 0; j < indices.length; j++) {
-			int index = indices[j];
-			MacroKey k = l.get(j);
-			r.remove(index, k);
-		}
-		actions.add(r);
-		
-		fireRemoveAcroKey(l);
 	}
 	
 	/**
@@ -257,7 +664,6 @@ public class MacroScreenEditor {
 			throw new IllegalArgumentException("Empty list");
 		}
 		
-		// TODO: execute linear scan
 		int[] indices = new int[l.size()];
 		int i = 0;
 		for(MacroKey m : l) {
@@ -281,18 +687,12 @@ public class MacroScreenEditor {
 	
 	
 	/**
+	 * Checks the selection in constant time, whatever its size
 	 * @param k Key to check
 	 * @return True if the key {@code k} is selected, False otherwise
 	 */
 	public boolean isSelected(@NonNull MacroKey k) {
-		Iterator<MacroKey> it = selected.iterator();
-		while(it.hasNext()) {
-			if(k == it.next()) {
-				return true;
-			}
-		}
-		
-		return false;
+		return selected.contains(k);
 	}
 	
 	
@@ -317,15 +717,11 @@ public class MacroScreenEditor {
 	 * False otherwise
 	 */
 	private boolean deselect(@NonNull MacroKey k, boolean event) {
-		Iterator<MacroKey> it = selected.iterator();
-		while(it.hasNext()) {
-			if(k == it.next()) {
-				it.remove();
-				if(event) {
-					fireSelectionChanged();					
-				}
-				return true;
+		if(selected.remove(k)) {
+			if(event) {
+				fireSelectionChanged();
 			}
+			return true;
 		}
 		
 		return false;
@@ -392,12 +788,11 @@ public class MacroScreenEditor {
 			selected.clear();			
 		}
 		
-		boolean mod = false;
+		boolean mod = only;
 		
 		for(MacroKey m : l) {
-			// Check if the added keys are not already selected
-			if(only || (!only && isSelected(m))) {
-				selected.add(m);
+			// Adds only the keys not already selected
+			if(selected.add(m)) {
 				mod = true;
 			}
 		}
@@ -425,13 +820,13 @@ public class MacroScreenEditor {
 		int index = macroScreen.getKeys().size();
 		InsertAction ins = new InsertAction(macroScreen);
 		for(MacroKey m : l) {
-			Objects.requireNonNull(l);
+			Objects.requireNonNull(m);
 			if(find(m) != -1) {
 				throw new IllegalArgumentException("Key already present");
 			}
 			ins.add(index, m);
 		}
-		actions.add(ins);
+		perform(ins);
 
 		
 		fireAddMacroKey(l);
@@ -486,12 +881,12 @@ public class MacroScreenEditor {
 			@NonNull List<ModifyAction.Set<MacroKey>> l,
 			@NonNull String propName) {
 		try {
-			actions.add(new CustomModifyAction(propName,
+			PropertyAccessor p = PropertyAccessor.of(MacroKey.class, propName);
+			perform(new CustomModifyAction(p,
 					l,
 					MAX_DELAY_BETWEEN_MODIFY));
-		} catch (NullPointerException | NoSuchMethodException | SecurityException
-				| IllegalAccessException | IllegalArgumentException
-				| InvocationTargetException e) {
+		} catch (NullPointerException | IllegalArgumentException
+				| ClassCastException e) {
 			throw new IllegalArgumentException("Cannot modify property", e);
 		}
 		
@@ -575,18 +970,440 @@ public class MacroScreenEditor {
 		List<MacroKey> l = macroScreen.getKeys();
 		
 		if(i >= 0 && i < l.size() && j >= 0 && j < l.size()) {
-			actions.add(new SwapAction(macroScreen, i, j));
+			perform(new SwapAction(macroScreen, i, j));
 		} else {
 			throw new IndexOutOfBoundsException();
 		}
 	}
 	
 	
+	/**
+	 * @return Number of edits that can be undone
+	 */
+	public int getUndoDepth() {
+		return actions.getUndoDepth();
+	}
+	
+	
+	/**
+	 * @return Number of edits that can be redone
+	 */
+	public int getRedoDepth() {
+		return actions.getRedoDepth();
+	}
+	
+	
+	/**
+	 * @return Estimated memory used by the history of the edits, in bytes
+	 */
+	public long getHistoryMemoryUsage() {
+		return actions.getMemoryUsage();
+	}
+	
+	
+	/**
+	 * Sets the maximum memory of the history of the edits; when exceeded
+	 * the oldest edits are dropped
+	 * @param budget Maximum estimated memory in bytes
+	 * @throws IllegalArgumentException If {@code budget} <= 0
+	 */
+	public void setHistoryBudget(long budget) {
+		actions.setBudget(budget);
+	}
+	
+	
+	/**
+	 * @return First node of the history of the edits
+	 */
+	public @NonNull ActionManager.Node getHistoryRoot() {
+		return actions.getRoot();
+	}
+	
+	
+	/**
+	 * @return Node of the history of the current state
+	 */
+	public @NonNull ActionManager.Node getHistoryCurrent() {
+		return actions.getCurrent();
+	}
+	
+	
+	/**
+	 * Moves to a node of the history, undoing and redoing the edits in between.
+	 * The changes are notified with a single
+	 * {@link MacroScreenEditorListener#macroScreenChanged(MacroScreenChange)}
+	 * @param n Node of the history to reach
+	 * @throws IOException If an edit, restored from a journal, cannot be read;
+	 * the history is dropped, keeping the edits done until the failure
+	 * @throws IllegalArgumentException If {@code n} is not in the history of this
+	 * @throws IllegalStateException If a batch of edits is open or the keys
+	 * are not read
+	 * @see #getHistoryRoot()
+	 */
+	public void jumpTo(@NonNull ActionManager.Node n) throws IOException {
+		Objects.requireNonNull(n);
+		checkNoBatch();
+		checkLoaded();
+		if(n == actions.getCurrent()) {
+			return;
+		}
+		
+		KeyState before = snapshotter.capture();
+		IOException lost = null;
+		try {
+			actions.jumpTo(n);
+		} catch (UncheckedIOException e) {
+			actions.clear();
+			lost = e.getCause();
+		}
+		KeyState after = snapshotter.capture();
+		
+		MacroScreenChange.Builder c = new MacroScreenChange.Builder(macroScreen);
+		
+		// Position of each key before the jump
+		Map<MacroKey, Integer> old = new IdentityHashMap<>(before.keys.length * 2);
+		for(int i = 0; i < before.keys.length; i++) {
+			old.put(before.keys[i], i);
+		}
+		
+		int p = KEY_PROPERTIES.length;
+		int last = -1;
+		List<MacroKey> added = new ArrayList<>();
+		for(int i = 0; i < after.keys.length; i++) {
+			MacroKey k = after.keys[i];
+			Integer j = old.remove(k);
+			if(j == null) {
+				added.add(k);
+			} else {
+				// The keys still present must keep the relative order
+				if(j < last) {
+					c.orderChanged();
+				}
+				last = j;
+				
+				for(int q = 0; q < p; q++) {
+					if(!Objects.equals(before.values[j * p + q],
+							after.values[i * p + q])) {
+						c.edited(Arrays.asList(k), KEY_PROPERTIES[q].getName());
+					}
+				}
+			}
+		}
+		c.added(added);
+		
+		if(!old.isEmpty()) {
+			List<MacroKey> removed = new ArrayList<>(old.size());
+			boolean selectionChanged = false;
+			for(MacroKey k : before.keys) {
+				if(old.containsKey(k)) {
+					removed.add(k);
+					selectionChanged |= selected.remove(k);
+				}
+			}
+			c.removed(removed);
+			
+			if(selectionChanged) {
+				c.selectionChanged(getMacroKeySelected());
+			}
+		}
+		
+		fireMacroScreenChanged(c.build());
+		
+		if(lost != null) {
+			throw lost;
+		}
+	}
+	
+	
+	/**
+	 * Describes an edit of the history, for the user
+	 * @param n Node of the history
+	 * @return Description of the edit that leads to {@code n}
+	 */
+	public @NonNull String describe(@NonNull ActionManager.Node n) {
+		Action a = n.getAction();
+		if(a instanceof JournaledAction) {
+			a = ((JournaledAction) a).action;
+		}
+		
+		if(a == null) {
+			return n.getParent() == null ? "Start" : "Restored edit";
+		} else if(a instanceof InsertAction) {
+			return "Add " + ((InsertAction) a).keys.size() + " key(s)";
+		} else if(a instanceof RemoveAction) {
+			return "Remove " + ((RemoveAction) a).keys.size() + " key(s)";
+		} else if(a instanceof SwapAction) {
+			return "Move key";
+		} else if(a instanceof CustomModifyAction) {
+			return "Edit " + ((CustomModifyAction) a).getPropertyName();
+		} else if(a instanceof BatchAction) {
+			return ((BatchAction) a).getActions().size() + " edits";
+		} else {
+			return "Edit";
+		}
+	}
+	
+	
+	/**
+	 * Adds a listener for the changes of the history of the edits
+	 * @param l Listener to add
+	 */
+	public void addHistoryListener(@NonNull ActionManagerListener l) {
+		actions.addListener(l);
+	}
+	
+	
+	/**
+	 * Remove a listener for the changes of the history of the edits
+	 * @param l Listener to remove
+	 */
+	public void removeHistoryListener(@NonNull ActionManagerListener l) {
+		actions.removeListener(l);
+	}
+	
+	
+	/**
+	 * Replace the history of the edits with the one stored in the journal.
+	 * The actions are read from the journal only when undone or redone
+	 * @param journal Journal of the history
+	 * @param screen Index of this screen in the journal
+	 * @throws IndexOutOfBoundsException If the screen is not in the journal
+	 * @throws IllegalStateException If a batch of edits is open
+	 */
+	void restoreHistory(@NonNull ActionJournal journal, int screen) {
+		Objects.requireNonNull(journal);
+		checkNoBatch();
+		
+		ActionJournal.Stacks s = journal.getStacks(screen);
+		List<Action> undoable = new ArrayList<>(s.undo.size());
+		for(ActionJournal.Entry e : s.undo) {
+			undoable.add(new JournaledAction(journal, e, true));
+		}
+		List<Action> redoable = new ArrayList<>(s.redo.size());
+		for(ActionJournal.Entry e : s.redo) {
+			redoable.add(new JournaledAction(journal, e, false));
+		}
+		
+		actions.restore(undoable, redoable);
+	}
+	
+	
+	/**
+	 * Encodes an action of this editor, as passed to the listeners of the history.
+	 * The keys are identified by position: the encoding is valid only for
+	 * the current state of the {@link MacroScreen}. The encoding of the last
+	 * action is kept until the next edit, so the listeners of the same
+	 * change share it
+	 * @param a Action to encode
+	 * @return Encoded action, shared: must not be changed; empty if the
+	 * action cannot be restored
+	 * @throws IOException If a value of the action cannot be encoded
+	 * @see #decodeAction(List, boolean)
+	 */
+	byte[] encodeAction(@NonNull Action a) throws IOException {
+		Objects.requireNonNull(a);
+		
+		if(a != encodedAction) {
+			encoded = encode(a);
+			encodedAction = a;
+		}
+		return encoded;
+	}
+	
+	
+	/**
+	 * Encodes an edit of a batch just executed, in the state after it
+	 * @param a Edit executed
+	 * @return Encoded edit; empty if the edit cannot be encoded
+	 */
+	private byte[] encodeExecuted(@NonNull Action a) {
+		try {
+			return encode(a);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return new byte[0];
+		}
+	}
+	
+	
+	/**
+	 * Encodes an action, without the cache of {@link #encodeAction(Action)}
+	 * @param a Action to encode
+	 * @return Encoded action; empty if the action cannot be restored
+	 * @throws IOException If a value of the action cannot be encoded
+	 */
+	private byte[] encode(@NonNull Action a) throws IOException {
+		if(a instanceof InsertAction) {
+			InsertAction ins = (InsertAction) a;
+			ins.sort();
+			int[] indices = new int[ins.addList.size()];
+			List<MacroKey> keys = new ArrayList<>(indices.length);
+			for(int i = 0; i < indices.length; i++) {
+				InsertAction.Pair p = ins.addList.get(i);
+				indices[i] = p.index;
+				keys.add(p.value);
+			}
+			return ActionCodec.encodeInsert(indices, keys);
+		} else if(a instanceof RemoveAction) {
+			RemoveAction rem = (RemoveAction) a;
+			rem.sort();
+			int[] indices = new int[rem.removeList.size()];
+			List<MacroKey> keys = new ArrayList<>(indices.length);
+			for(int i = 0; i < indices.length; i++) {
+				RemoveAction.Pair p = rem.removeList.get(i);
+				indices[i] = p.index;
+				keys.add(p.value);
+			}
+			return ActionCodec.encodeRemove(indices, keys);
+		} else if(a instanceof SwapAction) {
+			SwapAction sw = (SwapAction) a;
+			return ActionCodec.encodeSwap(sw.i, sw.j);
+		} else if(a instanceof CustomModifyAction) {
+			CustomModifyAction mod = (CustomModifyAction) a;
+			List<MacroKey> keys = mod.getObject();
+			int[] indices = new int[keys.size()];
+			for(int i = 0; i < indices.length; i++) {
+				indices[i] = find(keys.get(i));
+			}
+			return ActionCodec.encodeModify(mod.getPropertyName(), indices,
+					mod.getOldValues(), mod.getNewValues());
+		} else if(a instanceof BatchAction) {
+			List<byte[]> l = ((BatchAction) a).encoded;
+			for(byte[] p : l) {
+				if(p.length == 0) {
+					// The batch is restored only as a whole
+					return p;
+				}
+			}
+			return ActionCodec.encodeBatch(l);
+		} else {
+			// Restored actions are never passed to the listeners
+			return new byte[0];
+		}
+	}
+	
+	
+	/**
+	 * Decodes an action encoded by {@link #encodeAction(Action)}.
+	 * Must be called with the {@link MacroScreen} in the state of the action:
+	 * after the action if {@code applied}, before the action otherwise
+	 * @param payloads Encoded action followed by the encoded actions merged in it
+	 * @param applied True if the action is executed on the {@link MacroScreen}
+	 * @return Decoded action
+	 * @throws IOException If the encoding is not valid
+	 */
+	Action decodeAction(@NonNull List<byte[]> payloads, boolean applied)
+			throws IOException {
+		List<MacroKey> keys = macroScreen.getKeys();
+		try {
+			return ActionCodec.decode(payloads, new ActionCodec.Decoder<Action>() {
+				@Override
+				public Action insert(int[] indices, List<MacroKey> l) {
+					InsertAction ins = new InsertAction(macroScreen);
+					for(int c = 0; c < indices.length; c++) {
+						// The inserted instances are still in the screen
+						ins.add(indices[c], applied ?
+								keys.get(indices[c] + c) : l.get(c));
+					}
+					return ins;
+				}
+				
+				@Override
+				public Action remove(int[] indices, List<MacroKey> l) {
+					RemoveAction rem = new RemoveAction(macroScreen);
+					for(int c = 0; c < indices.length; c++) {
+						// The instances to remove are still in the screen
+						rem.remove(indices[c], applied ?
+								l.get(c) : keys.get(indices[c]));
+					}
+					return rem;
+				}
+				
+				@Override
+				public Action swap(int i, int j) throws IOException {
+					if(i < 0 || i >= keys.size() || j < 0 || j >= keys.size()) {
+						throw new IOException("Swap out of range");
+					}
+					return new SwapAction(macroScreen, i, j);
+				}
+				
+				@Override
+				public Action modify(PropertyAccessor p, int[] indices,
+						List<Object> oldValues, List<Object> newValues) {
+					List<MacroKey> instances = new ArrayList<>(indices.length);
+					for(int index : indices) {
+						instances.add(keys.get(index));
+					}
+					return new CustomModifyAction(p, instances, oldValues,
+							newValues, MAX_DELAY_BETWEEN_MODIFY);
+				}
+				
+				@Override
+				public Action batch(List<byte[]> l) {
+					// Each edit is decoded when the screen is in its state
+					BatchAction b = new BatchAction();
+					for(byte[] p : l) {
+						b.add(new JournaledAction(Arrays.asList(p), applied), p);
+					}
+					return b;
+				}
+			});
+		} catch (IndexOutOfBoundsException | IllegalArgumentException
+				| ClassCastException e) {
+			throw new IOException("Action not valid for the screen", e);
+		}
+	}
+	
+	
+	/**
+	 * Executes or undoes an action encoded by {@link #encodeAction(Action)},
+	 * eg. to rebuild the {@link MacroScreen} after a crash. The listeners are
+	 * notified as for a redo or an undo; the history is not changed
+	 * @param payload Encoded action
+	 * @param undo True to undo the action, false to execute it
+	 * @throws IOException If the encoding is not valid for the
+	 * {@link MacroScreen}
+	 * @throws IllegalStateException If a batch of edits is open or the keys
+	 * are not read
+	 */
+	void replay(@NonNull byte[] payload, boolean undo) throws IOException {
+		Objects.requireNonNull(payload);
+		checkNoBatch();
+		checkLoaded();
+		
+		Action a = decodeAction(Arrays.asList(payload), undo);
+		try {
+			if(undo) {
+				a.undoExecute();
+				((URGuiUpdater) a).onUndo();
+			} else {
+				a.execute();
+				((URGuiUpdater) a).onRedo();
+			}
+		} catch (UncheckedIOException e) {
+			// An edit of a batch not valid for the screen
+			throw e.getCause();
+		}
+	}
+	
+	
 	/**
 	 * Re-execute the last edit that was undone
+	 * @throws IOException If the edit, restored from a journal, cannot be read;
+	 * the history is dropped
+	 * @throws IllegalStateException If a batch of edits is open or the keys
+	 * are not read
 	 */
-	public void redo() {
-		Action a = actions.redo();
+	public void redo() throws IOException {
+		checkNoBatch();
+		checkLoaded();
+		Action a;
+		try {
+			a = actions.redo();
+		} catch (UncheckedIOException e) {
+			actions.clear();
+			throw e.getCause();
+		}
 		
 		if(a != null) {
 			// All action must implement the interface GuiUpdater
@@ -599,9 +1416,21 @@ public class MacroScreenEditor {
 	
 	/**
 	 * Undo the last edit
+	 * @throws IOException If the edit, restored from a journal, cannot be read;
+	 * the history is dropped, since the older edits cannot be undone
+	 * @throws IllegalStateException If a batch of edits is open or the keys
+	 * are not read
 	 */
-	public void undo() {
-		Action a = actions.undo();
+	public void undo() throws IOException {
+		checkNoBatch();
+		checkLoaded();
+		Action a;
+		try {
+			a = actions.undo();
+		} catch (UncheckedIOException e) {
+			actions.clear();
+			throw e.getCause();
+		}
 		
 		if(a != null) {
 			// All action must implement the interface GuiUpdater
@@ -626,9 +1455,15 @@ public class MacroScreenEditor {
 		final MacroScreen ms;
 		final List<Pair> addList = new ArrayList<>();
 		
+		/** True if {@link #addList} is sorted by index */
+		boolean sorted = true;
+		
 		/** List of inserted keys */
 		final List<MacroKey> keys = new ArrayList<>();
 		
+		/** Values of the properties of {@link #keys} at the insert; null if not read */
+		Object[] values;
+		
 		
 		/**
 		 * @param ms MacroScreen subject ot the edit
@@ -654,23 +1489,36 @@ public class MacroScreenEditor {
 			p.index = index;
 			p.value = k;
 			addList.add(p);
-			
-			// Sorting based on the position in the list (increasing order)
-			// To avoid that the next elements of the removed items have a different index
-			addList.sort((a, b) -> Integer.compare(a.index, b.index));
+			sorted = false;
 			keys.add(k);
 		}
 		
 		
+		/**
+		 * Sorting based on the position in the list (increasing order)
+		 * To avoid that the next elements of the removed items have a different index
+		 */
+		private void sort() {
+			if(!sorted) {
+				addList.sort((a, b) -> Integer.compare(a.index, b.index));
+				sorted = true;
+			}
+		}
 		
 		
 		@Override
 		public void undoExecute() {
+			if(values == null) {
+				values = valuesOf(keys);
+			}
+			
+			sort();
 			List<MacroKey> l = ms.getKeys();
 			ListIterator<Pair> it = addList.listIterator(addList.size());
 			while(it.hasPrevious()) {
 				Pair p = it.previous();
-				l.remove(p.index);
+				MacroKey k = l.remove(p.index);
+				positions.removed(p.index, k);
 			}
 		}
 		
@@ -679,14 +1527,27 @@ public class MacroScreenEditor {
 			return false;
 		}
 		
+		@Override
+		public long estimateSize() {
+			return super.estimateSize() + KEY_ACTION_SIZE * keys.size();
+		}
+		
 		@Override
 		public void execute() {
+			if(values == null) {
+				values = valuesOf(keys);
+			} else {
+				restoreValues(keys, values);
+			}
+			
+			sort();
 			// Add in an increasing order => shift the indexes of 1 for each added item
 			ListIterator<Pair> it = addList.listIterator();
 			int c = 0;
 			while(it.hasNext()) {
 				Pair p = it.next();
 				ms.getKeys().add(p.index + c, p.value);
+				positions.inserted(p.index + c, p.value);
 				c++;
 			}
 		}
@@ -718,9 +1579,15 @@ public class MacroScreenEditor {
 		final MacroScreen ms;
 		final List<Pair> removeList = new ArrayList<>();
 		
+		/** True if {@link #removeList} is sorted by index */
+		boolean sorted = true;
+		
 		/** List of removed keys */
 		final List<MacroKey> keys = new ArrayList<>();
 		
+		/** Values of the properties of {@link #keys} at the remove; null if none */
+		Object[] values;
+		
 		/**
 		 * @param ms MacroScreen subject ot the edit
 		 */
@@ -741,18 +1608,33 @@ public class MacroScreenEditor {
 			p.value = k;
 			
 			removeList.add(p);
-			
-			// Sorting based on the position in the list (increasing order)
-			// To avoid that the next elements of the removed items have a different index
-			removeList.sort((a, b) -> Integer.compare(a.index, b.index));
+			sorted = false;
 			keys.add(k);
 		}
 		
 		
+		/**
+		 * Sorting based on the position in the list (increasing order)
+		 * To avoid that the next elements of the removed items have a different index
+		 */
+		private void sort() {
+			if(!sorted) {
+				removeList.sort((a, b) -> Integer.compare(a.index, b.index));
+				sorted = true;
+			}
+		}
+		
+		
 		@Override
 		public void undoExecute() {
+			if(values != null) {
+				restoreValues(keys, values);
+			}
+			
+			sort();
 			for(Pair p : removeList) {
 				ms.getKeys().add(p.index, p.value);
+				positions.inserted(p.index, p.value);
 			}
 		}
 		
@@ -761,13 +1643,24 @@ public class MacroScreenEditor {
 			return false;
 		}
 		
+		@Override
+		public long estimateSize() {
+			return super.estimateSize() + KEY_ACTION_SIZE * keys.size();
+		}
+		
 		@Override
 		public void execute() {
+			if(values == null) {
+				values = valuesOf(keys);
+			}
+			
+			sort();
 			// Delete the items in inverse order to not alterate the index
 			ListIterator<Pair> it = removeList.listIterator(removeList.size());
 			while(it.hasPrevious()) {
 				Pair p = it.previous();
 				ms.getKeys().remove(p.index);
+				positions.removed(p.index, p.value);
 			}
 		}
 		
@@ -828,11 +1721,9 @@ public class MacroScreenEditor {
 			MacroKey mi = l.get(i);
 			MacroKey mj = l.get(j);
 			
-			// The order of the following instruction is very important
-			l.remove(i);
-			l.add(i, mj);
-			l.remove(j);
-			l.add(j, mi);
+			l.set(i, mj);
+			l.set(j, mi);
+			positions.swapped(i, j);
 		}
 		
 		@Override
@@ -842,16 +1733,24 @@ public class MacroScreenEditor {
 
 		@Override
 		public void onUndo() {
-			MacroKey x = macroScreen.getKeys().get(i);
-			MacroKey y = macroScreen.getKeys().get(j);
-			fireSwapMacroKeys(x, y);
+			fireSwap();
 		}
 
 		@Override
 		public void onRedo() {
-			MacroKey x = macroScreen.getKeys().get(i);
-			MacroKey y = macroScreen.getKeys().get(j);
-			fireSwapMacroKeys(x, y);
+			fireSwap();
+		}
+		
+		/** Fires the event of the swap */
+		private void fireSwap() {
+			if(changes != null) {
+				// In a batch the indexes can refer to a previous state
+				changes.orderChanged();
+			} else {
+				MacroKey x = macroScreen.getKeys().get(i);
+				MacroKey y = macroScreen.getKeys().get(j);
+				fireSwapMacroKeys(x, y);
+			}
 		}
 		
 	}
@@ -863,11 +1762,15 @@ public class MacroScreenEditor {
 	private class CustomModifyAction
 		extends ModifyAction<MacroKey> implements URGuiUpdater {
 
-		public CustomModifyAction(String name, List<Set<MacroKey>> sets,
-				int maxElapsedTime)
-				throws NoSuchMethodException, IllegalAccessException,
-				InvocationTargetException {
-			super(name, sets, maxElapsedTime);
+		public CustomModifyAction(PropertyAccessor property,
+				List<Set<MacroKey>> sets, int maxElapsedTime) {
+			super(property, sets, maxElapsedTime);
+		}
+		
+		public CustomModifyAction(PropertyAccessor property,
+				List<MacroKey> instances, List<?> oldValues,
+				List<?> newValues, int maxElapsedTime) {
+			super(property, instances, oldValues, newValues, maxElapsedTime);
 		}
 
 		@Override
@@ -882,6 +1785,262 @@ public class MacroScreenEditor {
 	}
 	
 	
+	/**
+	 * Edits done in a batch; see {@link MacroScreenEditor#beginBatch()}
+	 */
+	private class BatchAction extends CompoundAction implements URGuiUpdater {
+		
+		/**
+		 * Encoding of each edit, in the state after it, recorded while the
+		 * batch executes: the batch is encoded without changing the
+		 * {@link MacroScreen}. Empty where the edit cannot be encoded
+		 */
+		final List<byte[]> encoded = new ArrayList<>();
+		
+		/**
+		 * Adds an edit, after the ones already added
+		 * @param a Edit to add
+		 * @param e Encoding of {@code a} in the state after it
+		 */
+		void add(@NonNull Action a, @NonNull byte[] e) {
+			add(a);
+			encoded.add(e);
+		}
+		
+		@Override
+		public void onUndo() {
+			collect();
+			List<Action> l = getActions();
+			ListIterator<Action> it = l.listIterator(l.size());
+			while(it.hasPrevious()) {
+				((URGuiUpdater) it.previous()).onUndo();
+			}
+			fireCollected();
+		}
+		
+		@Override
+		public void onRedo() {
+			collect();
+			for(Action a : getActions()) {
+				((URGuiUpdater) a).onRedo();
+			}
+			fireCollected();
+		}
+	}
+	
+	
+	/**
+	 * Reads the properties of the keys added or removed by an action.
+	 * While out of the screen the keys can be edited in another branch of the
+	 * history: the values are restored when the keys come back
+	 * @param keys Keys to read
+	 * @return Value of each property of {@link #KEY_PROPERTIES} for each key
+	 * @see #restoreValues(List, Object[])
+	 */
+	private static Object[] valuesOf(@NonNull List<MacroKey> keys) {
+		int p = KEY_PROPERTIES.length;
+		Object[] values = new Object[keys.size() * p];
+		for(int i = 0; i < keys.size(); i++) {
+			for(int q = 0; q < p; q++) {
+				values[i * p + q] = KEY_PROPERTIES[q].get(keys.get(i));
+			}
+		}
+		return values;
+	}
+	
+	
+	/**
+	 * Sets the properties of the keys read by {@link #valuesOf(List)}
+	 * @param keys Keys to set
+	 * @param values Values read from {@code keys}
+	 */
+	private static void restoreValues(@NonNull List<MacroKey> keys,
+			@NonNull Object[] values) {
+		int p = KEY_PROPERTIES.length;
+		for(int i = 0; i < keys.size(); i++) {
+			for(int q = 0; q < p; q++) {
+				KEY_PROPERTIES[q].set(keys.get(i), values[i * p + q]);
+			}
+		}
+	}
+	
+	
+	/** Keys of the {@link MacroScreen} with the values of their properties */
+	private static final class KeyState {
+		
+		final MacroKey[] keys;
+		
+		/** Value of each property of {@link #KEY_PROPERTIES} for each key */
+		final Object[] values;
+		
+		KeyState(@NonNull MacroKey[] keys) {
+			this.keys = keys;
+			this.values = new Object[keys.length * KEY_PROPERTIES.length];
+		}
+	}
+	
+	
+	/** Captures the keys of the edited {@link MacroScreen} for the history */
+	private class KeySnapshotter implements Snapshotter<KeyState> {
+		
+		@Override
+		public KeyState capture() {
+			KeyState s = new KeyState(
+					macroScreen.getKeys().toArray(new MacroKey[0]));
+			int i = 0;
+			for(MacroKey k : s.keys) {
+				for(PropertyAccessor p : KEY_PROPERTIES) {
+					s.values[i++] = p.get(k);
+				}
+			}
+			return s;
+		}
+		
+		@Override
+		public void restore(KeyState s) {
+			List<MacroKey> l = macroScreen.getKeys();
+			l.clear();
+			l.addAll(Arrays.asList(s.keys));
+			positions.reset();
+			
+			int i = 0;
+			for(MacroKey k : s.keys) {
+				for(PropertyAccessor p : KEY_PROPERTIES) {
+					Object v = s.values[i++];
+					if(p.get(k) != v) {
+						p.set(k, v);
+					}
+				}
+			}
+		}
+		
+		@Override
+		public long estimateSize(KeyState s) {
+			return 32 + KEY_SNAPSHOT_SIZE * s.keys.length;
+		}
+	}
+	
+	
+	/**
+	 * Action restored from an {@link ActionJournal}, or from an encoded batch;
+	 * decoded at the first undo or redo, when the {@link MacroScreen} is in
+	 * the state of the action
+	 */
+	private class JournaledAction extends Action implements URGuiUpdater {
+		
+		/** Journal of the action; null if {@link #payloads} is given */
+		final ActionJournal journal;
+		final ActionJournal.Entry entry;
+		
+		/** Encoded action; null if read from {@link #journal} */
+		final List<byte[]> payloads;
+		
+		/** True if the action is executed on the {@link MacroScreen} */
+		boolean applied;
+		
+		/** Decoded action; null until decoded */
+		Action action;
+		
+		/**
+		 * @param journal Journal containing the action
+		 * @param entry Entry of the action in the journal
+		 * @param applied True if the action is executed on the {@link MacroScreen}
+		 */
+		public JournaledAction(@NonNull ActionJournal journal,
+				@NonNull ActionJournal.Entry entry, boolean applied) {
+			this.journal = journal;
+			this.entry = entry;
+			this.payloads = null;
+			this.applied = applied;
+		}
+		
+		/**
+		 * @param payloads Encoded action; see {@link #decodeAction(List, boolean)}
+		 * @param applied True if the action is executed on the {@link MacroScreen}
+		 */
+		public JournaledAction(@NonNull List<byte[]> payloads, boolean applied) {
+			this.journal = null;
+			this.entry = null;
+			this.payloads = payloads;
+			this.applied = applied;
+		}
+		
+		
+		/**
+		 * @return Decoded action
+		 * @throws UncheckedIOException If the action cannot be read or decoded
+		 */
+		private Action decoded() {
+			if(action == null) {
+				try {
+					action = decodeAction(payloads != null ?
+							payloads : journal.read(entry), applied);
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			}
+			return action;
+		}
+		
+		@Override
+		public void undoExecute() {
+			decoded().undoExecute();
+			applied = false;
+		}
+		
+		@Override
+		public void execute() {
+			decoded().execute();
+			applied = true;
+		}
+		
+		@Override
+		public boolean tryToMerge(Action followingAction) {
+			return false;
+		}
+		
+		@Override
+		public long estimateSize() {
+			if(action != null) {
+				return action.estimateSize();
+			} else if(payloads != null) {
+				long s = super.estimateSize();
+				for(byte[] p : payloads) {
+					s += p.length;
+				}
+				return s;
+			} else {
+				return super.estimateSize() + entry.getPayloadSize();
+			}
+		}
+		
+		@Override
+		public void onUndo() {
+			((URGuiUpdater) decoded()).onUndo();
+		}
+		
+		@Override
+		public void onRedo() {
+			((URGuiUpdater) decoded()).onRedo();
+		}
+	}
+	
+	
+	/**
+	 * Reads the keys of a {@link MacroScreen} on request, to not read
+	 * the screens never opened
+	 */
+	public static interface KeysLoader {
+		
+		/**
+		 * @return Keys of the screen, in the order of rendering
+		 * @throws IOException In case of an IO error
+		 */
+		@NonNull List<MacroKey> load() throws IOException;
+	}
+	
+	
+	
 	/**
 	 * Interface that joined with Action permits of update the UI in the case of
 	 * undo and redo actions done by the user
@@ -59,4 +59,11 @@ public interface MacroScreenEditorListener extends EventListener {
 	 * @param b Other key swapped
 	 */
 	void swapMacroKeys(@NonNull MacroKey a, @NonNull MacroKey b);
+	
+	/**
+	 * Called when many changes are done at once (eg. by a jump in the history);
+	 * the changes are not notified by the other methods
+	 * @param c Changes done
+	 */
+	void macroScreenChanged(@NonNull MacroScreenChange c);
 }
@@ -1,6 +1,8 @@
 package com.macrokeyseditor;
 
 
+import java.io.Closeable;
+import java.io.IOException;
 import java.util.*;
 
 import javax.swing.event.EventListenerList;
@@ -62,6 +64,16 @@ public class MacroSetupEditor {
 	
 	
 	
+	private void fireMacroScreensReplaced(@NonNull List<MacroScreenEditor> old,
+			@NonNull List<MacroScreenEditor> actual) {
+		for(MacroSetupEditorListener l :
+			listeners.getListeners(MacroSetupEditorListener.class)) {
+			l.macroScreensReplaced(old, actual);
+		}
+	}
+	
+	
+	
 	private void fireSelectionChange(MacroScreenEditor old,
 			MacroScreenEditor s) {
 		for(MacroSetupEditorListener l :
@@ -74,7 +86,20 @@ public class MacroSetupEditor {
 	
 	
 	public void addMacroScreen(@NonNull MacroScreen m) {
-		MacroScreenEditor e = new MacroScreenEditor(m);
+		addMacroScreen(m, null);
+	}
+	
+	
+	/**
+	 * Adds a {@link MacroScreen} whose keys are read when it is selected
+	 * or by {@link #load()}
+	 * @param m Screen to add
+	 * @param loader Reads the keys of {@code m}; null if already read
+	 * @see MacroScreenEditor#load()
+	 */
+	public void addMacroScreen(@NonNull MacroScreen m,
+			MacroScreenEditor.KeysLoader loader) {
+		MacroScreenEditor e = new MacroScreenEditor(m, loader);
 		screens.add(e);
 		
 		fireActionListener(MacroSetupEditorListener.Action.Add, e);
@@ -82,11 +107,148 @@ public class MacroSetupEditor {
 	
 	
 	/**
-	 * Select a {@link MacroScreen}
+	 * Replaces all the {@link MacroScreen}s with one notification, eg. when
+	 * a {@link MacroSetup} is loaded. The selection is cleared
+	 * @param m Screens to add
+	 * @param loaders Reader of the keys of each element of {@code m}, null
+	 * if already read; null if all the keys are read
+	 * @throws IllegalArgumentException If {@code loaders} has not the size
+	 * of {@code m}
+	 * @see #addMacroScreen(MacroScreen, MacroScreenEditor.KeysLoader)
+	 */
+	public void replaceMacroScreens(@NonNull List<MacroScreen> m,
+			List<MacroScreenEditor.KeysLoader> loaders) {
+		Objects.requireNonNull(m);
+		if(loaders != null && loaders.size() != m.size()) {
+			throw new IllegalArgumentException("One loader for each screen");
+		}
+		
+		if(selected != null) {
+			MacroScreenEditor old = selected;
+			selected = null;
+			fireSelectionChange(old, null);
+		}
+		
+		List<MacroScreenEditor> old = new ArrayList<>(screens);
+		screens.clear();
+		for(int i = 0; i < m.size(); i++) {
+			screens.add(new MacroScreenEditor(Objects.requireNonNull(m.get(i)),
+					loaders == null ? null : loaders.get(i)));
+		}
+		
+		fireMacroScreensReplaced(old, new ArrayList<>(screens));
+	}
+	
+	
+	/**
+	 * Reads the keys of all the screens not yet read, eg. before a save
+	 * @throws IOException In case of an IO error
+	 */
+	public void load() throws IOException {
+		for(MacroScreenEditor e : screens) {
+			e.load();
+		}
+	}
+	
+	
+	/**
+	 * Copies the {@link MacroSetup}, eg. to save it in another thread; the
+	 * keys not yet read are read
+	 * @return Copy of the {@link MacroSetup}
+	 * @throws IOException In case of an IO error reading the keys
+	 * @see MacroScreenEditor#snapshot()
+	 */
+	public @NonNull Snapshot snapshot() throws IOException {
+		load();
+		return lazySnapshot();
+	}
+	
+	
+	/**
+	 * Copies the {@link MacroSetup} as {@link #snapshot()}, without reading
+	 * the keys not yet read: the copies of those screens have no keys
+	 * @return Copy of the {@link MacroSetup}
+	 * @see Snapshot#getLoaders()
+	 */
+	public @NonNull Snapshot lazySnapshot() {
+		List<MacroScreen> copies = new ArrayList<>(screens.size());
+		List<MacroScreenEditor.KeysLoader> loaders = new ArrayList<>(screens.size());
+		long[] versions = new long[screens.size()];
+		for(int i = 0; i < screens.size(); i++) {
+			MacroScreenEditor e = screens.get(i);
+			copies.add(e.snapshot());
+			loaders.add(e.getLoader());
+			versions[i] = e.getEditVersion();
+		}
+		return new Snapshot(new MacroSetup(copies), loaders,
+				new ArrayList<>(screens), versions);
+	}
+	
+	
+	/**
+	 * Copies the {@link MacroSetup} as {@link #lazySnapshot()}, to read the
+	 * keys not yet read in another thread, eg. to save it: their files stay
+	 * open until the copy is closed. The keys whose loader is not of a file
+	 * are read now
+	 * @return Copy of the {@link MacroSetup}
+	 * @throws IOException In case of an IO error reading the keys
+	 * @see RetainedSnapshot#read()
+	 */
+	public @NonNull RetainedSnapshot retainedSnapshot() throws IOException {
+		for(MacroScreenEditor e : screens) {
+			if(!(e.getLoader() instanceof MacroSetupFile.FileKeysLoader)) {
+				e.load();
+			}
+		}
+		Snapshot s = lazySnapshot();
+		List<MacroSetupFile.KeysReader> readers = new ArrayList<>(s.loaders.size());
+		try {
+			for(MacroScreenEditor.KeysLoader l : s.loaders) {
+				readers.add(l == null ? null :
+					((MacroSetupFile.FileKeysLoader) l).retain());
+			}
+		} catch (IOException e) {
+			release(readers);
+			throw e;
+		}
+		return new RetainedSnapshot(s, readers);
+	}
+	
+	
+	private static void release(@NonNull List<MacroSetupFile.KeysReader> readers) {
+		for(MacroSetupFile.KeysReader r : readers) {
+			if(r != null) {
+				r.close();
+			}
+		}
+	}
+	
+	
+	/**
+	 * @param s Copy of this
+	 * @return True if no screen is edited, added or removed since the copy
+	 */
+	public boolean isCurrent(@NonNull Snapshot s) {
+		if(!s.editors.equals(screens)) {
+			return false;
+		}
+		for(int i = 0; i < screens.size(); i++) {
+			if(screens.get(i).getEditVersion() != s.versions[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	
+	/**
+	 * Select a {@link MacroScreen}, reading its keys if not yet read
 	 * @param m {@link MacroScreen} to select; null if none
 	 * @throws IllegalArgumentException If the {@code m} is not present
+	 * @throws IOException If the keys of {@code m} can not be read; the
+	 * selection is not changed
 	 */
-	public void selectMacroScreen(MacroScreen m) {
+	public void selectMacroScreen(MacroScreen m) throws IOException {
 		// Check that the selection is different from the actual
 		if((selected == null && m == null) ||
 				(selected != null && selected.getMacroScreen() == m)) {
@@ -101,6 +263,10 @@ public class MacroSetupEditor {
 				throw new IllegalArgumentException("MacroScreen not found");
 			}
 			
+			// The keys of a screen are read when it is shown the first time;
+			// if not read, read again at the next selection or at the save
+			e.load();
+			
 			MacroScreenEditor old = selected;
 			selected = e;
 			fireSelectionChange(old, selected);
@@ -124,6 +290,16 @@ public class MacroSetupEditor {
 	
 	
 	
+	/**
+	 * @return Editors of the contained {@link MacroScreen}, in the same
+	 * order of {@link #getMacroScreens()}
+	 */
+	public @NonNull List<MacroScreenEditor> getMacroScreenEditors() {
+		return new ArrayList<>(screens);
+	}
+	
+	
+	
 	/**
 	 * @return Number of contained {@link MacroScreen}; always >= 0
 	 */
@@ -148,7 +324,7 @@ public class MacroSetupEditor {
 				// Check if the MacroScreen to remove is selected
 				if(e == selected) {
 					// Select another MacroScreen
-					selected = screens.isEmpty() ? null : screens.get(0);
+					selected = firstReadable();
 					fireSelectionChange(e, selected);
 				}
 				
@@ -159,6 +335,23 @@ public class MacroSetupEditor {
 	}
 	
 	
+	/**
+	 * @return First screen whose keys are read or can be read now; null
+	 * if none
+	 */
+	private MacroScreenEditor firstReadable() {
+		for(MacroScreenEditor e : screens) {
+			try {
+				e.load();
+				return e;
+			} catch (IOException ex) {
+				// Not selected: the error is shown when the user selects it
+			}
+		}
+		return null;
+	}
+	
+	
 	/**
 	 * Find the {@link MacroScreenEditor} containing the given {@link MacroScreen}
 	 * @param m {link MacroScreen} to find
@@ -185,4 +378,112 @@ public class MacroSetupEditor {
 		
 		return false;
 	}
+	
+	
+	/** Copy of the {@link MacroSetup} edited; see {@link #snapshot()} */
+	public static final class Snapshot {
+		
+		private final MacroSetup setup;
+		
+		/** Reader of the keys not read of each screen; null if read */
+		private final List<MacroScreenEditor.KeysLoader> loaders;
+		
+		/** Editors of the screens copied, in order */
+		private final List<MacroScreenEditor> editors;
+		
+		/** Edit version of each element of {@link #editors} when copied */
+		private final long[] versions;
+		
+		
+		private Snapshot(@NonNull MacroSetup setup,
+				@NonNull List<MacroScreenEditor.KeysLoader> loaders,
+				@NonNull List<MacroScreenEditor> editors,
+				@NonNull long[] versions) {
+			this.setup = setup;
+			this.loaders = loaders;
+			this.editors = editors;
+			this.versions = versions;
+		}
+		
+		
+		/**
+		 * @return Copy of the {@link MacroSetup}; must not be edited
+		 */
+		public @NonNull MacroSetup getMacroSetup() {
+			return setup;
+		}
+		
+		
+		/**
+		 * @return Reader of the keys not read of each screen of
+		 * {@link #getMacroSetup()}, in order; null where the keys are in
+		 * the copy. Only the copies of {@link MacroSetupEditor#lazySnapshot()}
+		 * have keys not read
+		 */
+		public @NonNull List<MacroScreenEditor.KeysLoader> getLoaders() {
+			return Collections.unmodifiableList(loaders);
+		}
+	}
+	
+	
+	/**
+	 * {@link Snapshot} whose keys not read are read by {@link #read()},
+	 * from any thread; see {@link MacroSetupEditor#retainedSnapshot()}
+	 */
+	public static final class RetainedSnapshot implements Closeable {
+		
+		private final Snapshot snapshot;
+		
+		/** Reader of the keys not read of each screen; null if read */
+		private final List<MacroSetupFile.KeysReader> readers;
+		
+		
+		private RetainedSnapshot(@NonNull Snapshot snapshot,
+				@NonNull List<MacroSetupFile.KeysReader> readers) {
+			this.snapshot = snapshot;
+			this.readers = readers;
+		}
+		
+		
+		/**
+		 * @return Copy, without the keys not read
+		 */
+		public @NonNull Snapshot getSnapshot() {
+			return snapshot;
+		}
+		
+		
+		/**
+		 * Reads the keys not read in a new copy; the screens of the
+		 * {@link Snapshot} are not changed
+		 * @return Copy of the {@link MacroSetup} with all the keys
+		 * @throws IOException In case of an IO error reading the keys
+		 */
+		public @NonNull MacroSetup read() throws IOException {
+			List<MacroScreen> l = snapshot.setup.getMacroScreens();
+			List<MacroScreen> copies = new ArrayList<>(l.size());
+			for(int i = 0; i < l.size(); i++) {
+				MacroSetupFile.KeysReader r = readers.get(i);
+				MacroScreen m = l.get(i);
+				if(r != null) {
+					MacroScreen c = new MacroScreen();
+					c.setOrientation(m.getOrientation());
+					c.setSwipeType(m.getSwipeType());
+					c.setBackgroundColor(m.getBackgroundColor());
+					c.setBackgroundText(m.getBackgroundText());
+					c.getKeys().addAll(r.load());
+					m = c;
+				}
+				copies.add(m);
+			}
+			return new MacroSetup(copies);
+		}
+		
+		
+		/** Releases the files of the keys not read */
+		@Override
+		public void close() {
+			release(readers);
+		}
+	}
 }
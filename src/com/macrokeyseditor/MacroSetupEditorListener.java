@@ -1,6 +1,7 @@
 package com.macrokeyseditor;
 
 import java.util.EventListener;
+import java.util.List;
 
 import org.eclipse.jdt.annotation.NonNull;
 
@@ -22,6 +23,15 @@ public interface MacroSetupEditorListener extends EventListener {
 	 */
 	void selectionChange(MacroScreenEditor old, MacroScreenEditor actual);
 	
+	/**
+	 * Callback for the replacement of all the {@link MacroScreen}s at once;
+	 * the selection is already cleared
+	 * @param old Editors removed, in their order
+	 * @param actual Editors added, in their order
+	 */
+	void macroScreensReplaced(@NonNull List<MacroScreenEditor> old,
+			@NonNull List<MacroScreenEditor> actual);
+	
 	
 	
 	public enum Action {
@@ -0,0 +1,976 @@
+package com.macrokeyseditor;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+
+import org.eclipse.jdt.annotation.NonNull;
+
+import com.macrokeys.KeyShape;
+import com.macrokeys.LimitedKeySequence;
+import com.macrokeys.MacroKey;
+import com.macrokeys.MacroKeyType;
+import com.macrokeys.MacroScreen;
+import com.macrokeys.MacroSetup;
+import com.macrokeys.rendering.RectF;
+import com.macrokeyseditor.util.FileUtil;
+
+/**
+ * Reads and writes a {@link MacroSetup} in a compact binary format,
+ * instead of the Java serialization of {@link MacroSetup#save(String)}.
+ * <p>
+ * The file starts with {@link #MAGIC} and the version of the format. The enums
+ * are written by name once, in a dictionary, and referred by index. Follows
+ * a directory with the properties of each screen and the position of its
+ * chunk, containing its keys: so the keys of a screen can be read without
+ * reading the others, see {@link #open(File)}. In a chunk the keys are
+ * written by columns: the areas and the colors are arrays of primitives,
+ * read in bulk.
+ * The files of the version 1, without the directory, and of the Java
+ * serialization are still read.
+ * </p>
+ */
+public final class MacroSetupFile {
+
+	/** First bytes of a file of this format: "MKSF" */
+	public static final int MAGIC = 0x4D4B5346;
+
+	/** Actual version of the format */
+	public static final int VERSION = 2;
+	
+	/** Version without the directory: the keys follow each screen */
+	private static final int VERSION_SEQUENTIAL = 1;
+
+	/** Size of a key sequence null */
+	private static final byte NULL_SEQUENCE = -1;
+
+	/** Bytes read first of a file, enough for the directory of most setups */
+	private static final int HEADER_SIZE = 64 * 1024;
+
+
+
+	private MacroSetupFile() { }
+
+
+
+	/**
+	 * Loads a {@link MacroSetup} from a file of this format, or from a file
+	 * of the Java serialization
+	 * @param f File to load
+	 * @return Setup loaded
+	 * @throws IOException In case of an IO error or if the file is not valid
+	 */
+	public static @NonNull MacroSetup load(@NonNull File f) throws IOException {
+		Objects.requireNonNull(f);
+
+		if(!isBinary(f)) {
+			try {
+				MacroSetup s = MacroSetup.load(f.getPath());
+				if(s == null) {
+					throw new IOException("Not a macro setup: " + f);
+				}
+				return s;
+			} catch (ClassNotFoundException e) {
+				throw new IOException(e.getMessage(), e);
+			}
+		}
+
+		return read(ByteBuffer.wrap(Files.readAllBytes(f.toPath())));
+	}
+
+
+
+	/**
+	 * Opens a {@link MacroSetup} reading only the properties of the screens:
+	 * the keys of each screen are read when requested by its loader.
+	 * The file is kept open, not mapped, until the keys of all the screens
+	 * are read or the setup is closed. The files of the previous formats are
+	 * read all at once
+	 * @param f File to open
+	 * @return Setup opened
+	 * @throws IOException In case of an IO error or if the file is not valid
+	 */
+	public static @NonNull LazySetup open(@NonNull File f) throws IOException {
+		return open(f, null);
+	}
+
+
+
+	/**
+	 * Opens a {@link MacroSetup} as {@link #open(File)}, notifying the
+	 * progress. If the thread is interrupted the open stops
+	 * @param f File to open
+	 * @param l Notified of the progress; null if none
+	 * @return Setup opened
+	 * @throws InterruptedIOException If the thread is interrupted
+	 * @throws IOException In case of an IO error or if the file is not valid
+	 */
+	public static @NonNull LazySetup open(@NonNull File f, ProgressListener l)
+			throws IOException {
+		Objects.requireNonNull(f);
+		progress(l, 0, 1);
+
+		if(!isBinary(f)) {
+			// The Java serialization can not tell its progress
+			LazySetup s = new LazySetup(load(f));
+			progress(l, 1, 1);
+			return s;
+		}
+
+		// Not mapped: a mapped file can not be replaced on some systems,
+		// eg. by the save of the setup
+		FileChannel c = FileChannel.open(f.toPath(), StandardOpenOption.READ);
+		try {
+			long size = c.size();
+			if(size > Integer.MAX_VALUE) {
+				throw new IOException("Macro setup too big: " + f);
+			}
+			int version = readVersion(read(c, 0,
+					(int) Math.min(size, HEADER_SIZE)));
+			if(version == VERSION_SEQUENTIAL) {
+				ByteBuffer b = read(c, 0, (int) size);
+				readVersion(b);
+				LazySetup s = new LazySetup(readSequential(b, l));
+				c.close();
+				return s;
+			}
+
+			Directory d = readDirectory(c, size);
+			ChunkFile file = new ChunkFile(f, c, d.screens.size());
+			List<MacroScreenEditor.KeysLoader> loaders = new ArrayList<>();
+			for(int i = 0; i < d.screens.size(); i++) {
+				loaders.add(new ChunkLoader(file, i, d.positions[i],
+						d.lengths[i], d.dictionary));
+			}
+			progress(l, 1, 1);
+			return new LazySetup(d.screens, loaders, file);
+		} catch (BufferUnderflowException e) {
+			c.close();
+			throw new IOException("Truncated macro setup", e);
+		} catch (IllegalArgumentException | NullPointerException |
+				IndexOutOfBoundsException e) {
+			c.close();
+			throw new IOException("Invalid macro setup", e);
+		} catch (IOException | RuntimeException e) {
+			c.close();
+			throw e;
+		}
+	}
+
+
+
+	/**
+	 * Saves a {@link MacroSetup} in this format. The setup is written in a
+	 * temporary file, then renamed as {@code f}: if the write fails, or the
+	 * process ends while writing, {@code f} is left as it was
+	 * @param s Setup to save
+	 * @param f File where to save
+	 * @throws IOException In case of an IO error
+	 * @see FileUtil#replace(File, FileUtil.Content)
+	 */
+	public static void save(@NonNull MacroSetup s, @NonNull File f)
+			throws IOException {
+		Objects.requireNonNull(s);
+		Objects.requireNonNull(f);
+
+		FileUtil.replace(f, new FileUtil.Content() {
+			@Override
+			public void write(@NonNull OutputStream out) throws IOException {
+				MacroSetupFile.write(s, out);
+			}
+		});
+	}
+
+
+
+	/**
+	 * @param f File
+	 * @return True if {@code f} starts as a file of this format
+	 * @throws IOException In case of an IO error
+	 */
+	public static boolean isBinary(@NonNull File f) throws IOException {
+		try(DataInputStream in = new DataInputStream(new FileInputStream(f))) {
+			return f.length() >= Integer.BYTES && in.readInt() == MAGIC;
+		}
+	}
+
+
+
+	/**
+	 * Writes a {@link MacroSetup} in this format
+	 * @param s Setup to write
+	 * @param str Where to write; not closed
+	 * @throws IOException In case of an IO error
+	 */
+	public static void write(@NonNull MacroSetup s, @NonNull OutputStream str)
+			throws IOException {
+		DataOutputStream out = new DataOutputStream(str);
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+
+		// Dictionary of the enums of the keys
+		KeyShape.Type[] shapes = KeyShape.Type.values();
+		out.writeInt(shapes.length);
+		for(KeyShape.Type t : shapes) {
+			DataFormat.writeString(out, t.name());
+		}
+		MacroKeyType[] types = MacroKeyType.values();
+		out.writeInt(types.length);
+		for(MacroKeyType t : types) {
+			DataFormat.writeString(out, t.name());
+		}
+
+		// The lengths of the chunks are computed first, for their positions
+		// in the directory: so the chunks are written without buffering them
+		List<MacroScreen> screens = s.getMacroScreens();
+		int[] lengths = new int[screens.size()];
+		for(int i = 0; i < screens.size(); i++) {
+			lengths[i] = keysLength(screens.get(i).getKeys());
+		}
+
+		// Directory: properties of the screen, position and length of the chunk
+		out.writeInt(screens.size());
+		long offset = 0;
+		for(int i = 0; i < screens.size(); i++) {
+			writeProperties(out, screens.get(i));
+			out.writeLong(offset);
+			out.writeInt(lengths[i]);
+			offset += lengths[i];
+		}
+		for(int i = 0; i < screens.size(); i++) {
+			int start = out.size();
+			writeKeys(out, screens.get(i).getKeys());
+			assert out.size() - start == lengths[i];
+		}
+		out.flush();
+	}
+
+
+
+	/**
+	 * Reads a {@link MacroSetup} written by {@link #write(MacroSetup, OutputStream)}
+	 * @param b Buffer of the file, from the start
+	 * @return Setup read
+	 * @throws IOException If the content is not valid
+	 */
+	public static @NonNull MacroSetup read(@NonNull ByteBuffer b) throws IOException {
+		try {
+			int version = readVersion(b);
+			if(version == VERSION_SEQUENTIAL) {
+				return readSequential(b, null);
+			}
+			
+			Directory d = new Directory(b, b.limit());
+			for(int i = 0; i < d.screens.size(); i++) {
+				ByteBuffer chunk = b.duplicate();
+				chunk.position((int) d.positions[i]);
+				chunk.limit((int) d.positions[i] + d.lengths[i]);
+				d.screens.get(i).getKeys().addAll(
+						readKeys(chunk, d.dictionary));
+			}
+			return new MacroSetup(d.screens);
+		} catch (BufferUnderflowException e) {
+			throw new IOException("Truncated macro setup", e);
+		} catch (IllegalArgumentException | NullPointerException |
+				IndexOutOfBoundsException e) {
+			// Unknown name of an enum or index out of the dictionary
+			throw new IOException("Invalid macro setup", e);
+		}
+	}
+
+
+
+	/**
+	 * Reads the start of the file
+	 * @param b Buffer of the file, from the start
+	 * @return Version of the format
+	 * @throws IOException If not a file of this format or version not supported
+	 */
+	private static int readVersion(@NonNull ByteBuffer b) throws IOException {
+		if(b.getInt() != MAGIC) {
+			throw new IOException("Not a macro setup");
+		}
+		int version = b.getInt();
+		if(version < VERSION_SEQUENTIAL || version > VERSION) {
+			throw new IOException("Unsupported version " + version);
+		}
+		return version;
+	}
+
+
+
+	/**
+	 * Reads a file of the version {@link #VERSION_SEQUENTIAL}
+	 * @param b Buffer of the file, after the version
+	 * @param l Notified of the screens read; null if none
+	 */
+	private static @NonNull MacroSetup readSequential(@NonNull ByteBuffer b,
+			ProgressListener l) throws IOException {
+		Dictionary d = new Dictionary(b);
+		int n = count(b, 1);
+		List<MacroScreen> screens = new ArrayList<>(n);
+		for(int i = 0; i < n; i++) {
+			progress(l, i, n);
+			MacroScreen m = readProperties(b);
+			m.getKeys().addAll(readKeys(b, d));
+			screens.add(m);
+		}
+		progress(l, n, n);
+		return new MacroSetup(screens);
+	}
+
+
+
+	/**
+	 * Notifies the progress, if the thread is not interrupted
+	 * @param l Listener to notify; null if none
+	 * @param done Units of work done
+	 * @param total Units of work in total
+	 * @throws InterruptedIOException If the thread is interrupted
+	 */
+	private static void progress(ProgressListener l, int done, int total)
+			throws InterruptedIOException {
+		if(Thread.interrupted()) {
+			throw new InterruptedIOException("Load of the macro setup interrupted");
+		}
+		if(l != null && total > 0) {
+			l.progress(done, total);
+		}
+	}
+
+
+
+	/**
+	 * Reads the directory of a file of the version {@link #VERSION}, reading
+	 * more of the file until the directory is read
+	 * @param c File
+	 * @param size Size of {@code c}
+	 * @return Directory read
+	 * @throws IOException In case of an IO error or if the directory
+	 * is not valid
+	 */
+	private static @NonNull Directory readDirectory(@NonNull FileChannel c,
+			long size) throws IOException {
+		int n = (int) Math.min(size, HEADER_SIZE);
+		while(true) {
+			ByteBuffer b = read(c, 0, n);
+			b.position(2 * Integer.BYTES);
+			try {
+				return new Directory(b, size);
+			} catch (IOException | RuntimeException e) {
+				// Not valid or not all in the part read
+				if(n == size) {
+					throw e;
+				}
+				n = (int) Math.min(size, 2L * n);
+			}
+		}
+	}
+
+
+
+	/**
+	 * Reads a part of a file in a heap buffer
+	 * @param c File
+	 * @param position Position of the part in {@code c}
+	 * @param length Length of the part
+	 * @return Buffer of the part, from its start
+	 * @throws EOFException If the file ends before the part
+	 * @throws IOException In case of an IO error
+	 */
+	private static @NonNull ByteBuffer read(@NonNull FileChannel c,
+			long position, int length) throws IOException {
+		ByteBuffer b = ByteBuffer.allocate(length);
+		while(b.hasRemaining()) {
+			// Positional read: the position of the channel is not shared
+			if(c.read(b, position + b.position()) < 0) {
+				throw new EOFException("Truncated macro setup");
+			}
+		}
+		b.flip();
+		return b;
+	}
+
+
+
+	private static void writeProperties(@NonNull DataOutputStream out,
+			@NonNull MacroScreen m) throws IOException {
+		DataFormat.writeString(out, nameOf(m.getSwipeType()));
+		DataFormat.writeString(out, nameOf(m.getOrientation()));
+		out.writeInt(m.getBackgroundColor());
+		DataFormat.writeString(out, m.getBackgroundText());
+	}
+
+
+
+	/**
+	 * @param keys Keys of a screen
+	 * @return Bytes written by {@link #writeKeys(DataOutputStream, List)}
+	 */
+	private static int keysLength(@NonNull List<MacroKey> keys) {
+		int n = Integer.BYTES + keys.size() * (8 * 4 + 2);
+		for(MacroKey k : keys) {
+			n += DataFormat.length(k.getText());
+			LimitedKeySequence seq = k.getKeySeq();
+			Integer[] a = seq == null ? null : seq.getKeys();
+			n += 1 + (a == null ? 0 : a.length * Integer.BYTES);
+		}
+		return n;
+	}
+
+
+
+	private static void writeKeys(@NonNull DataOutputStream out,
+			@NonNull List<MacroKey> keys) throws IOException {
+		int n = keys.size();
+		out.writeInt(n);
+
+		// Areas and colors: 8 columns of 4 bytes; shapes and types: 2 of 1 byte
+		ByteBuffer b = ByteBuffer.allocate(n * (8 * 4 + 2));
+		for(MacroKey k : keys) {
+			b.putFloat(k.getArea().left);
+		}
+		for(MacroKey k : keys) {
+			b.putFloat(k.getArea().top);
+		}
+		for(MacroKey k : keys) {
+			b.putFloat(k.getArea().right);
+		}
+		for(MacroKey k : keys) {
+			b.putFloat(k.getArea().bottom);
+		}
+		for(MacroKey k : keys) {
+			b.putInt(k.getColorEdge());
+		}
+		for(MacroKey k : keys) {
+			b.putInt(k.getColorFill());
+		}
+		for(MacroKey k : keys) {
+			b.putInt(k.getColorEdgePress());
+		}
+		for(MacroKey k : keys) {
+			b.putInt(k.getColorFillPress());
+		}
+		for(MacroKey k : keys) {
+			KeyShape s = k.getShape();
+			b.put((byte) (s == null || s.getType() == null ?
+					-1 : s.getType().ordinal()));
+		}
+		for(MacroKey k : keys) {
+			MacroKeyType t = k.getType();
+			b.put((byte) (t == null ? -1 : t.ordinal()));
+		}
+		out.write(b.array(), 0, b.position());
+
+		for(MacroKey k : keys) {
+			DataFormat.writeString(out, k.getText());
+		}
+		for(MacroKey k : keys) {
+			LimitedKeySequence seq = k.getKeySeq();
+			if(seq == null) {
+				out.writeByte(NULL_SEQUENCE);
+			} else {
+				Integer[] a = seq.getKeys();
+				int len = a == null ? 0 : a.length;
+				out.writeByte(len);
+				for(int i = 0; i < len; i++) {
+					out.writeInt(a[i]);
+				}
+			}
+		}
+	}
+
+
+
+	/**
+	 * @return Screen with the properties read, without keys
+	 */
+	private static @NonNull MacroScreen readProperties(@NonNull ByteBuffer b)
+			throws IOException {
+		MacroScreen m = new MacroScreen();
+		String swipe = DataFormat.readString(b);
+		if(swipe != null) {
+			m.setSwipeType(MacroScreen.SwipeType.valueOf(swipe));
+		}
+		String orientation = DataFormat.readString(b);
+		if(orientation != null) {
+			m.setOrientation(MacroScreen.Orientation.valueOf(orientation));
+		}
+		m.setBackgroundColor(b.getInt());
+		m.setBackgroundText(DataFormat.readString(b));
+		return m;
+	}
+
+
+
+	/**
+	 * @return Keys read, in the order of rendering
+	 */
+	private static @NonNull List<MacroKey> readKeys(@NonNull ByteBuffer b,
+			@NonNull Dictionary d) throws IOException {
+		int n = count(b, 8 * 4 + 2);
+		float[] left = floats(b, n);
+		float[] top = floats(b, n);
+		float[] right = floats(b, n);
+		float[] bottom = floats(b, n);
+		int[] edge = ints(b, n);
+		int[] fill = ints(b, n);
+		int[] edgePress = ints(b, n);
+		int[] fillPress = ints(b, n);
+		byte[] shape = new byte[n];
+		b.get(shape);
+		byte[] type = new byte[n];
+		b.get(type);
+
+		List<MacroKey> keys = new ArrayList<>(n);
+		for(int i = 0; i < n; i++) {
+			MacroKey k = new MacroKey();
+			k.setArea(new RectF(left[i], top[i], right[i], bottom[i]));
+			k.setColorEdge(edge[i]);
+			k.setColorFill(fill[i]);
+			k.setColorEdgePress(edgePress[i]);
+			k.setColorFillPress(fillPress[i]);
+			k.setShape(shape[i] < 0 ? null : new KeyShape(d.shapes[shape[i]]));
+			k.setType(type[i] < 0 ? null : d.types[type[i]]);
+			keys.add(k);
+		}
+
+		for(int i = 0; i < n; i++) {
+			keys.get(i).setText(DataFormat.readString(b));
+		}
+		for(int i = 0; i < n; i++) {
+			byte len = b.get();
+			if(len != NULL_SEQUENCE) {
+				Integer[] a = new Integer[count(len, b, 4)];
+				for(int j = 0; j < a.length; j++) {
+					a[j] = b.getInt();
+				}
+				keys.get(i).setKeySeq(new LimitedKeySequence(a));
+			}
+		}
+		return keys;
+	}
+
+
+
+	private static String nameOf(Enum<?> e) {
+		return e == null ? null : e.name();
+	}
+
+
+	/**
+	 * Reads a number of elements
+	 * @param b Buffer
+	 * @param size Minimum size of an element, in bytes
+	 * @return Number of elements
+	 * @throws IOException If the elements can not be in {@code b}
+	 */
+	private static int count(@NonNull ByteBuffer b, int size) throws IOException {
+		return count(b.getInt(), b, size);
+	}
+
+
+	private static int count(int n, @NonNull ByteBuffer b, int size)
+			throws IOException {
+		// Checked before allocating the elements
+		if(n < 0 || (long) n * size > b.remaining()) {
+			throw new IOException("Invalid macro setup");
+		}
+		return n;
+	}
+
+
+	private static @NonNull float[] floats(@NonNull ByteBuffer b, int n) {
+		float[] a = new float[n];
+		b.asFloatBuffer().get(a);
+		b.position(b.position() + n * Float.BYTES);
+		return a;
+	}
+
+
+	private static @NonNull int[] ints(@NonNull ByteBuffer b, int n) {
+		int[] a = new int[n];
+		b.asIntBuffer().get(a);
+		b.position(b.position() + n * Integer.BYTES);
+		return a;
+	}
+
+
+
+	/**
+	 * Reader of the keys of a screen of a file opened by
+	 * {@link MacroSetupFile#open(File)}
+	 */
+	public interface FileKeysLoader extends MacroScreenEditor.KeysLoader {
+
+		/**
+		 * @return File opened
+		 */
+		@NonNull File getFile();
+
+		/**
+		 * @return Index of the screen in the file
+		 */
+		int getScreen();
+
+		/**
+		 * Keeps the file open to read the keys again from another thread,
+		 * eg. to save them: the keys read so are not counted as read
+		 * @return Reader of the keys, from any thread until closed
+		 * @throws IOException If the file is already closed
+		 */
+		@NonNull KeysReader retain() throws IOException;
+	}
+
+
+
+	/** Reader of the keys of {@link FileKeysLoader#retain()} */
+	public interface KeysReader extends MacroScreenEditor.KeysLoader, Closeable {
+
+		/** Releases the file; does not throw */
+		@Override
+		void close();
+	}
+
+
+
+	/** Listener of the progress of {@link MacroSetupFile#open(File, ProgressListener)} */
+	public interface ProgressListener {
+
+		/**
+		 * Called from the thread of the open
+		 * @param done Units of work done
+		 * @param total Units of work in total; {@code 0 <= done <= total}
+		 * and {@code total > 0}
+		 */
+		void progress(int done, int total);
+	}
+
+
+
+	/** Enums of the keys, by the index written in the file */
+	private static final class Dictionary {
+
+		final KeyShape.Type[] shapes;
+		final MacroKeyType[] types;
+
+		/**
+		 * Reads the dictionary
+		 * @param b Buffer of the file, at the dictionary
+		 */
+		Dictionary(@NonNull ByteBuffer b) throws IOException {
+			shapes = new KeyShape.Type[count(b, 1)];
+			for(int i = 0; i < shapes.length; i++) {
+				shapes[i] = KeyShape.Type.valueOf(DataFormat.readString(b));
+			}
+			types = new MacroKeyType[count(b, 1)];
+			for(int i = 0; i < types.length; i++) {
+				types[i] = MacroKeyType.valueOf(DataFormat.readString(b));
+			}
+		}
+	}
+
+
+
+	/** Directory of a file of the version {@link #VERSION} */
+	private static final class Directory {
+
+		final Dictionary dictionary;
+
+		/** Screens without the keys */
+		final List<MacroScreen> screens;
+
+		/** Position in the file of the chunk of each screen */
+		final long[] positions;
+
+		/** Length of the chunk of each screen */
+		final int[] lengths;
+
+		/**
+		 * Reads the directory
+		 * @param b Buffer of the file, after the version
+		 * @param size Size of the file
+		 * @throws IOException If the directory is not valid
+		 */
+		Directory(@NonNull ByteBuffer b, long size) throws IOException {
+			dictionary = new Dictionary(b);
+			int n = count(b, 1);
+			screens = new ArrayList<>(n);
+			positions = new long[n];
+			lengths = new int[n];
+			for(int i = 0; i < n; i++) {
+				screens.add(readProperties(b));
+				positions[i] = b.getLong();
+				lengths[i] = b.getInt();
+			}
+
+			// The chunks follow the directory
+			long start = b.position();
+			for(int i = 0; i < n; i++) {
+				if(positions[i] < 0 || lengths[i] < 0 ||
+						positions[i] + lengths[i] > size - start) {
+					throw new IOException("Invalid macro setup");
+				}
+				positions[i] += start;
+			}
+		}
+	}
+
+
+
+	/**
+	 * File of the chunks, open until the keys of all its screens are read
+	 */
+	private static final class ChunkFile implements Closeable {
+
+		final File file;
+
+		final FileChannel channel;
+
+		/** Screens whose keys are not yet read */
+		private int pending;
+
+		/** Readers of {@link #retain()} not closed */
+		private int retained;
+
+		/**
+		 * @param file File opened
+		 * @param channel Channel of {@code file}; closed if {@code pending} is 0
+		 * @param pending Screens whose keys are not yet read
+		 */
+		ChunkFile(@NonNull File file, @NonNull FileChannel channel, int pending)
+				throws IOException {
+			this.file = file;
+			this.channel = channel;
+			this.pending = pending;
+			if(pending == 0) {
+				channel.close();
+			}
+		}
+
+		/**
+		 * Notifies that the keys of a screen are read; the last closes the
+		 * file, if not retained
+		 */
+		synchronized void loaded() {
+			pending--;
+			closeIfDone();
+		}
+
+		/**
+		 * Keeps the file open until {@link #release()}
+		 * @throws ClosedChannelException If the file is already closed
+		 */
+		synchronized void retain() throws ClosedChannelException {
+			if(!channel.isOpen()) {
+				throw new ClosedChannelException();
+			}
+			retained++;
+		}
+
+		/** Releases a {@link #retain()} */
+		synchronized void release() {
+			retained--;
+			closeIfDone();
+		}
+
+		private void closeIfDone() {
+			if(pending == 0 && retained == 0) {
+				try {
+					channel.close();
+				} catch (IOException e) {
+					// The keys are already read
+					e.printStackTrace();
+				}
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			channel.close();
+		}
+	}
+
+
+
+	/** Reads the keys of a chunk */
+	private static final class ChunkLoader implements FileKeysLoader {
+
+		private final ChunkFile file;
+		private final int screen;
+		private final long position;
+		private final int length;
+		private final Dictionary dictionary;
+
+		/** True if the keys are read once */
+		private boolean loaded = false;
+
+		ChunkLoader(@NonNull ChunkFile file, int screen, long position,
+				int length, @NonNull Dictionary dictionary) {
+			this.file = file;
+			this.screen = screen;
+			this.position = position;
+			this.length = length;
+			this.dictionary = dictionary;
+		}
+
+		@Override
+		public @NonNull List<MacroKey> load() throws IOException {
+			// If not read, the file stays open to read the keys again
+			List<MacroKey> keys = read();
+			if(!loaded) {
+				loaded = true;
+				file.loaded();
+			}
+			return keys;
+		}
+
+		@Override
+		public @NonNull KeysReader retain() throws IOException {
+			file.retain();
+			return new KeysReader() {
+				private boolean closed = false;
+
+				@Override
+				public @NonNull List<MacroKey> load() throws IOException {
+					return read();
+				}
+
+				@Override
+				public synchronized void close() {
+					if(!closed) {
+						closed = true;
+						file.release();
+					}
+				}
+			};
+		}
+
+		/** Reads the keys of the chunk, from any thread */
+		private @NonNull List<MacroKey> read() throws IOException {
+			ByteBuffer b = MacroSetupFile.read(file.channel, position, length);
+			try {
+				return readKeys(b, dictionary);
+			} catch (BufferUnderflowException e) {
+				throw new IOException("Truncated macro setup", e);
+			} catch (IllegalArgumentException | NullPointerException |
+					IndexOutOfBoundsException e) {
+				throw new IOException("Invalid macro setup", e);
+			}
+		}
+
+		@Override
+		public @NonNull File getFile() {
+			return file.file;
+		}
+
+		@Override
+		public int getScreen() {
+			return screen;
+		}
+	}
+
+
+
+	/**
+	 * {@link MacroSetup} opened by {@link MacroSetupFile#open(File)}: the
+	 * keys of the screens are read by their loaders. The file is closed when
+	 * the keys of all the screens are read, or by {@link #close()}
+	 */
+	public static final class LazySetup implements Closeable {
+
+		private final List<MacroScreen> screens;
+
+		/** Loader of each screen; null if the keys are already read */
+		private final List<MacroScreenEditor.KeysLoader> loaders;
+
+		/** File read by the loaders; null if none */
+		private final ChunkFile file;
+
+
+		private LazySetup(@NonNull MacroSetup s) {
+			this(s.getMacroScreens(), Collections.nCopies(
+					s.getMacroScreens().size(), null), null);
+		}
+
+
+		private LazySetup(@NonNull List<MacroScreen> screens,
+				@NonNull List<MacroScreenEditor.KeysLoader> loaders,
+				ChunkFile file) {
+			this.screens = screens;
+			this.loaders = new ArrayList<>(loaders);
+			this.file = file;
+		}
+
+
+		/**
+		 * @return Screens of the setup; the ones with a loader have no keys
+		 */
+		public @NonNull List<MacroScreen> getMacroScreens() {
+			return screens;
+		}
+
+
+		/**
+		 * @param index Index of the screen in {@link #getMacroScreens()}
+		 * @return Loader of the keys of the screen; null if the keys are read
+		 */
+		public MacroScreenEditor.KeysLoader getLoader(int index) {
+			return loaders.get(index);
+		}
+
+
+		/**
+		 * @return Loader of the keys of each screen in
+		 * {@link #getMacroScreens()}; null where the keys are read
+		 */
+		public @NonNull List<MacroScreenEditor.KeysLoader> getLoaders() {
+			return Collections.unmodifiableList(loaders);
+		}
+
+
+		/**
+		 * Reads the keys of a screen, if not yet read, eg. of the one shown
+		 * first while still in background
+		 * @param index Index of the screen in {@link #getMacroScreens()}
+		 * @throws IOException In case of an IO error or if the keys are
+		 * not valid
+		 */
+		public void load(int index) throws IOException {
+			MacroScreenEditor.KeysLoader l = loaders.get(index);
+			if(l != null) {
+				screens.get(index).getKeys().addAll(l.load());
+				loaders.set(index, null);
+			}
+		}
+
+
+		/**
+		 * Closes the file, if still open: the keys not yet read can not be
+		 * read anymore
+		 * @throws IOException In case of an IO error
+		 */
+		@Override
+		public void close() throws IOException {
+			if(file != null) {
+				file.close();
+			}
+		}
+	}
+}
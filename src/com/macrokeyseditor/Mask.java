@@ -120,7 +120,19 @@ public class Mask {
 	* @return Size of the mask in pixels for the screen {@code screen}
 	*/
 	public Size getScreenSize(Screen screen) {
+		return getScreenSize(screen, new Size());
+	}
+	
+	
+	/**
+	* Calculates the size in pixel of the mask for the given screen
+	* @param screen Screen on which to calibrate the mask size
+	* @param dst Where to put the size
+	* @return {@code dst}
+	*/
+	public Size getScreenSize(Screen screen, @NonNull Size dst) {
 		Objects.requireNonNull(screen);
+		Objects.requireNonNull(dst);
 		
 		float dp = (float)Math.sqrt(resolution.width * resolution.width +
 				resolution.height * resolution.height);
@@ -128,7 +140,9 @@ public class Mask {
 		float w = screen.getXDpi() / dpi * resolution.width;
 		float h = screen.getYDpi() / dpi * resolution.height;
 		
-		return new Size((int)w, (int)h);
+		dst.width = (int)w;
+		dst.height = (int)h;
+		return dst;
 	}
 	
 	
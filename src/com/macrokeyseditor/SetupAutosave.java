@@ -0,0 +1,902 @@
+package com.macrokeyseditor;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EventListener;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import javax.swing.SwingUtilities;
+import javax.swing.event.EventListenerList;
+
+import org.eclipse.jdt.annotation.NonNull;
+
+import com.macrokeys.MacroScreen;
+import com.macrokeys.MacroSetup;
+import com.macrokeyseditor.fur.Action;
+import com.macrokeyseditor.fur.ActionManagerListener;
+import com.macrokeyseditor.fur.RecordLog;
+import com.macrokeyseditor.util.FileUtil;
+
+/**
+ * Saves the edits of a {@link MacroSetupEditor} next to the file of its
+ * {@link MacroSetup}, so they can be recovered after a crash or a close
+ * without save; see {@link #recover(File)}.
+ * <p>
+ * Each edit of a screen (insert, remove, swap and edit of a property, and
+ * their undo and redo) is appended to a {@link RecordLog}, encoded by
+ * {@link MacroScreenEditor#encodeAction(Action)}: the size of a record is
+ * the size of the edit, not of the setup. The records are written in
+ * groups by a background thread. The log describes the edits from a base:
+ * the file of the setup, or a copy of the whole setup written by this.
+ * A new copy is written when the log grows, or when an edit can not be
+ * encoded (eg. a jump in the history); the log then restarts from it.
+ * The screens whose keys are not yet read are not read for the copy: the
+ * copy refers to their keys in the file of the setup.
+ * </p>
+ * <p>
+ * The copy and the log are marked by the session and the generation of
+ * their base: if the process ends while a copy is written, the recovery
+ * uses the last complete pair. The listeners must be called from the
+ * Event Dispatch Thread.
+ * </p>
+ */
+public final class SetupAutosave implements Closeable {
+
+	/** Extension added to the file of the {@link MacroSetup} for the log */
+	private static final String LOG_EXTENSION = ".autolog";
+
+	/** Extension added to the file of the {@link MacroSetup} for the copy */
+	private static final String COPY_EXTENSION = ".autosave";
+
+	/** Start of the log: "MKAL" */
+	private static final int LOG_MAGIC = 0x4D4B414C;
+
+	/** Start of the copy: "MKAC" */
+	private static final int COPY_MAGIC = 0x4D4B4143;
+
+	private static final int VERSION = 1;
+
+	/** Version of the copy with the references to the setup file */
+	private static final int COPY_VERSION = 2;
+
+	/** Size of the fingerprint of the file of the {@link MacroSetup} */
+	private static final int FINGERPRINT_SIZE = 2 * Long.BYTES;
+
+	/** Reference of a screen whose keys are in the copy */
+	private static final int NO_REFERENCE = -1;
+
+	/** Size of the header of the log: magic, version, session, generation
+	 * and fingerprint of the file of the {@link MacroSetup} */
+	private static final int LOG_HEADER_SIZE = 40;
+
+	/** Size of the header of the copy: magic, version, session, generation */
+	private static final int COPY_HEADER_SIZE = 24;
+
+	/** Maximum delay between the append of a record and its write, in milliseconds */
+	private static final long GROUP_COMMIT_DELAY = 500;
+
+	/** Size of the records over which a new copy is written, in bytes */
+	private static final long COMPACTION_THRESHOLD = 256 * 1024;
+
+	/** Maximum wait for the writes at the close, in seconds */
+	private static final long CLOSE_TIMEOUT = 10;
+
+	private static final byte EXECUTE = 1;
+	private static final byte UNDO = 2;
+	private static final byte SCREEN_ADD = 3;
+	private static final byte SCREEN_REMOVE = 4;
+
+
+	private final MacroSetupEditor editor;
+
+	/** File of the {@link MacroSetup} */
+	private final File setupFile;
+
+	/** Identifies the files written by this */
+	private final long session;
+
+	/** Generation of the base of the next records; 0 if the setup file */
+	private long generation = 0;
+
+	/** True if a new copy is requested */
+	private boolean compactRequested = false;
+
+	/** True if the setup is changed by an edit not in the log: the records
+	 * are dropped until the new copy */
+	private boolean stale = false;
+
+	/** Editors of the screens, in the order of the log */
+	private final List<MacroScreenEditor> screens = new ArrayList<>();
+
+	/** Listener of the history of each element of {@link #screens} */
+	private final List<ActionManagerListener> historyListeners = new ArrayList<>();
+
+	/**
+	 * Records appended since the base; replaced by a new copy. Changed
+	 * in the Event Dispatch Thread, written by {@link #writer}
+	 */
+	private volatile RecordLog log = new RecordLog(LOG_HEADER_SIZE);
+
+	/** Thread of the writes */
+	private final ScheduledExecutorService writer;
+
+	private final EventListenerList listeners = new EventListenerList();
+
+	private final MacroSetupEditorListener setupListener =
+			new MacroSetupEditorListener() {
+
+		@Override
+		public void actionPerformed(MacroSetupEditorListener.Action a,
+				@NonNull MacroScreenEditor e) {
+			switch(a) {
+			case Add:
+				attach(e);
+				if(!e.isLoaded()) {
+					// The keys not read are not in the copy of the screen
+					compactLater(true);
+				} else {
+					append(SCREEN_ADD, -1, encode(e.snapshot()));
+				}
+				break;
+
+			case Remove:
+				int i = screens.indexOf(e);
+				if(i != -1) {
+					append(SCREEN_REMOVE, i, new byte[0]);
+					detach(i);
+				}
+				break;
+			}
+		}
+
+		@Override
+		public void macroScreensReplaced(@NonNull List<MacroScreenEditor> old,
+				@NonNull List<MacroScreenEditor> actual) {
+			while(!screens.isEmpty()) {
+				detach(screens.size() - 1);
+			}
+			for(MacroScreenEditor e : actual) {
+				attach(e);
+			}
+			compactLater(true);
+		}
+
+		@Override
+		public void selectionChange(MacroScreenEditor old,
+				MacroScreenEditor actual) {
+			// Nothing
+		}
+	};
+
+
+
+	/**
+	 * @param editor Editor to follow
+	 * @param setupFile File of the {@link MacroSetup}
+	 */
+	private SetupAutosave(@NonNull MacroSetupEditor editor,
+			@NonNull File setupFile) {
+		this.editor = editor;
+		this.setupFile = setupFile;
+		this.session = ThreadLocalRandom.current().nextLong();
+
+		writer = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "Autosave " + setupFile.getName());
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+
+
+	/**
+	 * Starts to save the edits of the editor, replacing the previous log
+	 * of {@code setupFile}
+	 * @param editor Editor to follow
+	 * @param setupFile File of the {@link MacroSetup}; can be not existing
+	 * @param copy False if the editor contains the {@link MacroSetup} of
+	 * {@code setupFile}; true to write a copy as base, eg. after a recovery
+	 * @return Started autosave
+	 * @throws IOException In case of an IO error reading the keys to copy
+	 */
+	public static @NonNull SetupAutosave start(@NonNull MacroSetupEditor editor,
+			@NonNull File setupFile, boolean copy) throws IOException {
+		Objects.requireNonNull(editor);
+		Objects.requireNonNull(setupFile);
+
+		SetupAutosave a = new SetupAutosave(editor, setupFile);
+		if(copy) {
+			a.compact(a.snapshot());
+		} else {
+			byte[] fingerprint = SetupJournal.fingerprint(setupFile);
+			RecordLog l = a.log;
+			a.writer.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						a.openLog(l, 0, fingerprint);
+						// Of another session
+						copyFile(setupFile).delete();
+					} catch (IOException e) {
+						a.failed(e);
+					}
+				}
+			});
+		}
+
+		for(MacroScreenEditor e : editor.getMacroScreenEditors()) {
+			a.attach(e);
+		}
+		editor.addActionListener(a.setupListener);
+
+		a.writer.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					a.log.flush();
+				} catch (IOException e) {
+					// Not written until a new copy
+					a.failed(e);
+				}
+			}
+		}, GROUP_COMMIT_DELAY, GROUP_COMMIT_DELAY, TimeUnit.MILLISECONDS);
+		return a;
+	}
+
+
+
+	/**
+	 * Reads the {@link MacroSetup} with the edits saved by an autosave
+	 * of {@code setupFile} and never saved in it
+	 * @param setupFile File of the {@link MacroSetup}; can be not existing
+	 * @return {@link MacroSetup} with the edits; null if there are no edits,
+	 * or if {@code setupFile} is changed since
+	 * @throws IOException In case of an IO error
+	 */
+	public static MacroSetup recover(@NonNull File setupFile) throws IOException {
+		Objects.requireNonNull(setupFile);
+
+		File logFile = logFile(setupFile);
+		if(!logFile.exists()) {
+			return null;
+		}
+		try(FileChannel log = FileChannel.open(logFile.toPath(),
+				StandardOpenOption.READ)) {
+			ByteBuffer h = ByteBuffer.allocate(LOG_HEADER_SIZE);
+			if(!RecordLog.readFully(log, h, 0)) {
+				return null;
+			}
+			h.flip();
+			if(h.getInt() != LOG_MAGIC || h.getInt() != VERSION) {
+				return null;
+			}
+			long session = h.getLong();
+			long generation = h.getLong();
+			byte[] fingerprint = new byte[h.remaining()];
+			h.get(fingerprint);
+
+			// Session and generation of the copy
+			long[] copy = readCopyHeader(setupFile);
+			if(copy != null && copy[0] == session && copy[1] > generation) {
+				// Ended after the copy and before its log: the records are in the copy
+				return readCopy(setupFile);
+			}
+			if(generation == 0 && log.size() == LOG_HEADER_SIZE) {
+				// No edits of the setup file; a copy has the edits before its log
+				return null;
+			}
+
+			MacroSetup base;
+			if(generation == 0) {
+				if(!Arrays.equals(fingerprint, SetupJournal.fingerprint(setupFile))) {
+					// Written after the log
+					return null;
+				}
+				base = setupFile.exists() ? MacroSetupFile.load(setupFile) :
+					new MacroSetup(new ArrayList<>());
+			} else if(copy != null && copy[0] == session && copy[1] == generation) {
+				base = readCopy(setupFile);
+				if(base == null) {
+					return null;
+				}
+			} else {
+				return null;
+			}
+
+			MacroSetupEditor e = new MacroSetupEditor();
+			for(MacroScreen m : base.getMacroScreens()) {
+				e.addMacroScreen(m);
+			}
+			replay(e, new RecordLog.Reader(log, LOG_HEADER_SIZE));
+			return new MacroSetup(Arrays.asList(e.getMacroScreens()));
+		}
+	}
+
+
+
+	/**
+	 * Applies the records of the log to the editor, up to the first not
+	 * valid, eg. truncated by a crash
+	 * @param e Editor of the base of the log
+	 * @param log Reader of the records of the log
+	 * @throws IOException In case of an IO error
+	 */
+	private static void replay(@NonNull MacroSetupEditor e,
+			@NonNull RecordLog.Reader log) throws IOException {
+		while(log.next()) {
+			byte type = log.getType();
+			int screen = log.getScreen();
+			byte[] payload = log.payload();
+			if(payload == null) {
+				return;
+			}
+
+			List<MacroScreenEditor> l = e.getMacroScreenEditors();
+			try {
+				switch(type) {
+				case EXECUTE:
+				case UNDO:
+					l.get(screen).replay(payload, type == UNDO);
+					break;
+
+				case SCREEN_ADD:
+					MacroSetup s = MacroSetupFile.read(ByteBuffer.wrap(payload));
+					e.addMacroScreen(s.getMacroScreens().get(0));
+					break;
+
+				case SCREEN_REMOVE:
+					e.removeMacroScreen(l.get(screen).getMacroScreen());
+					break;
+
+				default:
+					return;
+				}
+			} catch (IOException | RuntimeException ex) {
+				// The following records refer to the state not restored
+				ex.printStackTrace();
+				return;
+			}
+		}
+	}
+
+
+
+	/**
+	 * Stops to save the edits; the saved edits are kept for {@link #recover(File)}
+	 */
+	@Override
+	public void close() {
+		editor.removeActionListener(setupListener);
+		while(!screens.isEmpty()) {
+			detach(screens.size() - 1);
+		}
+
+		RecordLog l = log;
+		writer.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					l.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		});
+		writer.shutdown();
+		try {
+			writer.awaitTermination(CLOSE_TIMEOUT, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+
+
+	/**
+	 * Stops to save the edits and deletes the saved ones, eg. after the
+	 * {@link MacroSetup} is saved
+	 */
+	public void discard() {
+		close();
+		logFile(setupFile).delete();
+		copyFile(setupFile).delete();
+	}
+
+
+
+	/**
+	 * Adds a listener for the errors of the autosave
+	 * @param l Listener to add
+	 */
+	public void addErrorListener(@NonNull ErrorListener l) {
+		Objects.requireNonNull(l);
+		listeners.add(ErrorListener.class, l);
+	}
+
+
+
+	/**
+	 * Removes a listener for the errors of the autosave
+	 * @param l Listener to remove
+	 */
+	public void removeErrorListener(@NonNull ErrorListener l) {
+		Objects.requireNonNull(l);
+		listeners.remove(ErrorListener.class, l);
+	}
+
+
+
+	/**
+	 * @param e Error of the autosave
+	 */
+	private void fireFailed(@NonNull IOException e) {
+		for(ErrorListener l : listeners.getListeners(ErrorListener.class)) {
+			l.autosaveFailed(e);
+		}
+	}
+
+
+
+	/**
+	 * @return File of the {@link MacroSetup} of this autosave
+	 */
+	public @NonNull File getSetupFile() {
+		return setupFile;
+	}
+
+
+
+	/**
+	 * Appends a record; a new copy is requested if the log is too big
+	 * @param type Type of the record
+	 * @param screen Index of the screen of the record
+	 * @param payload Payload of the record; empty if the edit can not be
+	 * encoded, so a new copy is requested
+	 */
+	private void append(byte type, int screen, @NonNull byte[] payload) {
+		if(stale) {
+			// Retries the copy, if failed
+			compactLater(true);
+			return;
+		}
+		if(payload.length == 0 && type != SCREEN_REMOVE) {
+			compactLater(true);
+			return;
+		}
+
+		log.append(type, screen, payload);
+		if(log.getSize() - LOG_HEADER_SIZE > COMPACTION_THRESHOLD) {
+			compactLater(false);
+		}
+	}
+
+
+
+	/**
+	 * Requests a new copy, written after the actual event
+	 * @param stale True if the setup is changed by an edit not in the log
+	 */
+	private void compactLater(boolean stale) {
+		this.stale |= stale;
+		if(compactRequested) {
+			return;
+		}
+
+		compactRequested = true;
+		SwingUtilities.invokeLater(new Runnable() {
+			@Override
+			public void run() {
+				if(!compactRequested) {
+					return;
+				}
+				try {
+					compact(snapshot());
+				} catch (IOException e) {
+					// The edits are dropped until the copy, retried at the next edit
+					compactRequested = false;
+					fireFailed(e);
+				}
+			}
+		});
+	}
+
+
+
+	/**
+	 * Copies the setup for a new base. The keys not yet read are read only
+	 * if not in the file of the setup, where the copy refers to them
+	 * @return Copy of the setup
+	 * @throws IOException In case of an IO error reading the keys
+	 */
+	private @NonNull MacroSetupEditor.Snapshot snapshot() throws IOException {
+		MacroSetupEditor.Snapshot s = editor.lazySnapshot();
+		for(MacroScreenEditor.KeysLoader l : s.getLoaders()) {
+			if(l != null && referenceOf(l) == NO_REFERENCE) {
+				return editor.snapshot();
+			}
+		}
+		return s;
+	}
+
+
+
+	/**
+	 * @param l Reader of the keys of a screen; null if the keys are read
+	 * @return Index of the screen of {@code l} in the file of the setup;
+	 * {@link #NO_REFERENCE} if {@code l} is null or of another file
+	 */
+	private int referenceOf(MacroScreenEditor.KeysLoader l) {
+		if(l instanceof MacroSetupFile.FileKeysLoader) {
+			MacroSetupFile.FileKeysLoader f = (MacroSetupFile.FileKeysLoader) l;
+			if(f.getFile().equals(setupFile)) {
+				return f.getScreen();
+			}
+		}
+		return NO_REFERENCE;
+	}
+
+
+
+	/**
+	 * Starts a new base with a copy of the setup; the records appended
+	 * so far are written in the previous log
+	 * @param s Copy of the setup, in the state of the records appended
+	 */
+	private void compact(@NonNull MacroSetupEditor.Snapshot s) {
+		// Of the file where the copy refers to the keys not read
+		byte[] fingerprint = SetupJournal.fingerprint(setupFile);
+		compactRequested = false;
+		stale = false;
+
+		long g = ++generation;
+		RecordLog old = log;
+		RecordLog next = new RecordLog(LOG_HEADER_SIZE);
+		log = next;
+
+		writer.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					// The records appended so far are in the previous log
+					old.close();
+				} catch (IOException e) {
+					// Replaced by the copy
+					e.printStackTrace();
+				}
+
+				try {
+					writeCopy(s, fingerprint, g);
+					openLog(next, g, new byte[FINGERPRINT_SIZE]);
+				} catch (IOException e) {
+					// The old log is kept up to the copy: the following
+					// records are dropped, as they can follow an edit
+					// not in it
+					copyFile(setupFile).delete();
+					failed(e);
+				}
+			}
+		});
+	}
+
+
+
+	/**
+	 * Handles a failed write of the log or of the copy, in the thread of
+	 * the writes: the records are dropped until a new copy, written at
+	 * the next edit
+	 * @param e Error of the write
+	 */
+	private void failed(@NonNull IOException e) {
+		SwingUtilities.invokeLater(new Runnable() {
+			@Override
+			public void run() {
+				stale = true;
+				fireFailed(e);
+			}
+		});
+	}
+
+
+
+	/**
+	 * Replaces the log with a new one, containing the records of a log
+	 * without file
+	 * @param l Log to write
+	 * @param g Generation of the base
+	 * @param fingerprint Fingerprint of the setup file if {@code g} is 0
+	 * @throws IOException In case of an IO error
+	 */
+	private void openLog(@NonNull RecordLog l, long g,
+			@NonNull byte[] fingerprint) throws IOException {
+		try(RecordLog.Writer w = new RecordLog.Writer(logFile(setupFile))) {
+			w.header(ByteBuffer.allocate(LOG_HEADER_SIZE)
+					.putInt(LOG_MAGIC)
+					.putInt(VERSION)
+					.putLong(session)
+					.putLong(g)
+					.put(fingerprint)
+					.array());
+			l.open(w);
+		}
+	}
+
+
+
+	/**
+	 * Replaces the copy of the setup
+	 * @param s Copy of the setup to write
+	 * @param fingerprint Fingerprint of the setup file, where are the
+	 * keys not read of {@code s}
+	 * @param g Generation of the copy
+	 * @throws IOException In case of an IO error
+	 */
+	private void writeCopy(@NonNull MacroSetupEditor.Snapshot s,
+			@NonNull byte[] fingerprint, long g) throws IOException {
+		FileUtil.replace(copyFile(setupFile), new FileUtil.Content() {
+			@Override
+			public void write(@NonNull OutputStream str) throws IOException {
+				DataOutputStream out = new DataOutputStream(str);
+				out.writeInt(COPY_MAGIC);
+				out.writeInt(COPY_VERSION);
+				out.writeLong(session);
+				out.writeLong(g);
+				
+				// Screens of the setup file with the keys not read
+				out.write(fingerprint);
+				List<MacroScreenEditor.KeysLoader> l = s.getLoaders();
+				out.writeInt(l.size());
+				for(MacroScreenEditor.KeysLoader k : l) {
+					out.writeInt(referenceOf(k));
+				}
+				MacroSetupFile.write(s.getMacroSetup(), out);
+			}
+		});
+	}
+
+
+
+	/**
+	 * @param setupFile File of a {@link MacroSetup}
+	 * @return Session and generation of the copy; null if not valid
+	 * @throws IOException In case of an IO error
+	 */
+	private static long[] readCopyHeader(@NonNull File setupFile)
+			throws IOException {
+		File f = copyFile(setupFile);
+		if(f.length() < COPY_HEADER_SIZE) {
+			return null;
+		}
+		try(DataInputStream in = new DataInputStream(new FileInputStream(f))) {
+			int version;
+			if(in.readInt() != COPY_MAGIC || ((version = in.readInt()) != VERSION &&
+					version != COPY_VERSION)) {
+				return null;
+			}
+			return new long[] { in.readLong(), in.readLong() };
+		}
+	}
+
+
+
+	/**
+	 * @param setupFile File of a {@link MacroSetup}
+	 * @return Setup in the copy; null if the copy refers to {@code setupFile}
+	 * and it is changed since
+	 * @throws IOException In case of an IO error or if the copy is not valid
+	 */
+	private static MacroSetup readCopy(@NonNull File setupFile)
+			throws IOException {
+		ByteBuffer b = ByteBuffer.wrap(
+				Files.readAllBytes(copyFile(setupFile).toPath()));
+		try {
+			b.position(Integer.BYTES);
+			int version = b.getInt();
+			b.position(COPY_HEADER_SIZE);
+			if(version != COPY_VERSION) {
+				return MacroSetupFile.read(b.slice());
+			}
+			
+			byte[] fingerprint = new byte[FINGERPRINT_SIZE];
+			b.get(fingerprint);
+			int n = b.getInt();
+			if(n < 0 || n > b.remaining() / Integer.BYTES) {
+				throw new IOException("Autosave copy not valid");
+			}
+			int[] references = new int[n];
+			for(int i = 0; i < n; i++) {
+				references[i] = b.getInt();
+			}
+			
+			MacroSetup s = MacroSetupFile.read(b.slice());
+			if(references.length != s.getMacroScreens().size()) {
+				throw new IOException("Autosave copy not valid");
+			}
+			return readReferences(s, references, fingerprint, setupFile);
+		} catch (BufferUnderflowException | IllegalArgumentException e) {
+			throw new IOException("Autosave copy not valid", e);
+		}
+	}
+
+
+
+	/**
+	 * Adds to a copy the keys it refers to in the setup file
+	 * @param s Setup of the copy
+	 * @param references Index in the setup file of the screen with the keys
+	 * of each screen of {@code s}; {@link #NO_REFERENCE} if in the copy
+	 * @param fingerprint Fingerprint of the setup file when copied
+	 * @param setupFile File of the setup
+	 * @return {@code s}; null if it refers to {@code setupFile} and it is
+	 * changed since
+	 * @throws IOException In case of an IO error or if the references are
+	 * not valid
+	 */
+	private static MacroSetup readReferences(@NonNull MacroSetup s,
+			@NonNull int[] references, @NonNull byte[] fingerprint,
+			@NonNull File setupFile) throws IOException {
+		boolean referred = false;
+		for(int r : references) {
+			referred |= r != NO_REFERENCE;
+		}
+		if(!referred) {
+			return s;
+		}
+		if(!Arrays.equals(fingerprint, SetupJournal.fingerprint(setupFile))) {
+			return null;
+		}
+		
+		List<MacroScreen> screens = s.getMacroScreens();
+		try(MacroSetupFile.LazySetup base = MacroSetupFile.open(setupFile)) {
+			List<MacroScreen> baseScreens = base.getMacroScreens();
+			for(int i = 0; i < references.length; i++) {
+				int r = references[i];
+				if(r == NO_REFERENCE) {
+					continue;
+				} else if(r < 0 || r >= baseScreens.size()) {
+					throw new IOException("Autosave copy not valid");
+				}
+				base.load(r);
+				screens.get(i).getKeys().addAll(baseScreens.get(r).getKeys());
+			}
+		}
+		return s;
+	}
+
+
+
+	/**
+	 * @param m Screen to encode
+	 * @return Setup containing only {@code m}, as written by
+	 * {@link MacroSetupFile#write(MacroSetup, OutputStream)}
+	 */
+	private static byte[] encode(@NonNull MacroScreen m) {
+		ByteArrayOutputStream b = new ByteArrayOutputStream();
+		try {
+			MacroSetupFile.write(new MacroSetup(Arrays.asList(m)), b);
+		} catch (IOException e) {
+			throw new AssertionError("Memory stream", e);
+		}
+		return b.toByteArray();
+	}
+
+
+
+	/**
+	 * Stops to follow a screen
+	 * @param i Index of the screen in {@link #screens}
+	 */
+	private void detach(int i) {
+		screens.remove(i).removeHistoryListener(historyListeners.remove(i));
+	}
+
+
+
+	/**
+	 * Starts to follow a screen, as the last of the log
+	 * @param e Editor of the screen
+	 */
+	private void attach(@NonNull MacroScreenEditor e) {
+		ActionManagerListener l = new ActionManagerListener() {
+
+			@Override
+			public void actionAdded(@NonNull Action a, boolean merged) {
+				// A merged action is executed as the others
+				append(EXECUTE, screens.indexOf(e), encode(a));
+			}
+
+			@Override
+			public void actionUndone(@NonNull Action a) {
+				append(UNDO, screens.indexOf(e), encode(a));
+			}
+
+			@Override
+			public void actionRedone(@NonNull Action a) {
+				append(EXECUTE, screens.indexOf(e), encode(a));
+			}
+
+			@Override
+			public void historyJumped(int undone, int redone,
+					boolean branched) {
+				// The actions of the jump are not known
+				compactLater(true);
+			}
+
+			@Override
+			public void historyCleared() {
+				// The history is dropped after a failed undo, redo or jump,
+				// that can have changed the screen
+				compactLater(true);
+			}
+
+			/**
+			 * @return Encoded action; empty if cannot be encoded
+			 */
+			private byte[] encode(@NonNull Action a) {
+				try {
+					return e.encodeAction(a);
+				} catch (IOException ex) {
+					ex.printStackTrace();
+					return new byte[0];
+				}
+			}
+		};
+
+		screens.add(e);
+		historyListeners.add(l);
+		e.addHistoryListener(l);
+	}
+
+
+
+	/**
+	 * @param setupFile File of a {@link MacroSetup}
+	 * @return File of the log of {@code setupFile}
+	 */
+	private static File logFile(@NonNull File setupFile) {
+		return new File(setupFile.getPath() + LOG_EXTENSION);
+	}
+
+
+
+	/**
+	 * @param setupFile File of a {@link MacroSetup}
+	 * @return File of the copy of {@code setupFile}
+	 */
+	private static File copyFile(@NonNull File setupFile) {
+		return new File(setupFile.getPath() + COPY_EXTENSION);
+	}
+
+
+
+	/**
+	 * Listener for the errors of a {@link SetupAutosave}; called in the
+	 * Event Dispatch Thread
+	 */
+	public interface ErrorListener extends EventListener {
+
+		/**
+		 * Called when the edits can not be saved; they are saved again
+		 * with a new copy at the next edit
+		 * @param e Error of the autosave
+		 */
+		void autosaveFailed(@NonNull IOException e);
+	}
+}
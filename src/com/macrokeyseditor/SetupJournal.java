@@ -0,0 +1,322 @@
+package com.macrokeyseditor;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+import org.eclipse.jdt.annotation.NonNull;
+
+import com.macrokeys.MacroSetup;
+import com.macrokeyseditor.fur.Action;
+import com.macrokeyseditor.fur.ActionJournal;
+import com.macrokeyseditor.fur.ActionManagerListener;
+
+/**
+ * Keeps the history of the edits of a {@link MacroSetupEditor} in an
+ * {@link ActionJournal} next to the saved {@link MacroSetup}, so the undo
+ * and redo survive a restart of the application.
+ * <p>
+ * The journal follows the screens added and removed in the editor. The history
+ * restored is the one at the last save of the {@link MacroSetup}: the edits
+ * never saved are not restored. Only the undo and redo path is kept: the
+ * other branches of the history are lost at the restart.
+ * </p>
+ */
+public final class SetupJournal implements Closeable {
+
+	/** Extension added to the file of the {@link MacroSetup} */
+	private static final String EXTENSION = ".journal";
+
+	private final MacroSetupEditor editor;
+
+	/** File of the {@link MacroSetup} */
+	private final File setupFile;
+
+	private final ActionJournal journal;
+
+	/** Editors of the screens, in the order of the journal */
+	private final List<MacroScreenEditor> screens = new ArrayList<>();
+
+	/** Listener of the history of each element of {@link #screens} */
+	private final List<ActionManagerListener> historyListeners = new ArrayList<>();
+
+	private final MacroSetupEditorListener setupListener =
+			new MacroSetupEditorListener() {
+
+		@Override
+		public void actionPerformed(MacroSetupEditorListener.Action a,
+				@NonNull MacroScreenEditor e) {
+			switch(a) {
+			case Add:
+				journal.screenAdded();
+				attach(e);
+				break;
+
+			case Remove:
+				detach(e);
+				break;
+			}
+		}
+
+		@Override
+		public void macroScreensReplaced(@NonNull List<MacroScreenEditor> old,
+				@NonNull List<MacroScreenEditor> actual) {
+			for(MacroScreenEditor e : old) {
+				detach(e);
+			}
+			for(MacroScreenEditor e : actual) {
+				journal.screenAdded();
+				attach(e);
+			}
+		}
+
+		@Override
+		public void selectionChange(MacroScreenEditor old,
+				MacroScreenEditor actual) {
+			// Nothing
+		}
+	};
+
+
+
+	/**
+	 * @param editor Editor to follow
+	 * @param setupFile File of the {@link MacroSetup}
+	 * @param journal Journal of the history
+	 */
+	private SetupJournal(@NonNull MacroSetupEditor editor, @NonNull File setupFile,
+			@NonNull ActionJournal journal) {
+		this.editor = editor;
+		this.setupFile = setupFile;
+		this.journal = journal;
+
+		for(MacroScreenEditor e : editor.getMacroScreenEditors()) {
+			attach(e);
+		}
+		editor.addActionListener(setupListener);
+	}
+
+
+
+	/**
+	 * Opens the journal of a {@link MacroSetup} just loaded in the editor,
+	 * restoring the history of the screens
+	 * @param editor Editor containing the loaded {@link MacroSetup}
+	 * @param setupFile File of the loaded {@link MacroSetup}
+	 * @return Opened journal
+	 * @throws IOException In case of an IO error
+	 */
+	public static @NonNull SetupJournal open(@NonNull MacroSetupEditor editor,
+			@NonNull File setupFile) throws IOException {
+		Objects.requireNonNull(editor);
+		Objects.requireNonNull(setupFile);
+
+		List<MacroScreenEditor> l = editor.getMacroScreenEditors();
+		ActionJournal j = ActionJournal.open(journalFile(setupFile),
+				fingerprint(setupFile), l.size());
+		for(int i = 0; i < l.size(); i++) {
+			l.get(i).restoreHistory(j, i);
+		}
+
+		return new SetupJournal(editor, setupFile, j);
+	}
+
+
+
+	/**
+	 * Creates a new journal for a {@link MacroSetup} just saved, discarding
+	 * the existing one
+	 * @param editor Editor containing the saved {@link MacroSetup}
+	 * @param setupFile File of the saved {@link MacroSetup}
+	 * @return Created journal
+	 * @throws IOException In case of an IO error
+	 */
+	public static @NonNull SetupJournal create(@NonNull MacroSetupEditor editor,
+			@NonNull File setupFile) throws IOException {
+		Objects.requireNonNull(editor);
+		Objects.requireNonNull(setupFile);
+
+		ActionJournal j = ActionJournal.create(journalFile(setupFile),
+				fingerprint(setupFile), editor.getMacroScreenCount());
+
+		return new SetupJournal(editor, setupFile, j);
+	}
+
+
+
+	/**
+	 * @return File of the {@link MacroSetup} of this journal
+	 */
+	public @NonNull File getSetupFile() {
+		return setupFile;
+	}
+
+
+
+	/**
+	 * Must be called after each save of the {@link MacroSetup}
+	 * in {@link #getSetupFile()}
+	 * @throws IOException In case of an IO error
+	 */
+	public void checkpoint() throws IOException {
+		journal.checkpoint(fingerprint(setupFile));
+	}
+
+
+
+	/**
+	 * Marks the history of the {@link MacroSetup} being saved in
+	 * {@link #getSetupFile()}, eg. in background while the edits continue
+	 * @return Mark of the history
+	 * @see #checkpoint(ActionJournal.Mark)
+	 */
+	public @NonNull ActionJournal.Mark mark() {
+		return journal.mark();
+	}
+
+
+
+	/**
+	 * Must be called after the save of the {@link MacroSetup} marked by
+	 * {@link #mark()}; the edits done after the mark are kept. Can be called
+	 * from the thread of the save
+	 * @param m Mark of the history saved
+	 * @throws IOException In case of an IO error
+	 */
+	public void checkpoint(@NonNull ActionJournal.Mark m) throws IOException {
+		journal.checkpoint(m, fingerprint(setupFile));
+	}
+
+
+
+	@Override
+	public void close() throws IOException {
+		editor.removeActionListener(setupListener);
+		for(int i = 0; i < screens.size(); i++) {
+			screens.get(i).removeHistoryListener(historyListeners.get(i));
+		}
+		screens.clear();
+		historyListeners.clear();
+
+		journal.close();
+	}
+
+
+
+	/**
+	 * Stops to record the history of a screen, recording its remove
+	 * @param e Editor of the screen; nothing if not recorded
+	 */
+	private void detach(@NonNull MacroScreenEditor e) {
+		int i = screens.indexOf(e);
+		if(i != -1) {
+			journal.screenRemoved(i);
+			e.removeHistoryListener(historyListeners.remove(i));
+			screens.remove(i);
+		}
+	}
+
+
+
+	/**
+	 * Starts to record the history of a screen, as the last of the journal
+	 * @param e Editor of the screen
+	 */
+	private void attach(@NonNull MacroScreenEditor e) {
+		ActionManagerListener l = new ActionManagerListener() {
+
+			@Override
+			public void actionAdded(@NonNull Action a,
+					boolean merged) {
+				byte[] payload = encode(e, a);
+				int i = screens.indexOf(e);
+				if(merged) {
+					journal.merge(i, payload);
+				} else {
+					journal.push(i, payload);
+				}
+			}
+
+			@Override
+			public void actionUndone(@NonNull Action a) {
+				journal.undo(screens.indexOf(e));
+			}
+
+			@Override
+			public void actionRedone(@NonNull Action a) {
+				journal.redo(screens.indexOf(e));
+			}
+
+			@Override
+			public void historyJumped(int undone, int redone,
+					boolean branched) {
+				int i = screens.indexOf(e);
+				if(branched) {
+					// The journal describes only the undo and redo path
+					journal.clear(i);
+				} else {
+					for(int c = 0; c < undone; c++) {
+						journal.undo(i);
+					}
+					for(int c = 0; c < redone; c++) {
+						journal.redo(i);
+					}
+				}
+			}
+
+			@Override
+			public void historyCleared() {
+				journal.clear(screens.indexOf(e));
+			}
+		};
+
+		screens.add(e);
+		historyListeners.add(l);
+		e.addHistoryListener(l);
+	}
+
+
+
+	/**
+	 * @param e Editor of the action
+	 * @param a Action to encode
+	 * @return Encoded action; empty if cannot be encoded
+	 */
+	private static byte[] encode(@NonNull MacroScreenEditor e,
+			@NonNull Action a) {
+		try {
+			return e.encodeAction(a);
+		} catch (IOException ex) {
+			// The action is kept in the journal, but cannot be restored
+			ex.printStackTrace();
+			return new byte[0];
+		}
+	}
+
+
+
+	/**
+	 * @param setupFile File of a {@link MacroSetup}
+	 * @return File of the journal of {@code setupFile}
+	 */
+	private static File journalFile(@NonNull File setupFile) {
+		return new File(setupFile.getPath() + EXTENSION);
+	}
+
+
+
+	/**
+	 * @param setupFile File of a {@link MacroSetup}
+	 * @return Value that changes when {@code setupFile} is written
+	 */
+	static byte[] fingerprint(@NonNull File setupFile) {
+		return ByteBuffer.allocate(2 * Long.BYTES)
+				.putLong(setupFile.length())
+				.putLong(setupFile.lastModified())
+				.array();
+	}
+}
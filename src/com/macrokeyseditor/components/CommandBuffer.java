@@ -0,0 +1,237 @@
+package com.macrokeyseditor.components;
+
+import java.util.Arrays;
+
+import org.eclipse.jdt.annotation.NonNull;
+
+import com.macrokeys.rendering.PaintStyle;
+import com.macrokeys.rendering.RectF;
+import com.macrokeys.rendering.Renderer;
+import com.macrokeys.rendering.TextAllign;
+
+/**
+ * {@link Renderer} that records the calls, to replay them on another
+ * {@link Renderer} without rendering again the {@link com.macrokeys.MacroScreen}.
+ * <p>
+ * The calls are kept in parallel arrays of primitives: the type of each call,
+ * its float and int arguments and its object arguments (texts and enums).
+ * A version tells the state of the model recorded.
+ * </p>
+ */
+final class CommandBuffer implements Renderer {
+
+	private static final byte TEXT_SIZE = 1;
+	private static final byte TEXT_ALLIGN = 2;
+	private static final byte PAINT_STYLE = 3;
+	private static final byte COLOR = 4;
+	private static final byte ANTI_ALIAS = 5;
+	private static final byte RECT = 6;
+	private static final byte ELLIPSE = 7;
+	private static final byte TEXT = 8;
+
+	/** Type of each call */
+	private byte[] ops = new byte[8];
+	private int opCount = 0;
+
+	/** Float arguments of the calls, in order */
+	private float[] floats = new float[16];
+	private int floatCount = 0;
+
+	/** Int arguments of the calls, in order */
+	private int[] ints = new int[4];
+	private int intCount = 0;
+
+	/** Object arguments of the calls, in order */
+	private Object[] objects = new Object[4];
+	private int objectCount = 0;
+
+	/** Version of the model recorded; -1 if nothing recorded */
+	private long version = -1;
+
+	/** Reused for the replay, to not allocate */
+	private final RectF rect = new RectF();
+
+
+
+	/**
+	 * Forgets the recorded calls
+	 */
+	void clear() {
+		opCount = 0;
+		floatCount = 0;
+		intCount = 0;
+		// The objects must not be retained
+		Arrays.fill(objects, 0, objectCount, null);
+		objectCount = 0;
+		version = -1;
+	}
+
+
+	/**
+	 * @return Version of the model recorded; -1 if nothing recorded
+	 */
+	long getVersion() {
+		return version;
+	}
+
+
+	/**
+	 * @param version Version of the model recorded
+	 */
+	void setVersion(long version) {
+		this.version = version;
+	}
+
+
+	/**
+	 * @return Memory estimated of the recorded calls, in bytes
+	 */
+	long estimateSize() {
+		return ops.length + 4L * floats.length + 4L * ints.length +
+				8L * objects.length;
+	}
+
+
+	/**
+	 * Executes the recorded calls on the given {@link Renderer}
+	 * @param r Where to execute the calls
+	 */
+	void replay(@NonNull Renderer r) {
+		int f = 0;
+		int n = 0;
+		int o = 0;
+		for(int i = 0; i < opCount; i++) {
+			switch(ops[i]) {
+			case TEXT_SIZE:
+				r.setTextSize(floats[f++]);
+				break;
+			case TEXT_ALLIGN:
+				r.setTextAllign((TextAllign) objects[o++]);
+				break;
+			case PAINT_STYLE:
+				r.setPaintStyle((PaintStyle) objects[o++]);
+				break;
+			case COLOR:
+				r.setColor(ints[n++]);
+				break;
+			case ANTI_ALIAS:
+				r.setAntiAlias(ints[n++] != 0);
+				break;
+			case RECT:
+				f = readRect(f);
+				r.rect(rect);
+				break;
+			case ELLIPSE:
+				f = readRect(f);
+				r.ellipse(rect);
+				break;
+			case TEXT:
+				f = readRect(f);
+				r.text((String) objects[o++], rect);
+				break;
+			default:
+				assert false;
+				break;
+			}
+		}
+	}
+
+
+	@Override
+	public void setTextSize(float textSize) {
+		op(TEXT_SIZE);
+		number(textSize);
+	}
+
+	@Override
+	public void setTextAllign(@NonNull TextAllign t) {
+		op(TEXT_ALLIGN);
+		object(t);
+	}
+
+	@Override
+	public void setPaintStyle(@NonNull PaintStyle p) {
+		op(PAINT_STYLE);
+		object(p);
+	}
+
+	@Override
+	public void setColor(int argb) {
+		op(COLOR);
+		integer(argb);
+	}
+
+	@Override
+	public void setAntiAlias(boolean aa) {
+		op(ANTI_ALIAS);
+		integer(aa ? 1 : 0);
+	}
+
+	@Override
+	public void rect(@NonNull RectF a) {
+		op(RECT);
+		area(a);
+	}
+
+	@Override
+	public void ellipse(@NonNull RectF a) {
+		op(ELLIPSE);
+		area(a);
+	}
+
+	@Override
+	public void text(@NonNull String s, @NonNull RectF r) {
+		op(TEXT);
+		area(r);
+		object(s);
+	}
+
+
+	private void op(byte op) {
+		if(opCount == ops.length) {
+			ops = Arrays.copyOf(ops, opCount * 2);
+		}
+		ops[opCount++] = op;
+	}
+
+	private void number(float v) {
+		if(floatCount == floats.length) {
+			floats = Arrays.copyOf(floats, floatCount * 2);
+		}
+		floats[floatCount++] = v;
+	}
+
+	private void integer(int v) {
+		if(intCount == ints.length) {
+			ints = Arrays.copyOf(ints, intCount * 2);
+		}
+		ints[intCount++] = v;
+	}
+
+	private void object(Object v) {
+		if(objectCount == objects.length) {
+			objects = Arrays.copyOf(objects, objectCount * 2);
+		}
+		objects[objectCount++] = v;
+	}
+
+	private void area(@NonNull RectF a) {
+		number(a.left);
+		number(a.top);
+		number(a.right);
+		number(a.bottom);
+	}
+
+	/**
+	 * Reads a rectangle in {@link #rect}
+	 * @param f Index of the rectangle in {@link #floats}
+	 * @return Index after the rectangle
+	 */
+	private int readRect(int f) {
+		rect.left = floats[f];
+		rect.top = floats[f + 1];
+		rect.right = floats[f + 2];
+		rect.bottom = floats[f + 3];
+		return f + 4;
+	}
+}
@@ -0,0 +1,380 @@
+package com.macrokeyseditor.components;
+
+import java.awt.Rectangle;
+import java.util.Arrays;
+
+import org.eclipse.jdt.annotation.NonNull;
+
+import com.macrokeys.rendering.PaintStyle;
+import com.macrokeys.rendering.RectF;
+import com.macrokeys.rendering.Renderer;
+import com.macrokeys.rendering.TextAllign;
+
+/**
+ * {@link Renderer} that collects the drawings of many keys and issues them
+ * grouped by state (anti alias, text size, color and paint style), to
+ * change the state of the {@link java.awt.Graphics2D} fewer times.
+ * <p>
+ * The order of the drawings is changed only where it can not be seen:
+ * the drawings of a key keep their order, and a key is drawn after all the
+ * keys added before that it can overlap. For this each key has a level,
+ * over the levels of the keys under it; the overlap is tested on a grid of
+ * cells, so two keys in the same cell are considered overlapped.
+ * </p>
+ */
+final class DrawBatch implements Renderer {
+
+	/** Side of a cell of the grid, in pixels */
+	private static final int CELL = 16;
+
+	private static final byte RECT = 1;
+	private static final byte ELLIPSE = 2;
+	private static final byte TEXT = 3;
+
+	/** Highest level of the keys in each cell of the grid */
+	private int[] grid = new int[0];
+	private int columns, rows;
+
+	/** Union of the areas of the keys added; empty if none */
+	private final Rectangle bounds = new Rectangle();
+
+	// State set by the last calls
+	private float textSize = Float.NaN;
+	private TextAllign allign = TextAllign.Center;
+	private PaintStyle style = PaintStyle.Fill;
+	private int color;
+	private boolean hasColor = false;
+	/** -1 if not set, 0 if off, 1 if on */
+	private byte antiAlias = -1;
+
+	/** Level of the actual key */
+	private int level;
+	/** Number of drawings of the actual key */
+	private int sequence;
+
+	// Drawings, with the state when drawn
+	private int count = 0;
+	private byte[] kinds = new byte[64];
+	private int[] levels = new int[64];
+	private int[] sequences = new int[64];
+	private float[] textSizes = new float[64];
+	private Object[] alligns = new Object[64];
+	private Object[] styles = new Object[64];
+	private int[] colors = new int[64];
+	private boolean[] hasColors = new boolean[64];
+	private byte[] antiAliases = new byte[64];
+	private float[] areas = new float[4 * 64];
+	private Object[] texts = new Object[64];
+
+	/** Indexes of the drawings in the order of issue */
+	private int[] order = new int[64];
+	private int[] buffer = new int[64];
+
+	/** Reused to issue the drawings, to not allocate */
+	private final RectF area = new RectF();
+
+
+
+	/**
+	 * Starts a batch; the drawings not issued are dropped
+	 * @param width Width of the area of the keys, in pixels
+	 * @param height Height of the area of the keys, in pixels
+	 */
+	void begin(int width, int height) {
+		clear();
+		textSize = Float.NaN;
+		allign = TextAllign.Center;
+		style = PaintStyle.Fill;
+		hasColor = false;
+		antiAlias = -1;
+		columns = Math.max(1, (width + CELL - 1) / CELL);
+		rows = Math.max(1, (height + CELL - 1) / CELL);
+		if(grid.length < columns * rows) {
+			grid = new int[columns * rows];
+		}
+		Arrays.fill(grid, 0, columns * rows, 0);
+	}
+
+
+	/**
+	 * Starts the drawings of a key; the following calls are of this key
+	 * @param r Area where the key draws, in pixels
+	 */
+	void beginKey(@NonNull Rectangle r) {
+		int c0 = column(r.x);
+		int c1 = column(r.x + Math.max(0, r.width - 1));
+		int r0 = row(r.y);
+		int r1 = row(r.y + Math.max(0, r.height - 1));
+
+		int max = 0;
+		for(int y = r0; y <= r1; y++) {
+			for(int x = c0; x <= c1; x++) {
+				max = Math.max(max, grid[y * columns + x]);
+			}
+		}
+		level = max + 1;
+		for(int y = r0; y <= r1; y++) {
+			for(int x = c0; x <= c1; x++) {
+				grid[y * columns + x] = level;
+			}
+		}
+		sequence = 0;
+
+		if(bounds.isEmpty()) {
+			bounds.setBounds(r);
+		} else {
+			bounds.add(r);
+		}
+	}
+
+
+	/**
+	 * @return True if there are no drawings to issue
+	 */
+	boolean isEmpty() {
+		return count == 0;
+	}
+
+
+	/**
+	 * @param x X of the area, in pixels
+	 * @param y Y of the area, in pixels
+	 * @param width Width of the area, in pixels
+	 * @param height Height of the area, in pixels
+	 * @return True if the area can overlap a key added
+	 */
+	boolean intersects(int x, int y, int width, int height) {
+		return !bounds.isEmpty() && bounds.intersects(x, y, width, height);
+	}
+
+
+	/**
+	 * Issues the drawings, grouped by state. The following drawings are
+	 * added to the same batch, with the state set by the previous calls
+	 * @param r Where to issue the drawings
+	 */
+	void flush(@NonNull Renderer r) {
+		for(int i = 0; i < count; i++) {
+			order[i] = i;
+		}
+		sort(0, count);
+
+		float size = Float.NaN;
+		Object a = null, s = null;
+		int c = 0;
+		boolean cSet = false;
+		byte aa = -1;
+		for(int n = 0; n < count; n++) {
+			int i = order[n];
+			if(antiAliases[i] != -1 && antiAliases[i] != aa) {
+				aa = antiAliases[i];
+				r.setAntiAlias(aa == 1);
+			}
+			if(!Float.isNaN(textSizes[i]) &&
+					Float.compare(textSizes[i], size) != 0) {
+				size = textSizes[i];
+				r.setTextSize(size);
+			}
+			if(hasColors[i] && (!cSet || colors[i] != c)) {
+				c = colors[i];
+				cSet = true;
+				r.setColor(c);
+			}
+			if(styles[i] != s) {
+				s = styles[i];
+				r.setPaintStyle((PaintStyle) s);
+			}
+			if(alligns[i] != a) {
+				a = alligns[i];
+				r.setTextAllign((TextAllign) a);
+			}
+
+			area.left = areas[4 * i];
+			area.top = areas[4 * i + 1];
+			area.right = areas[4 * i + 2];
+			area.bottom = areas[4 * i + 3];
+			switch(kinds[i]) {
+			case RECT:
+				r.rect(area);
+				break;
+			case ELLIPSE:
+				r.ellipse(area);
+				break;
+			case TEXT:
+				r.text((String) texts[i], area);
+				break;
+			default:
+				assert false;
+				break;
+			}
+		}
+
+		clear();
+		Arrays.fill(grid, 0, columns * rows, 0);
+	}
+
+
+	@Override
+	public void setTextSize(float textSize) {
+		this.textSize = textSize;
+	}
+
+	@Override
+	public void setTextAllign(@NonNull TextAllign t) {
+		this.allign = t;
+	}
+
+	@Override
+	public void setPaintStyle(@NonNull PaintStyle p) {
+		this.style = p;
+	}
+
+	@Override
+	public void setColor(int argb) {
+		this.color = argb;
+		this.hasColor = true;
+	}
+
+	@Override
+	public void setAntiAlias(boolean aa) {
+		this.antiAlias = (byte) (aa ? 1 : 0);
+	}
+
+	@Override
+	public void rect(@NonNull RectF a) {
+		add(RECT, a, null);
+	}
+
+	@Override
+	public void ellipse(@NonNull RectF a) {
+		add(ELLIPSE, a, null);
+	}
+
+	@Override
+	public void text(@NonNull String s, @NonNull RectF r) {
+		add(TEXT, r, s);
+	}
+
+
+	/** Forgets the drawings */
+	private void clear() {
+		Arrays.fill(texts, 0, count, null);
+		count = 0;
+		bounds.setBounds(0, 0, 0, 0);
+		level = 0;
+		sequence = 0;
+	}
+
+
+	private void add(byte kind, @NonNull RectF a, String text) {
+		if(count == kinds.length) {
+			grow();
+		}
+		int i = count++;
+		kinds[i] = kind;
+		levels[i] = level;
+		sequences[i] = sequence++;
+		textSizes[i] = textSize;
+		alligns[i] = allign;
+		styles[i] = style;
+		colors[i] = color;
+		hasColors[i] = hasColor;
+		antiAliases[i] = antiAlias;
+		areas[4 * i] = a.left;
+		areas[4 * i + 1] = a.top;
+		areas[4 * i + 2] = a.right;
+		areas[4 * i + 3] = a.bottom;
+		texts[i] = text;
+	}
+
+
+	private void grow() {
+		int n = kinds.length * 2;
+		kinds = Arrays.copyOf(kinds, n);
+		levels = Arrays.copyOf(levels, n);
+		sequences = Arrays.copyOf(sequences, n);
+		textSizes = Arrays.copyOf(textSizes, n);
+		alligns = Arrays.copyOf(alligns, n);
+		styles = Arrays.copyOf(styles, n);
+		colors = Arrays.copyOf(colors, n);
+		hasColors = Arrays.copyOf(hasColors, n);
+		antiAliases = Arrays.copyOf(antiAliases, n);
+		areas = Arrays.copyOf(areas, 4 * n);
+		texts = Arrays.copyOf(texts, n);
+		order = new int[n];
+		buffer = new int[n];
+	}
+
+
+	private int column(int x) {
+		return Math.min(columns - 1, Math.max(0, x / CELL));
+	}
+
+	private int row(int y) {
+		return Math.min(rows - 1, Math.max(0, y / CELL));
+	}
+
+
+	/**
+	 * Merge sort of {@link #order} in [{@code from}, {@code to});
+	 * stable, so the equal drawings keep the order of addition
+	 */
+	private void sort(int from, int to) {
+		if(to - from < 2) {
+			return;
+		}
+		int mid = (from + to) >>> 1;
+		sort(from, mid);
+		sort(mid, to);
+		if(compare(order[mid - 1], order[mid]) <= 0) {
+			return;
+		}
+
+		System.arraycopy(order, from, buffer, from, to - from);
+		int i = from, j = mid, k = from;
+		while(i < mid && j < to) {
+			if(compare(buffer[j], buffer[i]) < 0) {
+				order[k++] = buffer[j++];
+			} else {
+				order[k++] = buffer[i++];
+			}
+		}
+		while(i < mid) {
+			order[k++] = buffer[i++];
+		}
+		while(j < to) {
+			order[k++] = buffer[j++];
+		}
+	}
+
+
+	/**
+	 * Order of issue: by level, then by position in the drawings of the key,
+	 * then by state. The keys that do not overlap have the same level, and
+	 * their drawings in the same position set the same state but the
+	 * colors, so the state groups them; see {@code DrawBatchBenchmark}
+	 */
+	private int compare(int a, int b) {
+		int c = Integer.compare(levels[a], levels[b]);
+		if(c == 0) {
+			c = Integer.compare(sequences[a], sequences[b]);
+		}
+		if(c == 0) {
+			c = Byte.compare(antiAliases[a], antiAliases[b]);
+		}
+		if(c == 0) {
+			c = Float.compare(textSizes[a], textSizes[b]);
+		}
+		if(c == 0) {
+			c = Boolean.compare(hasColors[a], hasColors[b]);
+		}
+		if(c == 0) {
+			c = Integer.compare(colors[a], colors[b]);
+		}
+		if(c == 0) {
+			c = Integer.compare(((PaintStyle) styles[a]).ordinal(),
+					((PaintStyle) styles[b]).ordinal());
+		}
+		return c;
+	}
+}
@@ -0,0 +1,333 @@
+package com.macrokeyseditor.components;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import org.eclipse.jdt.annotation.NonNull;
+
+import com.macrokeys.KeyShape;
+import com.macrokeys.MacroKey;
+import com.macrokeys.MacroKeyType;
+import com.macrokeys.rendering.RectF;
+import com.macrokeys.screen.Screen;
+import com.macrokeyseditor.util.ScreenUtil;
+
+/**
+ * Cache of the images of the keys, bounded by a memory budget.
+ * <p>
+ * The images are shared by the keys that look the same: the key of the cache
+ * is the visual state of a {@link MacroKey}. The state of each key is kept
+ * until {@link #invalidate(List)}, so must be called when the keys are edited.
+ * When the budget is exceeded the least recently used images are dropped.
+ * </p>
+ */
+final class KeySpriteCache {
+
+	/** Default memory budget in bytes for the images */
+	static final long DEFAULT_BUDGET = 16 * 1024 * 1024;
+
+	/** Bytes of a pixel of an image */
+	private static final int PIXEL_SIZE = 4;
+
+	/**
+	 * Steps of the offset of a key from the pixel grid: the keys with
+	 * the same offset in steps share the image
+	 */
+	private static final int SUBPIXEL_STEPS = 4;
+
+	/** Images from the least recently used */
+	private final LinkedHashMap<State, BufferedImage> sprites =
+			new LinkedHashMap<>(64, 0.75f, true);
+
+	/** Last state read of each key */
+	private final Map<MacroKey, State> states = new IdentityHashMap<>();
+
+	/** Maximum memory of the images, in bytes */
+	private long budget = DEFAULT_BUDGET;
+
+	/** Memory of the images, in bytes */
+	private long memory = 0;
+
+
+
+	/**
+	 * @param k Key
+	 * @param selected True if {@code k} is selected
+	 * @param screen Screen where {@code k} is rendered
+	 * @return Visual state of {@code k}, as read the last time
+	 * @see #invalidate(List)
+	 */
+	@NonNull State stateOf(@NonNull MacroKey k, boolean selected,
+			@NonNull Screen screen) {
+		State s = states.get(k);
+		if(s == null) {
+			s = new State(k, false, screen);
+			states.put(k, s);
+		}
+		return selected ? s.selected() : s;
+	}
+
+
+	/**
+	 * @param k Key
+	 * @param selected True if {@code k} is selected
+	 * @param screen Screen where {@code k} is rendered
+	 * @return Visual state of {@code k}, read now; not kept
+	 */
+	@NonNull State freshStateOf(@NonNull MacroKey k, boolean selected,
+			@NonNull Screen screen) {
+		return new State(k, selected, screen);
+	}
+
+
+	/**
+	 * @param s State of a key
+	 * @return Image of the key; null if not in the cache
+	 */
+	BufferedImage get(@NonNull State s) {
+		return sprites.get(s);
+	}
+
+
+	/**
+	 * Adds the image of a key; not added if too big for the budget
+	 * @param s State of the key
+	 * @param img Image of the key
+	 */
+	void put(@NonNull State s, @NonNull BufferedImage img) {
+		Objects.requireNonNull(s);
+		Objects.requireNonNull(img);
+
+		long size = sizeOf(img);
+		// A single image must not evict all the others
+		if(!accepts(img.getWidth(), img.getHeight())) {
+			return;
+		}
+
+		BufferedImage old = sprites.put(s, img);
+		if(old != null) {
+			memory -= sizeOf(old);
+		}
+		memory += size;
+		trim();
+	}
+
+
+	/**
+	 * @param width Width of an image, in pixels
+	 * @param height Height of an image, in pixels
+	 * @return True if an image of this size would be added by
+	 * {@link #put(State, BufferedImage)}
+	 */
+	boolean accepts(int width, int height) {
+		return (long) width * height * PIXEL_SIZE <= budget / 4;
+	}
+	
+	
+	/**
+	 * Forgets the state of the given keys, because edited or removed
+	 * @param l Keys
+	 */
+	void invalidate(@NonNull List<MacroKey> l) {
+		for(MacroKey k : l) {
+			State s = states.remove(k);
+			if(s != null) {
+				remove(s);
+				if(s.selected != null) {
+					remove(s.selected);
+				}
+			}
+		}
+	}
+
+
+	/**
+	 * Forgets all the states and the images
+	 */
+	void invalidateAll() {
+		states.clear();
+		sprites.clear();
+		memory = 0;
+	}
+
+
+	/**
+	 * @param budget Maximum memory of the images, in bytes
+	 * @throws IllegalArgumentException If {@code budget} < 0
+	 */
+	void setBudget(long budget) {
+		if(budget < 0) {
+			throw new IllegalArgumentException("Negative budget");
+		}
+		this.budget = budget;
+		trim();
+	}
+
+
+	/**
+	 * @return Memory of the images, in bytes
+	 */
+	long getMemoryUsage() {
+		return memory;
+	}
+
+
+	private void remove(@NonNull State s) {
+		BufferedImage img = sprites.remove(s);
+		if(img != null) {
+			memory -= sizeOf(img);
+		}
+	}
+
+
+	/** Drops the least recently used images until in the budget */
+	private void trim() {
+		Iterator<BufferedImage> it = sprites.values().iterator();
+		while(memory > budget && it.hasNext()) {
+			memory -= sizeOf(it.next());
+			it.remove();
+		}
+	}
+
+
+	private static long sizeOf(@NonNull BufferedImage img) {
+		return (long) img.getWidth() * img.getHeight() * PIXEL_SIZE;
+	}
+
+
+
+	/**
+	 * Properties of a key that change its image. The size is the one of the
+	 * rectangle of pixels of the key: the same size in millimeters can cover
+	 * a pixel more or less depending on the position. Of the position only
+	 * the offset from the pixel grid is included
+	 */
+	static final class State {
+
+		private final KeyShape.Type shape;
+		private final MacroKeyType type;
+		/** Size of the rectangle of pixels of the key */
+		private final int width, height;
+		/** Offset of the key from the pixel grid, in {@link #SUBPIXEL_STEPS} */
+		private final int offsetX, offsetY;
+		private final int colorEdge, colorFill;
+		private final int colorEdgePress, colorFillPress;
+		private final String text;
+		private final boolean isSelected;
+		private final int hash;
+
+		/** Same state but selected; null if not created */
+		private State selected;
+
+
+		private State(@NonNull MacroKey k, boolean selected,
+				@NonNull Screen screen) {
+			RectF a = k.getArea();
+			Rectangle r = ScreenUtil.mmtopx(a, screen);
+			this.shape = k.getShape().getType();
+			this.type = k.getType();
+			this.width = r.width;
+			this.height = r.height;
+			this.offsetX = subpixel(ScreenUtil.mmtopx_X(
+					Math.min(a.left, a.right), screen));
+			this.offsetY = subpixel(ScreenUtil.mmtopx_Y(
+					Math.min(a.top, a.bottom), screen));
+			this.colorEdge = k.getColorEdge();
+			this.colorFill = k.getColorFill();
+			this.colorEdgePress = k.getColorEdgePress();
+			this.colorFillPress = k.getColorFillPress();
+			this.text = k.getText();
+			this.isSelected = selected;
+			this.hash = hash();
+		}
+
+
+		private State(@NonNull State s) {
+			this.shape = s.shape;
+			this.type = s.type;
+			this.width = s.width;
+			this.height = s.height;
+			this.offsetX = s.offsetX;
+			this.offsetY = s.offsetY;
+			this.colorEdge = s.colorEdge;
+			this.colorFill = s.colorFill;
+			this.colorEdgePress = s.colorEdgePress;
+			this.colorFillPress = s.colorFillPress;
+			this.text = s.text;
+			this.isSelected = true;
+			this.hash = hash();
+		}
+
+
+		/**
+		 * @return Hash of the fields; does not allocate
+		 */
+		private int hash() {
+			int h = Objects.hashCode(shape);
+			h = h * 31 + Objects.hashCode(type);
+			h = h * 31 + width;
+			h = h * 31 + height;
+			h = h * 31 + offsetX;
+			h = h * 31 + offsetY;
+			h = h * 31 + colorEdge;
+			h = h * 31 + colorFill;
+			h = h * 31 + colorEdgePress;
+			h = h * 31 + colorFillPress;
+			h = h * 31 + Objects.hashCode(text);
+			return h * 31 + (isSelected ? 1 : 0);
+		}
+
+
+		/**
+		 * @param px Coordinate in pixels
+		 * @return Offset of {@code px} from the pixel grid, in
+		 * {@link #SUBPIXEL_STEPS}
+		 */
+		private static int subpixel(float px) {
+			return (int) ((px - (float) Math.floor(px)) * SUBPIXEL_STEPS);
+		}
+
+
+		/**
+		 * @return Same state but selected
+		 */
+		private State selected() {
+			if(isSelected) {
+				return this;
+			} else if(selected == null) {
+				selected = new State(this);
+			}
+			return selected;
+		}
+
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+
+		@Override
+		public boolean equals(Object o) {
+			if(this == o) {
+				return true;
+			} else if(!(o instanceof State)) {
+				return false;
+			}
+			State s = (State) o;
+			return hash == s.hash && shape == s.shape && type == s.type &&
+					width == s.width && height == s.height &&
+					offsetX == s.offsetX && offsetY == s.offsetY &&
+					colorEdge == s.colorEdge && colorFill == s.colorFill &&
+					colorEdgePress == s.colorEdgePress &&
+					colorFillPress == s.colorFillPress &&
+					isSelected == s.isSelected && Objects.equals(text, s.text);
+		}
+	}
+}
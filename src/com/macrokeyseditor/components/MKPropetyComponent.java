@@ -18,6 +18,7 @@ import com.macrokeys.MacroKey;
 import com.macrokeys.MacroKeyType;
 import com.macrokeys.MacroScreen;
 import com.macrokeys.MacroSetup;
+import com.macrokeyseditor.MacroScreenChange;
 import com.macrokeyseditor.MacroScreenEditor;
 import com.macrokeyseditor.MacroScreenEditorListener;
 import com.macrokeyseditor.MacroSetupEditor;
@@ -35,7 +36,10 @@ import java.awt.event.ActionListener;
 import java.awt.event.ItemEvent;
 import java.awt.event.ItemListener;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Set;
 
 /** Component for showing and editing the properties of a {@link MacroKey} */
 public final class MKPropetyComponent extends JPanel {
@@ -62,6 +66,10 @@ public final class MKPropetyComponent extends JPanel {
 	/** Currently selected keys; null if none */
 	private final List<MacroKey> macroKeys = new ArrayList<>();
 	
+	/** Instances of {@link #macroKeys}, for a fast membership test */
+	private final Set<MacroKey> macroKeysSet =
+			Collections.newSetFromMap(new IdentityHashMap<>());
+	
 	private final MacroSetupEditor setupEditor;
 	
 	private final MacroScreenEditorListener editList = 
@@ -86,7 +94,7 @@ public final class MKPropetyComponent extends JPanel {
 		@Override
 		public void macroKeyEdited(@NonNull MacroScreen ms,
 				@NonNull List<MacroKey> mk, @NonNull String property) {
-			if(atLeastOneInCommon(mk, macroKeys)) {
+			if(atLeastOneInCommon(mk, macroKeysSet)) {
 				// Copy the current selection list, if you directly use macroKeys there
 				// can be concurrency problems (macroKeys is modified)
 				List<MacroKey> copy = new ArrayList<>(macroKeys);
@@ -105,22 +113,34 @@ public final class MKPropetyComponent extends JPanel {
 		public void swapMacroKeys(@NonNull MacroKey a, @NonNull MacroKey b) {
 			// Nothing
 		}
+		
+		@Override
+		public void macroScreenChanged(@NonNull MacroScreenChange c) {
+			if(c.isSelectionChanged()) {
+				updateMacroKey(c.getSelection());
+			} else {
+				for(String p : c.getEditedProperties()) {
+					if(atLeastOneInCommon(c.getEdited(p), macroKeysSet)) {
+						updateMacroKey(new ArrayList<>(macroKeys));
+						return;
+					}
+				}
+			}
+		}
 	};
 
 	
 	/**
-	* Indicates whether the two lists have at least one element in common.
-	* @param l First list
-	* @param The second list
+	* Indicates whether the list and the set have at least one element in common.
+	* @param l List
+	* @param s Set of instances
 	* @return True if there is at least one element in common, False otherwise
 	*/
 	private static boolean atLeastOneInCommon(@NonNull List<MacroKey> l,
-			@NonNull List<MacroKey> ll) {
-		for(MacroKey m : ll) {
-			for(MacroKey mm : l) {
-				if(m == mm) {
-					return true;
-				}
+			@NonNull Set<MacroKey> s) {
+		for(MacroKey m : l) {
+			if(s.contains(m)) {
+				return true;
 			}
 		}
 		return false;
@@ -157,6 +177,13 @@ public final class MKPropetyComponent extends JPanel {
 					@NonNull MacroScreenEditor e) {
 				
 			}
+			
+			@Override
+			public void macroScreensReplaced(
+					@NonNull List<MacroScreenEditor> old,
+					@NonNull List<MacroScreenEditor> actual) {
+				// The selection is notified apart
+			}
 		});
 		
 		// Handles the component's events with event {@link ActionListener}
@@ -313,8 +340,10 @@ public final class MKPropetyComponent extends JPanel {
         
 		// Update the field of the keys actually selected
         this.macroKeys.clear();
+        this.macroKeysSet.clear();
         if(l != null) {
         	this.macroKeys.addAll(l);
+        	this.macroKeysSet.addAll(l);
         }
         
         this.setVisible(b);
@@ -2,21 +2,32 @@ package com.macrokeyseditor.components;
 
 import java.awt.Color;
 import java.awt.Font;
-import java.awt.FontMetrics;
 import java.awt.Graphics;
 import java.awt.Graphics2D;
+import java.awt.GraphicsConfiguration;
 import java.awt.Rectangle;
 import java.awt.RenderingHints;
 import java.awt.TexturePaint;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
 import java.awt.event.MouseEvent;
 import java.awt.event.MouseListener;
 import java.awt.event.MouseMotionListener;
 import java.awt.image.BufferedImage;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Predicate;
 
 import javax.swing.JComponent;
+import javax.swing.Timer;
 
 import org.eclipse.jdt.annotation.NonNull;
 
@@ -30,6 +41,7 @@ import com.macrokeys.rendering.TextAllign;
 import com.macrokeys.screen.Screen;
 import com.macrokeys.screen.ScreenException;
 import com.macrokeys.screen.ScreenUtility;
+import com.macrokeyseditor.MacroScreenChange;
 import com.macrokeyseditor.MacroScreenEditor;
 import com.macrokeyseditor.MacroScreenEditorListener;
 import com.macrokeyseditor.Mask;
@@ -37,16 +49,41 @@ import com.macrokeyseditor.MasksManager;
 import com.macrokeyseditor.MasksManager.MasksManagerListener;
 import com.macrokeyseditor.fur.ModifyAction;
 import com.macrokeyseditor.util.DesktopScreen;
+import com.macrokeyseditor.util.ScreenUtil;
 import com.macrokeyseditor.util.Size;
-import com.macrokeyseditor.util.ColorUtil;
+import com.macrokeyseditor.util.ColorCache;
 
 /**
  * Componente per il rendering dei tasti
  */
 public class MKRenderingComponent extends JComponent {
 	
-	/** Paint for the checkboard pattern for the background; never null */
-	private static final TexturePaint checkboardPattern;
+	/** Side of {@link #checkboardTile}, in pixels; multiple of the pattern */
+	private static final int CHECKBOARD_TILE = 200;
+	
+	/**
+	 * Checkboard pattern for the background, drawn as image: filling with
+	 * a {@link TexturePaint} allocates at each frame; never null
+	 */
+	private static final BufferedImage checkboardTile;
+	
+	/**
+	 * Pixels added around the area of a moved key in the repaint,
+	 * for the edge and the anti-aliasing
+	 */
+	private static final int DIRTY_MARGIN = 3;
+	
+	/** Pixels around the area of a key in its image, for the edge */
+	private static final int SPRITE_MARGIN = DIRTY_MARGIN;
+	
+	/** Minimum number of keys of a screen rendered by {@link #frames} */
+	private static final int ASYNC_MIN_KEYS = 1000;
+	
+	/** Default delay of the full quality rendering after an interaction, in ms */
+	private static final int DEFAULT_IDLE_DELAY = 250;
+	
+	/** Default text size under which the texts are bars in preview, in pixels */
+	private static final int DEFAULT_PLACEHOLDER_TEXT_SIZE = 10;
 	
 	/** For the move of keys */
 	private final MacroKeyDragger keyDragger = new MacroKeyDragger();
@@ -60,8 +97,58 @@ public class MKRenderingComponent extends JComponent {
 	/** Mask manager */
 	private final MasksManager maskManager;
 	
-	/** MacroScreen renderer */
-	private Painter painter;
+	/** Renders the keys in the EDT */
+	private final KeysRenderer keyRenderer = new KeysRenderer();
+	
+	/** Tests the selection of the keys of {@link #screenEdit} */
+	private final Predicate<MacroKey> selection;
+	
+	/** Maximum memory of the images of the keys of each thread, in bytes */
+	private long spriteBudget = KeySpriteCache.DEFAULT_BUDGET;
+	
+	/**
+	 * Rendering calls of the background of the screen of {@link #screenEdit},
+	 * tagged with the version of the editor
+	 */
+	private final CommandBuffer backgroundCommands = new CommandBuffer();
+	
+	/** Area of the background recorded in {@link #backgroundCommands} */
+	private final RectF backgroundCommandsArea = new RectF();
+	
+	// Reused at each frame, to not allocate while painting
+	private final Rectangle clipArea = new Rectangle();
+	private final Rectangle bounds = new Rectangle();
+	private final RectF backgroundArea = new RectF();
+	private final RectF clipMm = new RectF();
+	private final List<MacroKey> visibleKeys = new ArrayList<>();
+	private final Size maskSize = new Size();
+	
+	/** Index of the keys areas for the hit-testing */
+	private final MacroKeyGrid keyGrid;
+	
+	/**
+	 * Background and keys not moved, rendered at the start of a drag;
+	 * null if not rendered
+	 */
+	private BufferedImage staticLayer;
+	
+	/** Renders the big screens in a background thread */
+	private final FrameRenderer frames = new FrameRenderer();
+	
+	/** True if the big screens are rendered by {@link #frames} */
+	private boolean asyncRendering = true;
+	
+	/**
+	 * True while the user interacts: rendering without anti alias and
+	 * with bars for the small texts
+	 */
+	private boolean preview = false;
+	
+	/** Text size under which the texts are bars in preview, in pixels */
+	private int placeholderTextSize = DEFAULT_PLACEHOLDER_TEXT_SIZE;
+	
+	/** Ends the preview when the user stops to interact */
+	private final Timer idleTimer;
 	
 	
 	
@@ -77,7 +164,15 @@ public class MKRenderingComponent extends JComponent {
 	    g.fillRect(10, 0, 20, 10);
 	    g.fillRect(0, 10, 10, 20);
 	    Rectangle r = new Rectangle(0, 0, 20, 20);
-	    checkboardPattern = new TexturePaint(bi, r);
+	    TexturePaint checkboardPattern = new TexturePaint(bi, r);
+	    g.dispose();
+	    
+	    checkboardTile = new BufferedImage(CHECKBOARD_TILE, CHECKBOARD_TILE,
+	    		BufferedImage.TYPE_INT_RGB);
+	    g = checkboardTile.createGraphics();
+	    g.setPaint(checkboardPattern);
+	    g.fillRect(0, 0, CHECKBOARD_TILE, CHECKBOARD_TILE);
+	    g.dispose();
 	}
 	
 	
@@ -88,12 +183,35 @@ public class MKRenderingComponent extends JComponent {
 	 */
 	public MKRenderingComponent(@NonNull MacroScreenEditor screenEdit, @NonNull MasksManager maskManager)
 			throws ScreenException {
+		this(screenEdit, maskManager, new DesktopScreen());
+	}
+	
+	
+	/**
+	 * @param screenEdit Editor for the {@link MacroScreen} managed by this component
+	 * @param maskManager Mask manager
+	 * @param screen Screen where the keys are shown, eg. a fixed one in the tests
+	 */
+	MKRenderingComponent(@NonNull MacroScreenEditor screenEdit, @NonNull MasksManager maskManager,
+			@NonNull Screen screen) {
 		Objects.requireNonNull(screenEdit);
 		Objects.requireNonNull(maskManager);
+		Objects.requireNonNull(screen);
 		
-		this.screen = new DesktopScreen();
+		this.screen = screen;
 		this.screenEdit = screenEdit;
 		this.maskManager = maskManager;
+		this.keyGrid = new MacroKeyGrid(screenEdit);
+		this.selection = screenEdit::isSelected;
+		
+		idleTimer = new Timer(DEFAULT_IDLE_DELAY, new ActionListener() {
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				preview = false;
+				repaint();
+			}
+		});
+		idleTimer.setRepeats(false);
 		
 		screenEdit.addEditEventListener(new MacroScreenEditorListener() {
 			
@@ -104,29 +222,46 @@ public class MKRenderingComponent extends JComponent {
 			
 			@Override
 			public void macroScreenEdited(@NonNull MacroScreen m) {
+				interaction(false);
 				stopOperation(true);
 			}
 			
 			@Override
 			public void macroKeyRemoved(@NonNull MacroScreen ms,
 					@NonNull List<MacroKey> mk) {
+				invalidate(mk);
+				interaction(false);
 				stopOperation(true);
 			}
 			
 			@Override
 			public void macroKeyEdited(@NonNull MacroScreen ms,
 					@NonNull List<MacroKey> mk, @NonNull String property) {
+				invalidate(mk);
+				interaction(false);
 				stopOperation(true);
 			}
 			
 			@Override
 			public void macroKeyAdded(@NonNull MacroScreen ms,
 					@NonNull List<MacroKey> mk) {
+				interaction(false);
 				stopOperation(true);
 			}
 
 			@Override
 			public void swapMacroKeys(@NonNull MacroKey a, @NonNull MacroKey b) {
+				interaction(false);
+				stopOperation(true);
+			}
+
+			@Override
+			public void macroScreenChanged(@NonNull MacroScreenChange c) {
+				invalidate(c.getRemoved());
+				for(String p : c.getEditedProperties()) {
+					invalidate(c.getEdited(p));
+				}
+				interaction(false);
 				stopOperation(true);
 			}
 			
@@ -143,6 +278,7 @@ public class MKRenderingComponent extends JComponent {
 			@Override
 			public void maskEdited(Mask mask, String property, Object value) {
 				if(maskManager.getSelected() == mask) {
+					staticLayer = null;
 					repaint();
 				}
 			}
@@ -154,6 +290,7 @@ public class MKRenderingComponent extends JComponent {
 
 			@Override
 			public void maskSelectedChanged(Mask m) {
+				staticLayer = null;
 				repaint();
 			}
 		});
@@ -187,7 +324,9 @@ public class MKRenderingComponent extends JComponent {
 				
 				if(e.getButton() == MouseEvent.BUTTON1) {
 					assert screen != null;
-					MacroKey newSel = s.keyAt(e.getX(), e.getY(), screen);
+					float x = ScreenUtility.pxtomm_X(e.getX(), screen);
+					float y = ScreenUtility.pxtomm_Y(e.getY(), screen);
+					MacroKey newSel = keyGrid.keyAt(x, y);
 					if(newSel == null) {
 						screenEdit.deselect();
 					} else {
@@ -223,44 +362,353 @@ public class MKRenderingComponent extends JComponent {
 		
 		Graphics2D g = (Graphics2D) gg;
 		MacroScreen s = screenEdit.getMacroScreen();
-		List<MacroKey> sel = screenEdit.getMacroKeySelected();
 		
-		Rectangle clip = getBounds();
+		keyRenderer.setFont(getFont());
+		keyRenderer.setQuality(preview, placeholderTextSize);
+		bounds.setBounds(0, 0, getWidth(), getHeight());
 		
-		g.setPaint(checkboardPattern);
-		g.fillRect(0, 0, clip.width, clip.height);
+		// Only the clip is painted: can be a part of the component
+		// Unchanged if there is no clip
+		clipArea.setBounds(0, 0, getWidth(), getHeight());
+		Rectangle clip = g.getClipBounds(clipArea);
 		
-		
-		if(s != null) {
-			// Rendering for the mask
-			Mask mask = maskManager.getSelected();
-			RectF background;
-			if(mask == null) {
-				background = new RectF(0, 0, clip.width, clip.height);
-			} else {
-				Size maskSize = mask.getScreenSize(screen);
-				if(s.getOrientation() == Orientation.Horizontal) {
-					background = new RectF(0, 0, maskSize.width, maskSize.height);
-				} else { // Using the vertical orietation also in the Rotate case
-					background = new RectF(0, 0, maskSize.height, maskSize.width);
-				}
+		if(s != null && keyDragger.isDragging() &&
+				getWidth() > 0 && getHeight() > 0) {
+			// The keys not moved are rendered once for all the drag
+			if(staticLayer == null || staticLayer.getWidth() != getWidth() ||
+					staticLayer.getHeight() != getHeight()) {
+				staticLayer = renderStaticLayer();
 			}
-			
-			
-			if(painter == null) {
-				painter = new Painter(g, getFont());
-			} else {
-				painter.reset(g);
+			g.drawImage(staticLayer, 0, 0, null);
+			// The moved keys change area at each frame
+			MacroScreen m = keyDragger.movingScreen;
+			keyRenderer.takeTextOverflow();
+			keyRenderer.renderKeys(g, m, m.getKeys(), selection,
+					backgroundOf(m), true, bounds);
+			keyDragger.textOverflow = keyRenderer.takeTextOverflow();
+		} else if(s != null && asyncRendering &&
+				s.getKeys().size() >= ASYNC_MIN_KEYS &&
+				getWidth() > 0 && getHeight() > 0) {
+			// Only the last frame rendered is drawn, the EDT does not wait
+			frames.request(s);
+			if(!frames.paint(g)) {
+				paintCheckboard(g, clip);
 			}
+		} else {
+			paintCheckboard(g, clip);
+			if(s != null) {
+				renderScreen(g, s, clip);
+			}
+		}
+	}
+	
+	
+	/**
+	 * Paints the checkboard pattern of the background, on the tiles
+	 * of {@link #checkboardTile} that touch an area
+	 * @param g Graphics to use
+	 * @param r Area to paint
+	 */
+	private static void paintCheckboard(@NonNull Graphics2D g, @NonNull Rectangle r) {
+		int t = CHECKBOARD_TILE;
+		int left = Math.floorDiv(r.x, t) * t;
+		int top = Math.floorDiv(r.y, t) * t;
+		for(int y = top; y < r.y + r.height; y += t) {
+			for(int x = left; x < r.x + r.width; x += t) {
+				g.drawImage(checkboardTile, x, y, null);
+			}
+		}
+	}
+	
+	
+	/**
+	 * @param s Screen to render
+	 * @return Area of the selected mask, in pixels; reused at the next call
+	 */
+	private RectF backgroundOf(@NonNull MacroScreen s) {
+		RectF r = backgroundArea;
+		r.left = 0;
+		r.top = 0;
+		Mask mask = maskManager.getSelected();
+		if(mask == null) {
+			r.right = getWidth();
+			r.bottom = getHeight();
+		} else {
+			mask.getScreenSize(screen, maskSize);
+			if(s.getOrientation() == Orientation.Horizontal) {
+				r.right = maskSize.width;
+				r.bottom = maskSize.height;
+			} else { // Using the vertical orietation also in the Rotate case
+				r.right = maskSize.height;
+				r.bottom = maskSize.width;
+			}
+		}
+		return r;
+	}
+	
+	
+	/**
+	 * Notifies an interaction of the user: the following frames are previews
+	 * until the user stops to interact for the idle delay
+	 * @param drag True for a drag, always rendered in preview; false for an
+	 * edit, rendered in preview only if following another interaction
+	 */
+	private void interaction(boolean drag) {
+		if(drag || idleTimer.isRunning()) {
+			preview = true;
+		}
+		idleTimer.restart();
+	}
+	
+	
+	/**
+	 * Renders a {@link MacroScreen} in the area of the selected mask
+	 * @param g Graphics to use
+	 * @param s Screen to render
+	 * @param clip Area to render, in pixels; null for all. Used only for the
+	 * screen of {@link #screenEdit}, indexed by {@link #keyGrid}
+	 */
+	private void renderScreen(@NonNull Graphics2D g, @NonNull MacroScreen s,
+			Rectangle clip) {
+		renderBackground(g, s);
+		
+		if(clip != null && s == screenEdit.getMacroScreen()) {
+			// Only the keys whose image can touch the clip
+			int m = SPRITE_MARGIN;
+			clipMm.left = ScreenUtility.pxtomm_X(clip.x - m, screen);
+			clipMm.top = ScreenUtility.pxtomm_Y(clip.y - m, screen);
+			clipMm.right = ScreenUtility.pxtomm_X(clip.x + clip.width + m, screen);
+			clipMm.bottom = ScreenUtility.pxtomm_Y(clip.y + clip.height + m, screen);
 			
-			
-			s.render(painter,
-					screen,
-					background,
-					sel);
+			visibleKeys.clear();
+			keyGrid.keysIn(clipMm, visibleKeys);
+			try {
+				keyRenderer.renderKeys(g, s, visibleKeys, selection,
+						backgroundOf(s), false, bounds);
+			} finally {
+				visibleKeys.clear();
+			}
+		} else {
+			keyRenderer.renderKeys(g, s, s.getKeys(), selection,
+					backgroundOf(s), false, bounds);
 		}
 	}
-
+	
+	
+	/**
+	 * Renders the background of a {@link MacroScreen}; the one of
+	 * {@link #screenEdit} is replayed from {@link #backgroundCommands} while
+	 * the version of the editor and the area do not change
+	 * @param g Graphics to use
+	 * @param s Screen to render
+	 */
+	private void renderBackground(@NonNull Graphics2D g, @NonNull MacroScreen s) {
+		RectF area = backgroundOf(s);
+		if(s != screenEdit.getMacroScreen()) {
+			keyRenderer.renderBackground(keyRenderer.painterOf(g), s, area);
+			return;
+		}
+		
+		CommandBuffer b = backgroundCommands;
+		if(b.getVersion() != screenEdit.getVersion() ||
+				!sameArea(backgroundCommandsArea, area)) {
+			b.clear();
+			keyRenderer.renderBackground(b, s, area);
+			b.setVersion(screenEdit.getVersion());
+			copyArea(area, backgroundCommandsArea);
+		}
+		b.replay(keyRenderer.painterOf(g));
+	}
+	
+	
+	/**
+	 * Forgets the images and the rendering calls of the given keys,
+	 * because edited or removed
+	 * @param l Keys
+	 */
+	private void invalidate(@NonNull List<MacroKey> l) {
+		keyRenderer.invalidate(l);
+	}
+	
+	
+	private static boolean sameArea(@NonNull RectF a, @NonNull RectF b) {
+		return a.left == b.left && a.top == b.top &&
+				a.right == b.right && a.bottom == b.bottom;
+	}
+	
+	
+	private static void copyArea(@NonNull RectF src, @NonNull RectF dst) {
+		dst.left = src.left;
+		dst.top = src.top;
+		dst.right = src.right;
+		dst.bottom = src.bottom;
+	}
+	
+	
+	/**
+	 * Enables the rendering of the screens with many keys in a background
+	 * thread: the input is handled while a frame renders, and the frame
+	 * shown can be behind the last edits. Enabled by default
+	 * @param async True to enable
+	 */
+	public void setAsyncRendering(boolean async) {
+		if(this.asyncRendering != async) {
+			this.asyncRendering = async;
+			if(!async) {
+				frames.stop();
+			}
+			repaint();
+		}
+	}
+	
+	
+	/**
+	 * @return True if the screens with many keys are rendered in a
+	 * background thread
+	 * @see #setAsyncRendering(boolean)
+	 */
+	public boolean isAsyncRendering() {
+		return asyncRendering;
+	}
+	
+	
+	/**
+	 * Sets the time without interactions after which the screen is rendered
+	 * again in full quality
+	 * @param ms Delay in milliseconds
+	 * @throws IllegalArgumentException If {@code ms} < 0
+	 */
+	public void setIdleDelay(int ms) {
+		if(ms < 0) {
+			throw new IllegalArgumentException("Negative delay");
+		}
+		idleTimer.setInitialDelay(ms);
+		idleTimer.setDelay(ms);
+	}
+	
+	
+	/**
+	 * @return Time without interactions after which the screen is rendered
+	 * again in full quality, in milliseconds
+	 */
+	public int getIdleDelay() {
+		return idleTimer.getInitialDelay();
+	}
+	
+	
+	/**
+	 * Sets the text size under which the texts are drawn as bars while
+	 * the user interacts
+	 * @param px Text size in pixels; 0 to always draw the texts
+	 * @throws IllegalArgumentException If {@code px} < 0
+	 */
+	public void setPlaceholderTextSize(int px) {
+		if(px < 0) {
+			throw new IllegalArgumentException("Negative size");
+		}
+		placeholderTextSize = px;
+	}
+	
+	
+	/**
+	 * @return Text size under which the texts are drawn as bars while
+	 * the user interacts, in pixels
+	 */
+	public int getPlaceholderTextSize() {
+		return placeholderTextSize;
+	}
+	
+	
+	@Override
+	public void removeNotify() {
+		super.removeNotify();
+		frames.stop();
+		idleTimer.stop();
+		preview = false;
+	}
+	
+	
+	/**
+	 * Sets the maximum memory of the cached images of the keys
+	 * @param budget Maximum memory in bytes
+	 * @throws IllegalArgumentException If {@code budget} < 0
+	 */
+	public void setSpriteBudget(long budget) {
+		keyRenderer.sprites.setBudget(budget);
+		spriteBudget = budget;
+	}
+	
+	
+	/**
+	 * @return Memory of the cached images of the keys, in bytes
+	 */
+	public long getSpriteMemoryUsage() {
+		return keyRenderer.sprites.getMemoryUsage() + frames.getSpriteMemoryUsage();
+	}
+	
+	
+	/**
+	 * Renders the background and the keys not moved by {@link #keyDragger}
+	 * @return Rendered layer, of the size of this component
+	 */
+	private BufferedImage renderStaticLayer() {
+		int w = getWidth();
+		int h = getHeight();
+		GraphicsConfiguration gc = getGraphicsConfiguration();
+		BufferedImage img = gc == null ?
+				new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB) :
+				gc.createCompatibleImage(w, h);
+		
+		Graphics2D g = img.createGraphics();
+		try {
+			paintCheckboard(g, new Rectangle(0, 0, w, h));
+			renderScreen(g, keyDragger.staticScreen, null);
+		} finally {
+			g.dispose();
+		}
+		return img;
+	}
+	
+	
+	/**
+	 * Creates a {@link MacroScreen} with the properties of another,
+	 * used to render only some keys
+	 * @param s Screen to copy
+	 * @param keys Keys of the created screen
+	 * @param background True to render the background of {@code s},
+	 * false for a transparent background
+	 * @return Created screen
+	 */
+	private static MacroScreen copyScreen(@NonNull MacroScreen s,
+			@NonNull List<MacroKey> keys, boolean background) {
+		MacroScreen c = new MacroScreen();
+		copyProperties(s, c, background);
+		c.getKeys().addAll(keys);
+		return c;
+	}
+	
+	
+	/**
+	 * Copies the properties of a {@link MacroScreen}, but not the keys
+	 * @param s Screen to copy
+	 * @param c Screen to set
+	 * @param background True to copy the background of {@code s},
+	 * false for a transparent background
+	 */
+	private static void copyProperties(@NonNull MacroScreen s,
+			@NonNull MacroScreen c, boolean background) {
+		c.setOrientation(s.getOrientation());
+		c.setSwipeType(s.getSwipeType());
+		if(background) {
+			c.setBackgroundColor(s.getBackgroundColor());
+			c.setBackgroundText(s.getBackgroundText());
+		} else {
+			c.setBackgroundColor(0);
+			c.setBackgroundText("");
+		}
+	}
+	
+	
 	/**
 	 * Permits to interrupt the input operations (eg. moving a key)
 	 * @param refresh False the UI is not updated for this operation. Manual updated may be necessary
@@ -279,6 +727,323 @@ public class MKRenderingComponent extends JComponent {
 	
 	
 	
+	/**
+	 * Rendering calls of a key, with the parameters used to record them
+	 */
+	private static final class KeyCommands {
+		
+		final CommandBuffer commands = new CommandBuffer();
+		
+		/** Selection of the key when recorded */
+		boolean selected;
+		
+		/** Area of the background when recorded */
+		final RectF area = new RectF();
+	}
+	
+	
+	
+	/**
+	 * Renders the keys through their images, see {@link KeySpriteCache}; the
+	 * keys without an image are drawn through a {@link DrawBatch}. Keeps
+	 * caches not thread safe: each thread that renders uses its own
+	 */
+	private final class KeysRenderer {
+		
+		/** Images of the keys */
+		final KeySpriteCache sprites = new KeySpriteCache();
+		
+		/** Groups by state the drawings of the keys without an image */
+		private final DrawBatch batch = new DrawBatch();
+		
+		/**
+		 * Rendering calls of each key; removed when the key is edited,
+		 * see {@link #invalidate(List)}
+		 */
+		private final Map<MacroKey, KeyCommands> keyCommands =
+				new IdentityHashMap<>();
+		
+		/** Screen with a transparent background, to render a single key */
+		private final MacroScreen keyScreen = new MacroScreen();
+		
+		/**
+		 * Selection passed with {@link #keyScreen}: contains at most the
+		 * rendered key, so the selection test of the library is constant
+		 */
+		private final List<MacroKey> keySelection = new ArrayList<>(1);
+		
+		/** Screen without keys, to render the background */
+		private final MacroScreen backgroundScreen = new MacroScreen();
+		
+		/** Reused at each key, to not allocate while painting */
+		private final Rectangle keyArea = new Rectangle();
+		
+		/** Renderer of the keys; null if not created */
+		private Painter painter;
+		
+		/** Font of the images in {@link #sprites} */
+		private Font font;
+		
+		/**
+		 * True to render without anti alias and with bars for the small
+		 * texts, and to not keep the images
+		 */
+		private boolean preview;
+		
+		/** Text size under which the texts are bars in preview, in pixels */
+		private int placeholderTextSize = DEFAULT_PLACEHOLDER_TEXT_SIZE;
+		
+		/** Copy rendered by {@link #renderCopy(MacroScreen)}; null if none */
+		private MacroScreen copy;
+		
+		
+		
+		/**
+		 * @param f Font of the texts; the images of the keys contain the text
+		 */
+		void setFont(Font f) {
+			if(font != f) {
+				font = f;
+				sprites.invalidateAll();
+				painter = null;
+			}
+		}
+		
+		
+		/**
+		 * @param preview True to render without anti alias and with bars for
+		 * the small texts
+		 * @param placeholderTextSize Text size under which the texts are bars
+		 */
+		void setQuality(boolean preview, int placeholderTextSize) {
+			this.preview = preview;
+			this.placeholderTextSize = placeholderTextSize;
+		}
+		
+		
+		/**
+		 * @param g Graphics to use
+		 * @return Renderer on {@code g}
+		 */
+		Painter painterOf(@NonNull Graphics2D g) {
+			if(painter == null) {
+				painter = new Painter(g, font);
+			} else {
+				painter.reset(g);
+			}
+			painter.setPreview(preview, placeholderTextSize);
+			return painter;
+		}
+		
+		
+		/**
+		 * @return Most pixels drawn by a text out of the area of its key,
+		 * since the previous call; 0 if none
+		 */
+		int takeTextOverflow() {
+			if(painter == null) {
+				return 0;
+			}
+			int o = painter.textOverflow;
+			painter.textOverflow = 0;
+			return o;
+		}
+		
+		
+		/**
+		 * Renders the background of a {@link MacroScreen}
+		 * @param r Renderer to use
+		 * @param s Screen to render
+		 * @param area Area of the selected mask, in pixels
+		 */
+		void renderBackground(@NonNull Renderer r, @NonNull MacroScreen s,
+				@NonNull RectF area) {
+			copyProperties(s, backgroundScreen, true);
+			backgroundScreen.render(r,
+					screen,
+					area,
+					Collections.<MacroKey>emptyList());
+		}
+		
+		
+		/**
+		 * Renders keys of a {@link MacroScreen}, through {@link #sprites}.
+		 * The keys without an image are drawn through {@link #batch}.
+		 * The selection is tested in constant time for each key: a frame
+		 * costs the same whatever the selection size
+		 * @param g Graphics to use
+		 * @param s Screen of the keys
+		 * @param keys Keys to render, in rendering order
+		 * @param selected Tests if a key of {@code s} is selected
+		 * @param background Area of the selected mask, in pixels
+		 * @param moving True if the area of the keys is changing: their state
+		 * is not kept in {@link #sprites}
+		 * @param bounds Area of {@code g} to render, in pixels; the keys
+		 * outside are skipped
+		 */
+		void renderKeys(@NonNull Graphics2D g, @NonNull MacroScreen s,
+				@NonNull List<MacroKey> keys, @NonNull Predicate<MacroKey> selected,
+				@NonNull RectF background, boolean moving, @NonNull Rectangle bounds) {
+			boolean batching = false;
+			// Indexed, not to allocate an iterator at each frame
+			for(int i = 0; i < keys.size(); i++) {
+				MacroKey k = keys.get(i);
+				Rectangle r = ScreenUtil.mmtopx(k.getArea(), screen, keyArea);
+				int x = r.x - SPRITE_MARGIN;
+				int y = r.y - SPRITE_MARGIN;
+				int w = r.width + 2 * SPRITE_MARGIN;
+				int h = r.height + 2 * SPRITE_MARGIN;
+				if(x >= bounds.x + bounds.width || y >= bounds.y + bounds.height ||
+						x + w <= bounds.x || y + h <= bounds.y) {
+					continue;
+				}
+				
+				boolean sel = selected.test(k);
+				KeySpriteCache.State st = moving ?
+						sprites.freshStateOf(k, sel, screen) :
+						sprites.stateOf(k, sel, screen);
+				BufferedImage img = sprites.get(st);
+				if(img == null) {
+					if(r.width <= 0 || r.height <= 0 || !sprites.accepts(w, h) ||
+							preview) {
+						// Not cached, as the previews: drawn with the other keys
+						// not cached
+						if(!batching) {
+							batch.begin(bounds.x + bounds.width,
+									bounds.y + bounds.height);
+							batching = true;
+						}
+						r.grow(SPRITE_MARGIN, SPRITE_MARGIN);
+						batch.beginKey(r);
+						renderKey(batch, s, k, sel, background, moving);
+						continue;
+					}
+					
+					img = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
+					Graphics2D ig = img.createGraphics();
+					try {
+						ig.translate(-x, -y);
+						renderKey(painterOf(ig), s, k, sel, background, moving);
+					} finally {
+						ig.dispose();
+					}
+					sprites.put(st, img);
+				}
+				// The keys in the batch under this image must be drawn before
+				if(batching && batch.intersects(x, y, img.getWidth(), img.getHeight())) {
+					batch.flush(painterOf(g));
+				}
+				g.drawImage(img, x, y, null);
+			}
+			if(batching && !batch.isEmpty()) {
+				batch.flush(painterOf(g));
+			}
+		}
+		
+		
+		/**
+		 * Renders a single key, without the background. The rendering calls of
+		 * a key not moving are kept in {@link #keyCommands} and replayed
+		 * until the key is edited
+		 * @param r Renderer to use
+		 * @param s Screen of the key
+		 * @param k Key to render
+		 * @param sel True if {@code k} is selected
+		 * @param background Area of the selected mask, in pixels
+		 * @param moving True if the area of {@code k} is changing
+		 */
+		private void renderKey(@NonNull Renderer r, @NonNull MacroScreen s,
+				@NonNull MacroKey k, boolean sel, @NonNull RectF background,
+				boolean moving) {
+			if(moving) {
+				renderWithLibrary(r, s, k, sel, background);
+				return;
+			}
+			
+			KeyCommands c = keyCommands.get(k);
+			if(c == null) {
+				c = new KeyCommands();
+				keyCommands.put(k, c);
+			}
+			if(c.commands.getVersion() < 0 || c.selected != sel ||
+					!sameArea(c.area, background)) {
+				c.commands.clear();
+				renderWithLibrary(c.commands, s, k, sel, background);
+				// Any version: the commands are removed when the key is edited
+				c.commands.setVersion(0);
+				c.selected = sel;
+				copyArea(background, c.area);
+			}
+			c.commands.replay(r);
+		}
+		
+		
+		/**
+		 * Renders a single key with the library, without the background
+		 * @param r Renderer to use
+		 * @param s Screen of the key
+		 * @param k Key to render
+		 * @param sel True if {@code k} is selected
+		 * @param background Area of the selected mask, in pixels
+		 */
+		private void renderWithLibrary(@NonNull Renderer r, @NonNull MacroScreen s,
+				@NonNull MacroKey k, boolean sel, @NonNull RectF background) {
+			copyProperties(s, keyScreen, false);
+			keyScreen.getKeys().add(k);
+			if(sel) {
+				keySelection.add(k);
+			}
+			try {
+				keyScreen.render(r,
+						screen,
+						background,
+						keySelection);
+			} finally {
+				keyScreen.getKeys().clear();
+				keySelection.clear();
+			}
+		}
+		
+		
+		/**
+		 * Sets the copy of the screen to render, made by
+		 * {@link MacroScreenEditor#snapshot()}: the following copies share
+		 * the keys not edited. The images and the rendering calls of the keys
+		 * of the previous copy not in {@code s} are forgotten
+		 * @param s Copy to render
+		 */
+		void renderCopy(@NonNull MacroScreen s) {
+			if(copy != null && copy != s) {
+				Set<MacroKey> kept = Collections.newSetFromMap(
+						new IdentityHashMap<MacroKey, Boolean>(s.getKeys().size() * 2));
+				kept.addAll(s.getKeys());
+				List<MacroKey> gone = new ArrayList<>();
+				for(MacroKey k : copy.getKeys()) {
+					if(!kept.contains(k)) {
+						gone.add(k);
+					}
+				}
+				invalidate(gone);
+			}
+			copy = s;
+		}
+		
+		
+		/**
+		 * Forgets the images and the rendering calls of the given keys,
+		 * because edited or removed
+		 * @param l Keys
+		 */
+		void invalidate(@NonNull List<MacroKey> l) {
+			sprites.invalidate(l);
+			for(MacroKey k : l) {
+				keyCommands.remove(k);
+			}
+		}
+	}
+	
+	
+	
 	/** Rendering implementation for swing */
 	private static final class Painter implements Renderer {
 		
@@ -288,6 +1053,31 @@ public class MKRenderingComponent extends JComponent {
 		private Font f;
 		private Graphics2D g;
 		
+		/** True to render without anti alias and with bars for small texts */
+		private boolean preview;
+		/** Text size under which the texts are bars in preview */
+		private int placeholderTextSize;
+		/** Last text size set */
+		private int textSize;
+		
+		/**
+		 * Most pixels drawn by a text out of its area, since the last
+		 * {@link KeysRenderer#takeTextOverflow()}
+		 */
+		int textOverflow;
+		
+		// State set on g, to not set it again; null or false if unknown
+		private Font font;
+		private Object antiAlias;
+		private int color;
+		private boolean hasColor;
+		
+		/** Colors already converted */
+		private final ColorCache colors = new ColorCache();
+		
+		/** Derived fonts and layouts of the texts */
+		private final TextLayoutCache texts = new TextLayoutCache();
+		
 		public Painter(@NonNull Graphics2D g, @NonNull Font f) {
 			this.f = f;
 			reset(g);
@@ -301,13 +1091,32 @@ public class MKRenderingComponent extends JComponent {
 			this.g = g;
 			p = PaintStyle.Fill;
 			t = TextAllign.Center;
+			font = null;
+			antiAlias = null;
+			hasColor = false;
+			textSize = Integer.MAX_VALUE;
+		}
+		
+		/**
+		 * Sets the quality of the rendering
+		 * @param preview True to render without anti alias and with bars for
+		 * the small texts
+		 * @param placeholderTextSize Text size under which the texts are bars
+		 */
+		public void setPreview(boolean preview, int placeholderTextSize) {
+			this.preview = preview;
+			this.placeholderTextSize = placeholderTextSize;
 		}
 		
 		
 		@Override
 		public void setTextSize(float textSize) {
-			g.setFont(f.deriveFont((int)textSize));
-			
+			this.textSize = (int)textSize;
+			Font d = texts.derive(f, (int)textSize);
+			if(d != font) {
+				g.setFont(d);
+				font = d;
+			}
 		}
 		
 		@Override
@@ -322,16 +1131,22 @@ public class MKRenderingComponent extends JComponent {
 		
 		@Override
 		public void setColor(int argb) {
-			Color c = ColorUtil.ARGBtoColor(argb);
-			g.setColor(c);
+			if(!hasColor || argb != color) {
+				g.setColor(colors.get(argb));
+				color = argb;
+				hasColor = true;
+			}
 		}
 		
 		@Override
 		public void setAntiAlias(boolean aa) {
-			Object f = aa ? 
+			Object f = aa && !preview ? 
 				RenderingHints.VALUE_ANTIALIAS_ON : 
 				RenderingHints.VALUE_ANTIALIAS_OFF;
-			g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, f);
+			if(f != antiAlias) {
+				g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, f);
+				antiAlias = f;
+			}
 		}
 		
 		@Override
@@ -368,11 +1183,21 @@ public class MKRenderingComponent extends JComponent {
 
 		@Override
 		public void text(@NonNull String s, @NonNull RectF r) {
+			if(preview && textSize < placeholderTextSize) {
+				// Bar about as long as the text, without the layout
+				float w = Math.min(r.width(), s.length() * textSize * 0.5f);
+				float h = Math.max(1, textSize / 3f);
+				g.fillRect((int)(r.left + (r.width() - w) / 2),
+						(int)(r.top + (r.height() - h) / 2),
+						(int)Math.ceil(w), (int)Math.ceil(h));
+				return;
+			}
+			
 			float x = 0, y = 0;
-			FontMetrics metrics = g.getFontMetrics(g.getFont());
-			float w = metrics.stringWidth(s);
-			float h = metrics.getHeight();
-			float asc = metrics.getAscent();
+			TextLayoutCache.Layout e = texts.layout(g, s);
+			float w = e.width;
+			float h = e.height;
+			float asc = e.ascent;
 			switch(t) {
 			case Center: 
 				x = r.left + (r.width() - w) / 2;
@@ -388,11 +1213,228 @@ public class MKRenderingComponent extends JComponent {
 			
 			}
 			
-			g.drawString(s, (int)x, (int)y);
+			// The text can be larger than the key
+			float top = y - asc;
+			int o = (int)Math.ceil(Math.max(Math.max(r.left - x, x + w - r.right),
+					Math.max(r.top - top, top + h - r.bottom)));
+			if(o > textOverflow) {
+				textOverflow = o;
+			}
+			
+			e.draw(g, (int)x, (int)y);
+		}
+	}
+	
+	
+	/**
+	 * Renders frames of the screen of {@link #screenEdit} in a background
+	 * thread, with the same pipeline of the EDT: the keys out of the frame
+	 * are skipped, and the images of the keys are kept by the thread.
+	 * The thread works on a copy of the screen, of the selection and of the
+	 * area, taken on the EDT; the EDT draws the last frame completed.
+	 * A frame is dropped if a newer copy is taken while rendering it
+	 */
+	private class FrameRenderer {
+		
+		/** Frame drawn by the EDT; null if none. Guarded by itself */
+		private final Object lock = new Object();
+		private BufferedImage front;
+		
+		/** Frame where the thread renders; used only by the thread */
+		private BufferedImage back;
+		
+		/** Last copy not yet taken by the thread; null if none */
+		private final AtomicReference<Snapshot> pending = new AtomicReference<>();
+		
+		/** Last copy requested by the EDT; null if none */
+		private Snapshot requested;
+		
+		/** Thread of the rendering; null if stopped */
+		private ExecutorService worker;
+		
+		/** Renderer of the keys of {@link #worker}; null if stopped */
+		private KeysRenderer renderer;
+		
+		/** Memory of the images of the keys of the thread, in bytes */
+		private volatile long spriteMemory;
+		
+		
+		
+		/**
+		 * Requests a frame of the actual state, if not already requested.
+		 * To call in the EDT
+		 * @param s Screen to render
+		 */
+		void request(@NonNull MacroScreen s) {
+			RectF area = backgroundOf(s);
+			if(requested != null && requested.isFrameOf(area)) {
+				return;
+			}
+			
+			requested = new Snapshot(area);
+			if(worker == null) {
+				worker = Executors.newSingleThreadExecutor(r -> {
+					Thread t = new Thread(r, "Render");
+					t.setDaemon(true);
+					return t;
+				});
+				renderer = new KeysRenderer();
+			}
+			if(pending.getAndSet(requested) == null) {
+				KeysRenderer r = renderer;
+				worker.execute(() -> renderPending(r));
+			}
+		}
+		
+		
+		/**
+		 * Draws the last frame completed. To call in the EDT
+		 * @param g Graphics where to draw
+		 * @return False if there is no frame
+		 */
+		boolean paint(@NonNull Graphics2D g) {
+			synchronized (lock) {
+				if(front == null) {
+					return false;
+				}
+				g.drawImage(front, 0, 0, null);
+				return true;
+			}
+		}
+		
+		
+		/**
+		 * @return Memory of the images of the keys of the thread, in bytes
+		 */
+		long getSpriteMemoryUsage() {
+			return spriteMemory;
+		}
+		
+		
+		/**
+		 * Stops the thread and drops the frames. To call in the EDT
+		 */
+		void stop() {
+			if(worker != null) {
+				worker.shutdownNow();
+				worker = null;
+				renderer = null;
+			}
+			pending.set(null);
+			requested = null;
+			spriteMemory = 0;
+			synchronized (lock) {
+				front = null;
+			}
+		}
+		
+		
+		/**
+		 * Renders the copies requested, in the thread
+		 * @param r Renderer of the keys of the thread
+		 */
+		private void renderPending(@NonNull KeysRenderer r) {
+			Snapshot s;
+			while((s = pending.getAndSet(null)) != null) {
+				BufferedImage img = back;
+				if(img == null || img.getWidth() != s.width ||
+						img.getHeight() != s.height) {
+					img = new BufferedImage(s.width, s.height,
+							BufferedImage.TYPE_INT_RGB);
+				}
+				
+				Graphics2D g = img.createGraphics();
+				try {
+					Rectangle bounds = new Rectangle(0, 0, s.width, s.height);
+					paintCheckboard(g, bounds);
+					r.setFont(s.font);
+					r.setQuality(s.preview, s.placeholderTextSize);
+					r.sprites.setBudget(s.spriteBudget);
+					r.renderCopy(s.macroScreen);
+					r.renderBackground(r.painterOf(g), s.macroScreen, s.area);
+					r.renderKeys(g, s.macroScreen, s.macroScreen.getKeys(),
+							s.selection, s.area, false, bounds);
+				} finally {
+					g.dispose();
+				}
+				spriteMemory = r.sprites.getMemoryUsage();
+				
+				if(pending.get() != null || Thread.currentThread().isInterrupted()) {
+					// Stale: a newer copy is waiting
+					back = img;
+					continue;
+				}
+				synchronized (lock) {
+					back = front;
+					front = img;
+				}
+				repaint();
+			}
 		}
 	}
 	
 	
+	
+	/**
+	 * Copy of the state of the screen rendered by {@link FrameRenderer}.
+	 * The keys are the ones of {@link MacroScreenEditor#snapshot()}: copied
+	 * again only when edited, and not copied when only the selection changes
+	 */
+	private final class Snapshot {
+		
+		final MacroScreen macroScreen;
+		/** Tests if a key of {@link #macroScreen} is selected */
+		final Predicate<MacroKey> selection;
+		final RectF area;
+		final int width, height;
+		final Font font;
+		final long version;
+		final boolean preview;
+		final int placeholderTextSize;
+		final long spriteBudget;
+		
+		
+		/**
+		 * To create in the EDT
+		 * @param area Area of the selected mask, in pixels
+		 */
+		Snapshot(@NonNull RectF area) {
+			macroScreen = screenEdit.snapshot();
+			List<MacroKey> copies = macroScreen.getKeys();
+			Set<MacroKey> sel = Collections.newSetFromMap(
+					new IdentityHashMap<MacroKey, Boolean>());
+			for(MacroKey k : screenEdit.getMacroKeySelectedView()) {
+				// The keys of the copy are in the same order
+				sel.add(copies.get(screenEdit.find(k)));
+			}
+			selection = sel::contains;
+			this.area = new RectF(area.left, area.top, area.right, area.bottom);
+			this.width = getWidth();
+			this.height = getHeight();
+			this.font = getFont();
+			this.version = screenEdit.getVersion();
+			this.preview = MKRenderingComponent.this.preview;
+			this.placeholderTextSize = MKRenderingComponent.this.placeholderTextSize;
+			this.spriteBudget = MKRenderingComponent.this.spriteBudget;
+		}
+		
+		
+		/**
+		 * To call in the EDT
+		 * @param area Area of the selected mask, in pixels
+		 * @return True if this is a copy of the actual state
+		 */
+		boolean isFrameOf(@NonNull RectF area) {
+			return version == screenEdit.getVersion() && width == getWidth() &&
+					height == getHeight() && sameArea(this.area, area) &&
+					font == getFont() && preview == MKRenderingComponent.this.preview &&
+					placeholderTextSize == MKRenderingComponent.this.placeholderTextSize &&
+					spriteBudget == MKRenderingComponent.this.spriteBudget;
+		}
+	}
+	
+	
+	
 	/** Class to manage the movement of keys {@link MacroKey} */
 	private class MacroKeyDragger {
 		
@@ -401,11 +1443,30 @@ public class MKRenderingComponent extends JComponent {
 		private boolean drag = false;
 		private boolean mouseDown = false;
 		
+		/** Screen with only the keys not moved; null if not dragging */
+		MacroScreen staticScreen;
+		
+		/** Screen with only the moved keys; null if not dragging */
+		MacroScreen movingScreen;
+		
+		/**
+		 * Most pixels drawn by the texts of the moved keys out of their
+		 * area, in the last frame: added to the repaint of the keys
+		 */
+		int textOverflow;
+		
+		/**
+		 * @return True if the keys are being moved
+		 */
+		public boolean isDragging() {
+			return drag && movingScreen != null;
+		}
+		
 		/** Event associated at the pressure of a key */
 		public void onMousePressed(MouseEvent e) {
 			mouseDown = e.getButton() == MouseEvent.BUTTON1;
 			if(mouseDown) {
-				List<MacroKey> sel = screenEdit.getMacroKeySelected();
+				List<MacroKey> sel = screenEdit.getMacroKeySelectedView();
 				if(!sel.isEmpty()) {
 					startX = e.getX();
 					startY = e.getY();
@@ -425,6 +1486,7 @@ public class MKRenderingComponent extends JComponent {
 			mouseDown = e.getButton() != MouseEvent.BUTTON1;
 			if(drag && !mouseDown) {
 				drag = false;
+				endLayers();
 				
 				// Reset the position of the keys and create the list of the changes to do the ares
 				List<ModifyAction.Set<MacroKey>> sets = new ArrayList<>();
@@ -451,17 +1513,37 @@ public class MKRenderingComponent extends JComponent {
 		
 		/** Event associated with the movement of the mouse while a key is pressed */
 		public void onMouseDragged(MouseEvent e) {
-			List<MacroKey> sel = screenEdit.getMacroKeySelected();
+			List<MacroKey> sel = screenEdit.getMacroKeySelectedView();
 			drag = mouseDown && !sel.isEmpty();
 			if(drag) {
+				boolean started = movingScreen == null;
+				if(started) {
+					startLayers();
+				}
+				interaction(true);
+				
 				int dx = e.getX() - startX;
 				int dy = e.getY() - startY;
+				
+				// Repaint only where the keys were and where they are
+				Rectangle dirty = null;
 				for(Pair p : draggedKeys) {
+					Rectangle old = ScreenUtil.mmtopx(p.m.getArea(), screen);
+					dirty = dirty == null ? old : dirty.union(old);
+					
 					RectF f = moveRect(p.initialArea, screen, dx, dy);
 					p.m.setArea(f);
-					
+					dirty.add(ScreenUtil.mmtopx(f, screen));
+				}
+				
+				if(started) {
+					// The overflow of the texts is known from the first frame
+					repaint();
+				} else if(dirty != null) {
+					dirty.grow(DIRTY_MARGIN + textOverflow,
+							DIRTY_MARGIN + textOverflow);
+					repaint(dirty);
 				}
-				repaint();
 			}
 			
 		}
@@ -477,6 +1559,7 @@ public class MKRenderingComponent extends JComponent {
 					p.m.setArea(p.initialArea);					
 				}
 			}
+			endLayers();
 			
 			if(refresh) {
 				repaint();
@@ -485,6 +1568,39 @@ public class MKRenderingComponent extends JComponent {
 		
 		
 		
+		/**
+		 * Splits the keys in the ones moved and the others, rendered
+		 * separately during the drag
+		 */
+		private void startLayers() {
+			MacroScreen s = screenEdit.getMacroScreen();
+			List<MacroKey> moving = new ArrayList<>(draggedKeys.size());
+			for(Pair p : draggedKeys) {
+				moving.add(p.m);
+			}
+			List<MacroKey> others = new ArrayList<>(s.getKeys().size());
+			for(MacroKey k : s.getKeys()) {
+				// The dragged keys are the selected ones
+				if(!screenEdit.isSelected(k)) {
+					others.add(k);
+				}
+			}
+			
+			staticScreen = copyScreen(s, others, true);
+			movingScreen = copyScreen(s, moving, false);
+			staticLayer = null;
+			textOverflow = 0;
+		}
+		
+		
+		/** Drops the layers of {@link #startLayers()} */
+		private void endLayers() {
+			staticScreen = null;
+			movingScreen = null;
+			staticLayer = null;
+		}
+		
+		
 		private class Pair {
 			RectF initialArea;
 			MacroKey m;
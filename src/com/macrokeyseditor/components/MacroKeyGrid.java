@@ -0,0 +1,464 @@
+package com.macrokeyseditor.components;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import org.eclipse.jdt.annotation.NonNull;
+
+import com.macrokeys.MacroKey;
+import com.macrokeys.MacroScreen;
+import com.macrokeys.rendering.RectF;
+import com.macrokeyseditor.MacroScreenChange;
+import com.macrokeyseditor.MacroScreenEditor;
+import com.macrokeyseditor.MacroScreenEditorListener;
+
+/**
+ * Uniform grid over the areas (in millimeters) of the {@link MacroKey} of the
+ * {@link MacroScreen} managed by a {@link MacroScreenEditor}.
+ * <p>
+ * Permits to find the keys in a point without scanning all the keys.
+ * The grid is kept up to date by the events of the {@link MacroScreenEditor}:
+ * direct changes to the keys are not tracked.
+ * </p>
+ */
+public final class MacroKeyGrid implements MacroScreenEditorListener {
+
+	/** Side of a cell of the grid in millimeters */
+	private static final float CELL_SIZE = 10;
+
+	/** Editor of the indexed keys */
+	private final MacroScreenEditor editor;
+
+	/** Keys contained in each cell, by the packed cell coordinate */
+	private final CellMap cells = new CellMap();
+
+	/** Range of cells occupied by each key: {minX, minY, maxX, maxY} */
+	private final Map<MacroKey, int[]> keyCells = new IdentityHashMap<>();
+
+	/** True if the grid was populated with the keys of the screen */
+	private boolean built = false;
+
+	// Reused by keysIn(), to not allocate at each frame
+	private final Map<MacroKey, Boolean> found = new IdentityHashMap<>();
+	private int[] order = new int[16];
+
+
+	/**
+	 * @param editor Editor of the keys to index
+	 */
+	public MacroKeyGrid(@NonNull MacroScreenEditor editor) {
+		Objects.requireNonNull(editor);
+		this.editor = editor;
+
+		editor.addEditEventListener(this);
+	}
+
+
+
+	/**
+	 * Finds the key in the given point; if more keys are in the point the one
+	 * rendered on top is returned
+	 * @param x X coordinate in millimeters
+	 * @param y Y coordinate in millimeters
+	 * @return Key in the given point; null if none
+	 */
+	public MacroKey keyAt(float x, float y) {
+		build();
+
+		List<MacroKey> l = cells.get(pack(cell(x), cell(y)));
+		if(l == null) {
+			return null;
+		}
+
+		MacroKey top = null;
+		int topIndex = -1;
+		for(MacroKey m : l) {
+			RectF a = m.getArea();
+			if(a.left <= x && x <= a.right && a.top <= y && y <= a.bottom) {
+				if(top == null) {
+					// The rendering order matters only for overlapping keys
+					top = m;
+				} else {
+					// The last key in the list of the screen is rendered on top
+					if(topIndex == -1) {
+						topIndex = editor.find(top);
+					}
+					int index = editor.find(m);
+					if(index > topIndex) {
+						top = m;
+						topIndex = index;
+					}
+				}
+			}
+		}
+
+		return top;
+	}
+
+
+
+	/**
+	 * Finds the keys whose area intersects the given rectangle
+	 * @param r Rectangle in millimeters
+	 * @param dst Where to add the found keys, in rendering order
+	 */
+	public void keysIn(@NonNull RectF r, @NonNull List<MacroKey> dst) {
+		Objects.requireNonNull(r);
+		Objects.requireNonNull(dst);
+		build();
+
+		List<MacroKey> keys = editor.getMacroScreen().getKeys();
+		int minX = cell(Math.min(r.left, r.right));
+		int minY = cell(Math.min(r.top, r.bottom));
+		int maxX = cell(Math.max(r.left, r.right));
+		int maxY = cell(Math.max(r.top, r.bottom));
+
+		// A big rectangle is faster to check on each key
+		long count = ((long)maxX - minX + 1) * ((long)maxY - minY + 1);
+		if(count >= keys.size()) {
+			// Indexed, not to allocate an iterator at each frame
+			for(int i = 0; i < keys.size(); i++) {
+				MacroKey m = keys.get(i);
+				if(intersects(m.getArea(), r)) {
+					dst.add(m);
+				}
+			}
+			return;
+		}
+
+		int n = 0;
+		for(int x = minX; x <= maxX; x++) {
+			for(int y = minY; y <= maxY; y++) {
+				List<MacroKey> l = cells.get(pack(x, y));
+				if(l == null) {
+					continue;
+				}
+				for(int i = 0; i < l.size(); i++) {
+					MacroKey m = l.get(i);
+					// A key can be in many cells
+					if(intersects(m.getArea(), r) && found.put(m, Boolean.TRUE) == null) {
+						if(n == order.length) {
+							order = Arrays.copyOf(order, n * 2);
+						}
+						order[n++] = editor.find(m);
+					}
+				}
+			}
+		}
+		found.clear();
+
+		Arrays.sort(order, 0, n);
+		for(int i = 0; i < n; i++) {
+			dst.add(keys.get(order[i]));
+		}
+	}
+
+
+	/**
+	 * @param a Area of a key
+	 * @param r Rectangle
+	 * @return True if {@code a} and {@code r} intersect
+	 */
+	private static boolean intersects(@NonNull RectF a, @NonNull RectF r) {
+		return Math.min(a.left, a.right) <= Math.max(r.left, r.right) &&
+				Math.min(r.left, r.right) <= Math.max(a.left, a.right) &&
+				Math.min(a.top, a.bottom) <= Math.max(r.top, r.bottom) &&
+				Math.min(r.top, r.bottom) <= Math.max(a.top, a.bottom);
+	}
+
+
+
+	/**
+	 * Populate the grid, if not already done
+	 */
+	private void build() {
+		if(!built) {
+			built = true;
+			for(MacroKey m : editor.getMacroScreen().getKeys()) {
+				insert(m);
+			}
+		}
+	}
+
+
+	/**
+	 * Adds the key in the cells occupied by its area
+	 * @param m Key to add
+	 */
+	private void insert(@NonNull MacroKey m) {
+		RectF a = m.getArea();
+		int[] r = new int[] {
+				cell(Math.min(a.left, a.right)),
+				cell(Math.min(a.top, a.bottom)),
+				cell(Math.max(a.left, a.right)),
+				cell(Math.max(a.top, a.bottom))
+		};
+		keyCells.put(m, r);
+
+		for(int x = r[0]; x <= r[2]; x++) {
+			for(int y = r[1]; y <= r[3]; y++) {
+				cells.create(pack(x, y)).add(m);
+			}
+		}
+	}
+
+
+	/**
+	 * Remove the key from the cells where it was added
+	 * @param m Key to remove
+	 */
+	private void delete(@NonNull MacroKey m) {
+		int[] r = keyCells.remove(m);
+		if(r == null) {
+			return;
+		}
+
+		for(int x = r[0]; x <= r[2]; x++) {
+			for(int y = r[1]; y <= r[3]; y++) {
+				long c = pack(x, y);
+				List<MacroKey> l = cells.get(c);
+				if(l != null) {
+					removeInstance(m, l);
+					if(l.isEmpty()) {
+						cells.remove(c);
+					}
+				}
+			}
+		}
+	}
+
+
+	/**
+	 * Remove the given instance from the list; the order of the list is not kept
+	 * @param m Instance to remove
+	 * @param l List where to remove the instance
+	 */
+	private static void removeInstance(@NonNull MacroKey m, @NonNull List<MacroKey> l) {
+		for(int i = 0; i < l.size(); i++) {
+			if(l.get(i) == m) {
+				// Move the last item in place of the removed one
+				int last = l.size() - 1;
+				l.set(i, l.get(last));
+				l.remove(last);
+				return;
+			}
+		}
+	}
+
+
+	/**
+	 * @param mm Coordinate in millimeters
+	 * @return Coordinate of the cell containing {@code mm}
+	 */
+	private static int cell(float mm) {
+		return (int)Math.floor(mm / CELL_SIZE);
+	}
+
+
+	/**
+	 * @param x X coordinate of the cell
+	 * @param y Y coordinate of the cell
+	 * @return Key of the cell in {@link #cells}
+	 */
+	private static long pack(int x, int y) {
+		return ((long)x << 32) | (y & 0xFFFFFFFFL);
+	}
+
+
+
+	@Override
+	public void macroKeyRemoved(@NonNull MacroScreen ms,
+			@NonNull List<MacroKey> l) {
+		if(built) {
+			for(MacroKey m : l) {
+				delete(m);
+			}
+		}
+	}
+
+	@Override
+	public void macroKeyAdded(@NonNull MacroScreen ms,
+			@NonNull List<MacroKey> l) {
+		if(built) {
+			for(MacroKey m : l) {
+				delete(m);
+				insert(m);
+			}
+		}
+	}
+
+	@Override
+	public void macroKeyEdited(@NonNull MacroScreen ms,
+			@NonNull List<MacroKey> l, @NonNull String property) {
+		if(built && property.equals(MacroScreenEditor.MACRO_KEY_PROPETY_AREA)) {
+			for(MacroKey m : l) {
+				delete(m);
+				insert(m);
+			}
+		}
+	}
+
+	@Override
+	public void macroScreenEdited(@NonNull MacroScreen m) {
+		// Nothing
+	}
+
+	@Override
+	public void selectionChange(List<MacroKey> actual) {
+		// Nothing
+	}
+
+	@Override
+	public void swapMacroKeys(@NonNull MacroKey a, @NonNull MacroKey b) {
+		// The rendering order is taken from the editor
+	}
+
+	@Override
+	public void macroScreenChanged(@NonNull MacroScreenChange c) {
+		if(built) {
+			for(MacroKey m : c.getRemoved()) {
+				delete(m);
+			}
+			for(MacroKey m : c.getAdded()) {
+				delete(m);
+				insert(m);
+			}
+			for(MacroKey m : c.getEdited(MacroScreenEditor.MACRO_KEY_PROPETY_AREA)) {
+				delete(m);
+				insert(m);
+			}
+		}
+	}
+
+
+
+	/**
+	 * Map of the keys of each cell, by the packed cell coordinate: open
+	 * addressing with linear probing, not to box the coordinate at each
+	 * lookup
+	 */
+	private static final class CellMap {
+
+		/** Packed coordinate of each slot */
+		private long[] coordinates = new long[64];
+
+		/** Keys of each slot; null if the slot is free */
+		private List<MacroKey>[] lists = newLists(64);
+
+		/** Slots used */
+		private int size = 0;
+
+
+		@SuppressWarnings("unchecked")
+		private static List<MacroKey>[] newLists(int n) {
+			return new List[n];
+		}
+
+
+		/**
+		 * @param c Packed coordinate
+		 * @return First slot probed for {@code c}
+		 */
+		private int home(long c) {
+			// The near cells differ in the low bits of both halves
+			return (int)((c * 0x9E3779B97F4A7C15L) >>> 32) & (lists.length - 1);
+		}
+
+
+		/**
+		 * @param c Packed coordinate
+		 * @return Slot of {@code c}, or the free slot where to add it
+		 */
+		private int slot(long c) {
+			int mask = lists.length - 1;
+			int i = home(c);
+			while(lists[i] != null && coordinates[i] != c) {
+				i = (i + 1) & mask;
+			}
+			return i;
+		}
+
+
+		/**
+		 * @param c Packed coordinate
+		 * @return Keys of the cell; null if none
+		 */
+		List<MacroKey> get(long c) {
+			return lists[slot(c)];
+		}
+
+
+		/**
+		 * @param c Packed coordinate
+		 * @return Keys of the cell; added empty if none
+		 */
+		@NonNull List<MacroKey> create(long c) {
+			int i = slot(c);
+			List<MacroKey> l = lists[i];
+			if(l == null) {
+				if((size + 1) * 2 > lists.length) {
+					grow();
+					i = slot(c);
+				}
+				l = new ArrayList<>();
+				coordinates[i] = c;
+				lists[i] = l;
+				size++;
+			}
+			return l;
+		}
+
+
+		/**
+		 * Removes a cell, if present
+		 * @param c Packed coordinate
+		 */
+		void remove(long c) {
+			int mask = lists.length - 1;
+			int i = slot(c);
+			if(lists[i] == null) {
+				return;
+			}
+			lists[i] = null;
+			size--;
+
+			// Moves back the following slots that can not be found anymore
+			int j = i;
+			while(true) {
+				j = (j + 1) & mask;
+				if(lists[j] == null) {
+					return;
+				}
+				int home = home(coordinates[j]);
+				// The slot stays if its home is cyclically in (i, j]
+				if(i <= j ? (i < home && home <= j) : (i < home || home <= j)) {
+					continue;
+				}
+				coordinates[i] = coordinates[j];
+				lists[i] = lists[j];
+				lists[j] = null;
+				i = j;
+			}
+		}
+
+
+		/** Doubles the slots */
+		private void grow() {
+			long[] oldCoordinates = coordinates;
+			List<MacroKey>[] oldLists = lists;
+			coordinates = new long[oldLists.length * 2];
+			lists = newLists(oldLists.length * 2);
+			for(int k = 0; k < oldLists.length; k++) {
+				if(oldLists[k] != null) {
+					int i = slot(oldCoordinates[k]);
+					coordinates[i] = oldCoordinates[k];
+					lists[i] = oldLists[k];
+				}
+			}
+		}
+	}
+}
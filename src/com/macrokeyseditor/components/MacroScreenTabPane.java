@@ -1,7 +1,9 @@
 package com.macrokeyseditor.components;
 
+import java.io.IOException;
 import java.util.List;
 
+import javax.swing.JOptionPane;
 import javax.swing.JTabbedPane;
 import javax.swing.event.ChangeEvent;
 import javax.swing.event.ChangeListener;
@@ -12,6 +14,7 @@ import com.macrokeys.MacroKey;
 import com.macrokeys.MacroScreen;
 import com.macrokeys.MacroSetup;
 import com.macrokeys.screen.ScreenException;
+import com.macrokeyseditor.MacroScreenChange;
 import com.macrokeyseditor.MacroScreenEditor;
 import com.macrokeyseditor.MacroScreenEditorListener;
 import com.macrokeyseditor.MacroSetupEditor;
@@ -27,6 +30,12 @@ public class MacroScreenTabPane {
 	/** Listener for the changes done to a {@link MacroScreen} */
 	private final MacroScreenEditorListener macroScreenListener =
 			new MacroScrenEdList();
+	
+	/** Masks shown by the components of the tabs */
+	private final MasksManager masksManager;
+	
+	/** True while the tabs are rebuilt, to not follow their selection */
+	private boolean rebuilding = false;
 			
 	
 	/**
@@ -39,26 +48,13 @@ public class MacroScreenTabPane {
 			MasksManager masksManager) {
 		this.tabPane = tabPane;
 		this.macSetEditor = setupEditor;
+		this.masksManager = masksManager;
 		
 		macSetEditor.addActionListener(new MacroSetupEditorListener() {
 			@Override
 			public void actionPerformed(Action a, MacroScreenEditor s) {
 				if(a == MacroSetupEditorListener.Action.Add) {
-					MacroScreen m = s.getMacroScreen();
-					String title = swipeTypeToString(m.getSwipeType());
-					
-					MKRenderingComponent rmk;
-					try {
-						rmk = new MKRenderingComponent(s, masksManager);
-					} catch (ScreenException e) {
-						// TODO: handle exception
-						e.printStackTrace();
-						return;
-					}
-					
-					
-					tabPane.add(title, rmk);
-					s.addEditEventListener(macroScreenListener);
+					addTab(s);
 				} else {
 					s.removeEditEventListener(macroScreenListener);
 					
@@ -69,6 +65,26 @@ public class MacroScreenTabPane {
 				}
 			}
 
+			@Override
+			public void macroScreensReplaced(
+					@NonNull List<MacroScreenEditor> old,
+					@NonNull List<MacroScreenEditor> actual) {
+				// The tabs are rebuilt once, without selecting each of them
+				rebuilding = true;
+				try {
+					for(MacroScreenEditor s : old) {
+						s.removeEditEventListener(macroScreenListener);
+					}
+					tabPane.removeAll();
+					for(MacroScreenEditor s : actual) {
+						addTab(s);
+					}
+				} finally {
+					rebuilding = false;
+				}
+				selectFromTab();
+			}
+
 			@Override
 			public void selectionChange(MacroScreenEditor old,
 					MacroScreenEditor actual) {
@@ -90,24 +106,70 @@ public class MacroScreenTabPane {
 		tabPane.addChangeListener(new ChangeListener() {
 			@Override
 			public void stateChanged(ChangeEvent e) {
-				// Change the selection
-				int index = tabPane.getSelectedIndex();
-				if(index == -1) {
-					setupEditor.selectMacroScreen(null);
-				} else {
-					MKRenderingComponent c = (MKRenderingComponent)
-							tabPane.getComponentAt(index);
-					MacroScreenEditor editor = c.getMacroScreenEditor();
-					setupEditor.selectMacroScreen(editor.getMacroScreen());
+				if(!rebuilding) {
+					selectFromTab();
 				}
-				
-				
 			}
 		});
 	}
 	
 	
 	
+	/**
+	 * Adds the tab of a {@link MacroScreen}, as last
+	 * @param s Editor of the {@link MacroScreen}
+	 */
+	private void addTab(@NonNull MacroScreenEditor s) {
+		MacroScreen m = s.getMacroScreen();
+		String title = swipeTypeToString(m.getSwipeType());
+		
+		MKRenderingComponent rmk;
+		try {
+			rmk = new MKRenderingComponent(s, masksManager);
+		} catch (ScreenException e) {
+			// TODO: handle exception
+			e.printStackTrace();
+			return;
+		}
+		
+		
+		tabPane.add(title, rmk);
+		s.addEditEventListener(macroScreenListener);
+	}
+	
+	
+	
+	/**
+	 * Selects in the editor the {@link MacroScreen} of the selected tab. If
+	 * its keys can not be read the error is shown, and the tab of the
+	 * {@link MacroScreen} still selected is selected again
+	 */
+	private void selectFromTab() {
+		int index = tabPane.getSelectedIndex();
+		try {
+			if(index == -1) {
+				macSetEditor.selectMacroScreen(null);
+			} else {
+				MKRenderingComponent c = (MKRenderingComponent)
+						tabPane.getComponentAt(index);
+				MacroScreenEditor editor = c.getMacroScreenEditor();
+				macSetEditor.selectMacroScreen(editor.getMacroScreen());
+			}
+		} catch (IOException e) {
+			JOptionPane.showMessageDialog(tabPane,
+					e.getLocalizedMessage(),
+					"Error while reading the screen",
+					JOptionPane.ERROR_MESSAGE);
+			
+			MacroScreenEditor s = macSetEditor.getMacroScreenEditorSelected();
+			if(s != null) {
+				tabPane.setSelectedIndex(find(s));
+			}
+		}
+	}
+	
+	
+	
 	/**
 	 * @return Wrapped panel
 	 */
@@ -226,6 +288,13 @@ public class MacroScreenTabPane {
 		public void swapMacroKeys(@NonNull MacroKey a, @NonNull MacroKey b) {
 			// Nothing	
 		}
+
+		@Override
+		public void macroScreenChanged(@NonNull MacroScreenChange c) {
+			if(c.isScreenEdited()) {
+				macroScreenEdited(c.getMacroScreen());
+			}
+		}
 		
 	};
 }
@@ -0,0 +1,192 @@
+package com.macrokeyseditor.components;
+
+import java.awt.Font;
+import java.awt.FontMetrics;
+import java.awt.Graphics2D;
+import java.awt.font.FontRenderContext;
+import java.awt.font.TextLayout;
+import java.util.LinkedHashMap;
+import java.util.Arrays;
+import java.util.Map;
+
+import org.eclipse.jdt.annotation.NonNull;
+
+/**
+ * Cache of the layouts of the texts and of the derived fonts, so the text of
+ * the keys is not measured at each rendering.
+ * When full the least recently used layouts are dropped
+ */
+final class TextLayoutCache {
+
+	/** Default maximum number of layouts */
+	static final int DEFAULT_CAPACITY = 2048;
+	
+	/** Sizes of the fonts kept in {@link #derived} are lower than this */
+	private static final int MAX_DERIVED = 256;
+
+	/** Maximum number of layouts */
+	private final int capacity;
+
+	/** Layouts from the least recently used */
+	private final LinkedHashMap<Key, Layout> layouts;
+
+	/** Fonts derived from the base font, by size */
+	private final Font[] derived = new Font[MAX_DERIVED];
+	
+	/** Reused to search in {@link #layouts} without allocating */
+	private final Key probe = new Key();
+
+	/** Font from which {@link #derived} are derived; null if none */
+	private Font base;
+
+
+
+	TextLayoutCache() {
+		this(DEFAULT_CAPACITY);
+	}
+
+
+	/**
+	 * @param capacity Maximum number of layouts
+	 * @throws IllegalArgumentException If {@code capacity} <= 0
+	 */
+	TextLayoutCache(int capacity) {
+		if(capacity <= 0) {
+			throw new IllegalArgumentException("Capacity must be > 0");
+		}
+		this.capacity = capacity;
+		this.layouts = new LinkedHashMap<Key, Layout>(64, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Key, Layout> e) {
+				return size() > TextLayoutCache.this.capacity;
+			}
+		};
+	}
+
+
+	/**
+	 * @param f Base font
+	 * @param size Text size
+	 * @return Font derived from {@code f} for {@code size}
+	 */
+	@NonNull Font derive(@NonNull Font f, int size) {
+		if(f != base && !f.equals(base)) {
+			base = f;
+			Arrays.fill(derived, null);
+		}
+
+		if(size < 0 || size >= MAX_DERIVED) {
+			// Same derivation of the uncached Painter
+			return f.deriveFont(size);
+		}
+		Font d = derived[size];
+		if(d == null) {
+			d = f.deriveFont(size);
+			derived[size] = d;
+		}
+		return d;
+	}
+
+
+	/**
+	 * @param g Graphics where the text is drawn
+	 * @param s Text
+	 * @return Layout of {@code s} with the font of {@code g}
+	 */
+	@NonNull Layout layout(@NonNull Graphics2D g, @NonNull String s) {
+		probe.set(g.getFont(), g.getFontRenderContext(), s);
+		Layout e = layouts.get(probe);
+		if(e == null) {
+			e = new Layout(g, s);
+			Key k = new Key();
+			k.set(probe.font, probe.frc, s);
+			layouts.put(k, e);
+		}
+		return e;
+	}
+
+
+
+	/** Identifies a layout */
+	private static final class Key {
+
+		private Font font;
+		private FontRenderContext frc;
+		private String text;
+		private int hash;
+
+		/**
+		 * Sets the fields; a key in the cache must not be changed
+		 */
+		void set(@NonNull Font font, @NonNull FontRenderContext frc,
+				@NonNull String text) {
+			this.font = font;
+			this.frc = frc;
+			this.text = text;
+			this.hash = (font.hashCode() * 31 + frc.hashCode()) * 31 +
+					text.hashCode();
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if(this == o) {
+				return true;
+			} else if(!(o instanceof Key)) {
+				return false;
+			}
+			Key k = (Key) o;
+			return hash == k.hash && text.equals(k.text) &&
+					font.equals(k.font) && frc.equals(k.frc);
+		}
+	}
+
+
+
+	/** Layout of a text with its metrics */
+	static final class Layout {
+
+		/** Layout of the text; null if the text is empty */
+		final TextLayout layout;
+
+		/** Width of the text, in pixels */
+		final float width;
+
+		/** Height of a line of the font, in pixels */
+		final float height;
+
+		/** Ascent of the font, in pixels */
+		final float ascent;
+
+
+		/**
+		 * @param g Graphics where the text is drawn
+		 * @param s Text
+		 */
+		private Layout(@NonNull Graphics2D g, @NonNull String s) {
+			FontMetrics metrics = g.getFontMetrics(g.getFont());
+			this.width = metrics.stringWidth(s);
+			this.height = metrics.getHeight();
+			this.ascent = metrics.getAscent();
+			this.layout = s.isEmpty() ? null :
+				new TextLayout(s, g.getFont(), g.getFontRenderContext());
+		}
+
+
+		/**
+		 * Draws the text
+		 * @param g Graphics where to draw
+		 * @param x X of the baseline
+		 * @param y Y of the baseline
+		 */
+		void draw(@NonNull Graphics2D g, float x, float y) {
+			if(layout != null) {
+				layout.draw(g, x, y);
+			}
+		}
+	}
+}
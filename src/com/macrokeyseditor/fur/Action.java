@@ -1,68 +1,90 @@
 package com.macrokeyseditor.fur;
 
-import java.util.Date;
-
 import org.eclipse.jdt.annotation.NonNull;
 
 /** Generic cancellable action */
 public abstract class Action {
 	
 	/**
-	 * Date of the insertion of this action
+	 * Time of the insertion of this action, from {@link System#nanoTime()}
+	 */
+	long addTime;
+	
+	/**
+	 * Time of the last merge, from {@link System#nanoTime()}; valid only if {@link #merged}
+	 */
+	long lastMergeTime;
+	
+	/**
+	 * True if at least a merge was executed
 	 */
-	Date date;
+	boolean merged = false;
 	
 	/**
-	 * Last merge date; null if none
+	 * Memory estimated when added to the {@link ActionManager}, in bytes
 	 */
-	Date dateLastMerge;
+	long size;
 	
 	/**
 	 * Valid only after the insertion in {@link ActionManager}
-	 * @return Date of the insertion of this action
-	 * @see ActionManager#addAction(Action)
-	 * @see ActionManager#addAction(Action, boolean)
+	 * @return Time of the insertion of this action, from {@link System#nanoTime()};
+	 * meaningful only to calculate elapsed times
+	 * @see ActionManager#add(Action)
+	 * @see ActionManager#add(Action, boolean)
 	 */
-	protected Date getAddDate() {
-		return date;
+	protected long getAddTime() {
+		return addTime;
 	}
 	
 	
 	
 	/**
 	 * Valid only after the insertion in {@link ActionManager}
-	 * @return Last merge date; null if no merge executed yet
-	 * @see ActionManager#addAction(Action)
-	 * @see ActionManager#addAction(Action, boolean)
+	 * @return Time of the last merge, from {@link System#nanoTime()};
+	 * meaningful only if {@link #elapsedTimeLastMerge()} is not -1
+	 * @see ActionManager#add(Action)
+	 * @see ActionManager#add(Action, boolean)
 	 */
-	protected Date getLastMergeDate() {
-		return dateLastMerge;
+	protected long getLastMergeTime() {
+		return lastMergeTime;
 	}
 	
 	
 	/**
-	 * Calculate the time passed from the insertion date of this action
-	 * @return Difference in milliseconds from the insertion date until now
-	 * @see #getDate()
+	 * Calculate the time passed from the insertion of this action.
+	 * Uses a monotonic clock: not affected by changes of the system time
+	 * @return Difference in milliseconds from the insertion until now
+	 * @see #getAddTime()
 	 */
 	protected long elapsedTimeAdd() {
-		return new Date().getTime() - date.getTime();
+		return (System.nanoTime() - addTime) / 1_000_000;
 	}
 	
 	
 	/**
-	 * Calculate the time passed since the last merge
+	 * Calculate the time passed since the last merge.
+	 * Uses a monotonic clock: not affected by changes of the system time
 	 * @return Elapsed time in milliseconds; -1 if no merge was executed
 	 */
 	protected long elapsedTimeLastMerge() {
-		if(dateLastMerge == null) {
+		if(!merged) {
 			return -1;
 		} else {
-			return new Date().getTime() - dateLastMerge.getTime();
+			return (System.nanoTime() - lastMergeTime) / 1_000_000;
 		}
 	}
 	
 	
+	/**
+	 * Estimate the memory retained by this action, in bytes.
+	 * Used by {@link ActionManager} to bound the history; must not be expensive.
+	 * @return Memory estimated in bytes; > 0
+	 */
+	public long estimateSize() {
+		return 64;
+	}
+	
+	
 	/** 
 	 * Undo this action
 	 */
@@ -80,6 +102,8 @@ public abstract class Action {
 	 * <p>
 	 * <li> The implementation can decide to limit the amount of mergable action of the same time
 	 * <li> The implementation may not support the merge
+	 * <li> Can be called before {@code followingAction} is executed: the
+	 * merge must not depend on its execution
 	 * <p>
 	 * @param followingAction Action to merge
 	 * @return True if the merge was executed, false otherwise
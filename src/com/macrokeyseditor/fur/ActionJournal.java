@@ -0,0 +1,784 @@
+package com.macrokeyseditor.fur;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jdt.annotation.NonNull;
+
+/**
+ * Append-only binary journal of the history of one or more {@link ActionManager}
+ * (one for each screen), stored in a file.
+ * <p>
+ * The actions are stored as opaque payloads of a {@link RecordLog}: the
+ * encoding is done by the owner of the actions. The records are written in
+ * groups by a background thread, so the appends do not wait for the disk.
+ * </p>
+ * <p>
+ * A checkpoint marks the history at the moment of the save of the edited file:
+ * only the history of the last checkpoint is restored. The records following
+ * the last checkpoint describe edits never saved and are dropped.
+ * The payloads of the restored actions are read only on request.
+ * </p>
+ * <p>
+ * A save in background marks the history saved with {@link #mark()} and,
+ * when done, makes it the checkpoint with {@link #checkpoint(Mark, byte[])}:
+ * the edits recorded while saving follow the mark.
+ * </p>
+ */
+public final class ActionJournal implements Closeable {
+
+	/** Start of the file: "MKJ1" */
+	private static final int MAGIC = 0x4D4B4A31;
+
+	private static final int VERSION = 2;
+
+	/** Version without the marks */
+	private static final int VERSION_NO_MARKS = 1;
+
+	/** Size of the header of the file */
+	private static final int FILE_HEADER_SIZE = 8;
+
+	/** Size of the header of a record */
+	private static final int RECORD_HEADER_SIZE = RecordLog.RECORD_HEADER_SIZE;
+
+	/** Maximum delay between the append of a record and its write, in milliseconds */
+	private static final long GROUP_COMMIT_DELAY = 500;
+
+	/** Maximum number of undoable actions kept for each screen by the compaction */
+	private static final int MAX_ENTRIES = 1000;
+
+	/** Size of the file over which a compaction is done, in bytes */
+	private static final long COMPACTION_THRESHOLD = 64 * 1024;
+
+	private static final byte PUSH = 1;
+	private static final byte MERGE = 2;
+	private static final byte UNDO = 3;
+	private static final byte REDO = 4;
+	private static final byte SCREEN_ADD = 5;
+	private static final byte SCREEN_REMOVE = 6;
+	private static final byte CHECKPOINT = 7;
+	private static final byte CLEAR = 8;
+	private static final byte MARK = 9;
+	private static final byte MARK_CHECKPOINT = 10;
+
+
+	/** File of the journal */
+	private final File file;
+
+	/**
+	 * Records of the journal; replaced by the compaction. Guarded by
+	 * {@link #lock}, read without it by the group commit
+	 */
+	private volatile RecordLog log;
+
+	/** Number of rewrites of the journal, to recognize the old marks */
+	private int rewrites = 0;
+
+	/**
+	 * Guard for {@link #log} and {@link #model}, since the checkpoints are
+	 * done in other threads
+	 */
+	private final Object lock = new Object();
+
+	/** History of each screen, as described by the records; guarded by {@link #lock} */
+	private List<Stacks> model = new ArrayList<>();
+
+	/** Thread for the group commit */
+	private final ScheduledExecutorService flusher;
+
+
+
+	/**
+	 * Opens the journal, restoring the history of the last checkpoint
+	 * @param file File of the journal; created if not present
+	 * @param fingerprint Fingerprint of the edited file; if it does not match the
+	 * one of the last checkpoint the history is discarded
+	 * @param screens Number of screens of the edited file; if it does not match
+	 * the one of the last checkpoint the history is discarded
+	 * @return The opened journal
+	 * @throws IOException In case of an IO error
+	 */
+	public static @NonNull ActionJournal open(@NonNull File file,
+			@NonNull byte[] fingerprint, int screens) throws IOException {
+		Objects.requireNonNull(file);
+		Objects.requireNonNull(fingerprint);
+
+		if(!file.exists()) {
+			return create(file, fingerprint, screens);
+		}
+
+		FileChannel c = FileChannel.open(file.toPath(), StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+		try {
+			List<Stacks> restored = scan(c, fingerprint);
+			if(restored == null || restored.size() != screens) {
+				c.close();
+				return create(file, fingerprint, screens);
+			}
+			return new ActionJournal(file, restored, new RecordLog(c), fingerprint);
+		} catch (IOException | RuntimeException e) {
+			c.close();
+			throw e;
+		}
+	}
+
+
+	/**
+	 * Creates a new empty journal, replacing the existing one
+	 * @param file File of the journal
+	 * @param fingerprint Fingerprint of the edited file
+	 * @param screens Number of screens of the edited file
+	 * @return The created journal
+	 * @throws IOException In case of an IO error
+	 */
+	public static @NonNull ActionJournal create(@NonNull File file,
+			@NonNull byte[] fingerprint, int screens) throws IOException {
+		Objects.requireNonNull(file);
+		Objects.requireNonNull(fingerprint);
+
+		List<Stacks> m = new ArrayList<>();
+		for(int i = 0; i < screens; i++) {
+			m.add(new Stacks());
+		}
+
+		return new ActionJournal(file, m, new RecordLog(0), fingerprint);
+	}
+
+
+	/**
+	 * @param file File of the journal
+	 * @param model History to write in the file
+	 * @param old Journal containing the payloads of {@code model}; closed
+	 * by this once replaced, kept if the rewrite fails
+	 * @param fingerprint Fingerprint of the checkpoint of {@code model}
+	 * @throws IOException In case of an IO error
+	 */
+	private ActionJournal(@NonNull File file, @NonNull List<Stacks> model,
+			@NonNull RecordLog old, @NonNull byte[] fingerprint) throws IOException {
+		this.file = file;
+
+		// The payloads are copied in a new file, dropping all the records not needed
+		this.model = model;
+		this.log = old;
+		synchronized (lock) {
+			rewriteLocked(model, fingerprint);
+		}
+
+		flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "Journal " + file.getName());
+			t.setDaemon(true);
+			return t;
+		});
+		flusher.scheduleWithFixedDelay(() -> {
+			try {
+				log.flush();
+			} catch (IOException e) {
+				// The journal is rewritten by the next checkpoint
+				e.printStackTrace();
+			}
+		}, GROUP_COMMIT_DELAY, GROUP_COMMIT_DELAY, TimeUnit.MILLISECONDS);
+	}
+
+
+
+	/**
+	 * Reads the history of the last checkpoint from the journal
+	 * @param c Channel of the journal
+	 * @param fingerprint Expected fingerprint of the checkpoint
+	 * @return History of each screen; null if the journal is not valid or
+	 * the fingerprint does not match
+	 * @throws IOException In case of an IO error
+	 */
+	private static List<Stacks> scan(@NonNull FileChannel c,
+			@NonNull byte[] fingerprint) throws IOException {
+		ByteBuffer h = ByteBuffer.allocate(FILE_HEADER_SIZE);
+		if(!RecordLog.readFully(c, h, 0)) {
+			return null;
+		}
+		h.flip();
+		int version;
+		if(h.getInt() != MAGIC || ((version = h.getInt()) != VERSION &&
+				version != VERSION_NO_MARKS)) {
+			return null;
+		}
+
+		List<Stacks> m = new ArrayList<>();
+		List<Stacks> checkpoint = null;
+
+		// History of the last mark; null if none
+		List<Stacks> marked = null;
+
+		RecordLog.Reader r = new RecordLog.Reader(c, FILE_HEADER_SIZE);
+		while(r.next()) {
+			byte type = r.getType();
+			if(type == CHECKPOINT || type == MARK_CHECKPOINT) {
+				byte[] b = r.payload();
+				if(b == null) {
+					break;
+				}
+				if(!Arrays.equals(b, fingerprint)) {
+					checkpoint = null;
+				} else if(type == CHECKPOINT) {
+					checkpoint = copy(m);
+				} else {
+					// The history saved is the one of the mark, if any
+					checkpoint = marked;
+				}
+			} else if(type == MARK) {
+				marked = copy(m);
+			} else if(!apply(m, type, r.getScreen(),
+					new Entry(r.getPayloadPosition(), r.getLength()))) {
+				// Not valid record
+				break;
+			}
+		}
+
+		return checkpoint;
+	}
+
+
+	/**
+	 * Applies a record to the history
+	 * @param m History of each screen
+	 * @param type Type of the record
+	 * @param screen Index of the screen of the record
+	 * @param e Payload of the record
+	 * @return True if the record is valid, false otherwise
+	 */
+	private static boolean apply(@NonNull List<Stacks> m, byte type, int screen,
+			@NonNull Entry e) {
+		if(type == SCREEN_ADD) {
+			m.add(new Stacks());
+			return true;
+		} else if(screen < 0 || screen >= m.size()) {
+			return false;
+		}
+
+		Stacks s = m.get(screen);
+		switch(type) {
+		case PUSH:
+			s.redo.clear();
+			s.undo.add(e);
+			break;
+
+		case MERGE:
+			if(!s.undo.isEmpty()) {
+				// The entries are not changed: can be shared with a checkpoint
+				int last = s.undo.size() - 1;
+				s.undo.set(last, s.undo.get(last).merge(e));
+			}
+			break;
+
+		case UNDO:
+			if(!s.undo.isEmpty()) {
+				s.redo.add(s.undo.remove(s.undo.size() - 1));
+			} else {
+				// Undo of an action preceding the journal: the following
+				// actions can no more be redone from the known state
+				s.redo.clear();
+			}
+			break;
+
+		case REDO:
+			if(!s.redo.isEmpty()) {
+				s.undo.add(s.redo.remove(s.redo.size() - 1));
+			}
+			break;
+
+		case SCREEN_REMOVE:
+			m.remove(screen);
+			break;
+
+		case CLEAR:
+			s.undo.clear();
+			s.redo.clear();
+			break;
+
+		default:
+			return false;
+		}
+
+		return true;
+	}
+
+
+	/**
+	 * @param m History to copy
+	 * @return Copy of the lists of {@code m}; the entries are shared
+	 */
+	private static List<Stacks> copy(@NonNull List<Stacks> m) {
+		List<Stacks> c = new ArrayList<>(m.size());
+		for(Stacks s : m) {
+			Stacks n = new Stacks();
+			n.undo.addAll(s.undo);
+			n.redo.addAll(s.redo);
+			c.add(n);
+		}
+		return c;
+	}
+
+
+
+	/**
+	 * Gets the history of a screen as restored from the journal
+	 * @param screen Index of the screen
+	 * @return History of the screen
+	 * @throws IndexOutOfBoundsException If the screen is not present
+	 */
+	public @NonNull Stacks getStacks(int screen) {
+		synchronized (lock) {
+			return copy(model.subList(screen, screen + 1)).get(0);
+		}
+	}
+
+
+
+	/**
+	 * Reads the payloads of an entry
+	 * @param e Entry to read
+	 * @return Payload of the action followed by the payloads of the merged actions
+	 * @throws IOException In case of an IO error or of a corrupted payload
+	 */
+	public @NonNull List<byte[]> read(@NonNull Entry e) throws IOException {
+		Objects.requireNonNull(e);
+
+		synchronized (lock) {
+			IOException broken = log.getError();
+			if(broken != null) {
+				throw new IOException("Journal not written", broken);
+			}
+			if(e.offsets == null) {
+				throw new EOFException("Entry discarded by the compaction");
+			}
+
+			// The payloads not yet written are read from memory: no wait for the disk
+			List<byte[]> l = new ArrayList<>(e.offsets.length);
+			for(int i = 0; i < e.offsets.length; i++) {
+				l.add(log.read(e.offsets[i], e.lengths[i]));
+			}
+			return l;
+		}
+	}
+
+
+
+	/**
+	 * Appends a new action to the history of a screen
+	 * @param screen Index of the screen
+	 * @param payload Encoded action
+	 */
+	public void push(int screen, @NonNull byte[] payload) {
+		append(PUSH, screen, payload);
+	}
+
+
+	/**
+	 * Appends an action merged in the last action of a screen
+	 * @param screen Index of the screen
+	 * @param payload Encoded merged action
+	 */
+	public void merge(int screen, @NonNull byte[] payload) {
+		append(MERGE, screen, payload);
+	}
+
+
+	/**
+	 * Appends the undo of the last action of a screen
+	 * @param screen Index of the screen
+	 */
+	public void undo(int screen) {
+		append(UNDO, screen, new byte[0]);
+	}
+
+
+	/**
+	 * Appends the redo of the last undone action of a screen
+	 * @param screen Index of the screen
+	 */
+	public void redo(int screen) {
+		append(REDO, screen, new byte[0]);
+	}
+
+
+	/**
+	 * Appends the drop of the history of a screen; used when the history
+	 * reaches a state not described by the journal
+	 * @param screen Index of the screen
+	 */
+	public void clear(int screen) {
+		append(CLEAR, screen, new byte[0]);
+	}
+
+
+	/**
+	 * Appends a new screen, with an empty history, after the existing ones
+	 */
+	public void screenAdded() {
+		append(SCREEN_ADD, -1, new byte[0]);
+	}
+
+
+	/**
+	 * Appends the remove of a screen
+	 * @param screen Index of the removed screen
+	 */
+	public void screenRemoved(int screen) {
+		append(SCREEN_REMOVE, screen, new byte[0]);
+	}
+
+
+	/**
+	 * Marks the current history as the one of the saved file and writes the
+	 * journal to the disk; the journal may be compacted. Can be called from
+	 * any thread: the appends wait only for a compaction
+	 * @param fingerprint Fingerprint of the saved file
+	 * @throws IOException In case of an IO error
+	 */
+	public void checkpoint(@NonNull byte[] fingerprint) throws IOException {
+		Objects.requireNonNull(fingerprint);
+
+		RecordLog l;
+		synchronized (lock) {
+			l = checkpointLocked(fingerprint);
+		}
+		if(l != null) {
+			l.flush();
+		}
+	}
+
+
+	/**
+	 * Appends a checkpoint as {@link #checkpoint(byte[])}, or compacts the
+	 * journal; {@link #lock} must be held
+	 * @param fingerprint Fingerprint of the saved file
+	 * @return Records to write; null if compacted
+	 * @throws IOException In case of an IO error of the compaction
+	 */
+	private RecordLog checkpointLocked(@NonNull byte[] fingerprint)
+			throws IOException {
+		long end = log.getSize();
+		if(log.getError() != null ||
+				(end > COMPACTION_THRESHOLD && end > 2 * liveSize())) {
+			rewriteLocked(model, fingerprint);
+			return null;
+		}
+		log.append(CHECKPOINT, -1, fingerprint);
+		return log;
+	}
+
+
+	/**
+	 * Marks the current history as the one of a file being saved, eg. of a
+	 * copy saved in background; the history can be changed while saving
+	 * @return Mark of the history
+	 * @see #checkpoint(Mark, byte[])
+	 */
+	public @NonNull Mark mark() {
+		synchronized (lock) {
+			append(MARK, -1, new byte[0]);
+			return new Mark(log.getSize(), rewrites, copy(model));
+		}
+	}
+
+
+	/**
+	 * Makes a marked history the one of the saved file, as
+	 * {@link #checkpoint(byte[])}; the records following the mark are kept.
+	 * Can be called from any thread
+	 * @param m Mark of the history saved, the last of this journal
+	 * @param fingerprint Fingerprint of the saved file
+	 * @throws IOException In case of an IO error
+	 */
+	public void checkpoint(@NonNull Mark m, @NonNull byte[] fingerprint)
+			throws IOException {
+		Objects.requireNonNull(m);
+		Objects.requireNonNull(fingerprint);
+
+		RecordLog l;
+		synchronized (lock) {
+			if(m.end == log.getSize() && m.rewrites == rewrites) {
+				// Not changed since the mark: the journal can be compacted
+				l = checkpointLocked(fingerprint);
+			} else if(log.getError() != null) {
+				// The records of the mark may not be written: the journal is
+				// rewritten from the history of the mark, if still readable
+				rewriteLocked(m.rewrites == rewrites ? m.model : null, fingerprint);
+				l = null;
+			} else {
+				log.append(MARK_CHECKPOINT, -1, fingerprint);
+				l = log;
+			}
+		}
+		if(l != null) {
+			l.flush();
+		}
+	}
+
+
+
+	/**
+	 * Appends a record
+	 * @param type Type of the record
+	 * @param screen Index of the screen of the record
+	 * @param payload Payload of the record
+	 */
+	private void append(byte type, int screen, @NonNull byte[] payload) {
+		Objects.requireNonNull(payload);
+
+		synchronized (lock) {
+			Entry e = new Entry(log.append(type, screen, payload), payload.length);
+			if(type != CHECKPOINT && type != MARK && type != MARK_CHECKPOINT &&
+					!apply(model, type, screen, e)) {
+				throw new IllegalArgumentException("Screen not present");
+			}
+		}
+	}
+
+
+
+	/**
+	 * @return Size of the records needed to describe the current history
+	 */
+	private long liveSize() {
+		long size = FILE_HEADER_SIZE;
+		for(Stacks s : model) {
+			size += RECORD_HEADER_SIZE;
+			for(Entry e : s.undo) {
+				size += e.size();
+			}
+			for(Entry e : s.redo) {
+				size += e.size() + RECORD_HEADER_SIZE;
+			}
+		}
+		return size;
+	}
+
+
+
+	/**
+	 * Rewrites the journal with only the records needed to describe
+	 * the history, followed by a checkpoint. The entries of the history are
+	 * updated with the new positions of the payloads. The old journal is
+	 * closed once replaced, kept if the rewrite fails. {@link #lock} must be
+	 * held: the appends wait for the end of the rewrite
+	 * @param checkpointed History of the checkpoint, {@link #model} or an older
+	 * one followed by the records of the current history; null for no checkpoint
+	 * @param fingerprint Fingerprint of the checkpoint
+	 * @throws IOException In case of an IO error
+	 */
+	private void rewriteLocked(List<Stacks> checkpointed,
+			@NonNull byte[] fingerprint) throws IOException {
+		List<Entry> entries = new ArrayList<>();
+		List<long[]> offsets = new ArrayList<>();
+
+		RecordLog next;
+		try(RecordLog.Writer w = new RecordLog.Writer(file)) {
+			w.header(ByteBuffer.allocate(FILE_HEADER_SIZE)
+					.putInt(MAGIC).putInt(VERSION).array());
+
+			if(checkpointed != null && checkpointed != model) {
+				writeHistory(w, checkpointed, entries, offsets);
+				w.record(CHECKPOINT, -1, fingerprint);
+
+				// The current history replaces the one of the checkpoint
+				for(int i = 0; i < checkpointed.size(); i++) {
+					w.record(SCREEN_REMOVE, 0, new byte[0]);
+				}
+			}
+
+			writeHistory(w, model, entries, offsets);
+			if(checkpointed == model) {
+				w.record(CHECKPOINT, -1, fingerprint);
+			}
+
+			next = new RecordLog(w.getPosition());
+			next.open(w);
+		}
+
+		// The records of the old journal are all in the new one
+		log.discard();
+		log = next;
+		rewrites++;
+
+		// Limits the length of the history, as written
+		for(Stacks s : model) {
+			while(s.undo.size() > MAX_ENTRIES) {
+				s.undo.remove(0).offsets = null;
+			}
+		}
+		for(int i = 0; i < entries.size(); i++) {
+			entries.get(i).offsets = offsets.get(i);
+		}
+	}
+
+
+	/**
+	 * Writes the records describing a history, from a new screen; the
+	 * undoable actions are limited to {@link #MAX_ENTRIES}
+	 * @param w Writer of the new journal
+	 * @param m History to write
+	 * @param entries Written entries, filled
+	 * @param offsets New positions of the payloads of {@code entries}, filled
+	 * @throws IOException In case of an IO error
+	 */
+	private void writeHistory(@NonNull RecordLog.Writer w,
+			@NonNull List<Stacks> m, @NonNull List<Entry> entries,
+			@NonNull List<long[]> offsets) throws IOException {
+		for(int screen = 0; screen < m.size(); screen++) {
+			Stacks s = m.get(screen);
+			w.record(SCREEN_ADD, -1, new byte[0]);
+
+			for(Entry e : s.undo.subList(
+					Math.max(0, s.undo.size() - MAX_ENTRIES), s.undo.size())) {
+				entries.add(e);
+				offsets.add(writeEntry(w, e, screen));
+			}
+
+			// Each undo moves the last pushed action in the redo list:
+			// the next to redo must be pushed last
+			for(int i = s.redo.size() - 1; i >= 0; i--) {
+				Entry e = s.redo.get(i);
+				entries.add(e);
+				offsets.add(writeEntry(w, e, screen));
+			}
+			for(int i = 0; i < s.redo.size(); i++) {
+				w.record(UNDO, screen, new byte[0]);
+			}
+		}
+	}
+
+
+	/**
+	 * Writes the records of an entry, copying the payloads from {@link #log}
+	 * @param w Writer of the new journal
+	 * @param e Entry to write
+	 * @param screen Index of the screen of the entry
+	 * @return New positions of the payloads
+	 * @throws IOException In case of an IO error
+	 */
+	private long[] writeEntry(@NonNull RecordLog.Writer w, @NonNull Entry e,
+			int screen) throws IOException {
+		long[] o = new long[e.offsets.length];
+		for(int i = 0; i < e.offsets.length; i++) {
+			o[i] = w.record(i == 0 ? PUSH : MERGE, screen,
+					log.read(e.offsets[i], e.lengths[i]));
+		}
+		return o;
+	}
+
+
+
+	@Override
+	public void close() throws IOException {
+		flusher.shutdown();
+		synchronized (lock) {
+			// The records following the last write are lost if broken
+			log.close();
+		}
+	}
+
+
+
+	/** History marked by {@link ActionJournal#mark()} */
+	public static final class Mark {
+
+		/** Logical size of the journal after the mark */
+		private final long end;
+
+		/** Rewrites of the journal before the mark */
+		private final int rewrites;
+
+		/** History at the mark */
+		private final List<Stacks> model;
+
+		private Mark(long end, int rewrites, @NonNull List<Stacks> model) {
+			this.end = end;
+			this.rewrites = rewrites;
+			this.model = model;
+		}
+	}
+
+
+
+	/**
+	 * Action stored in the journal: the payload of the action followed
+	 * by the payloads of the actions merged in it
+	 */
+	public static final class Entry {
+
+		/** Position of the payloads in the file; null if discarded */
+		private long[] offsets;
+
+		/** Length of the payloads */
+		private final int[] lengths;
+
+		private Entry(long offset, int length) {
+			this(new long[] { offset }, new int[] { length });
+		}
+
+		private Entry(@NonNull long[] offsets, @NonNull int[] lengths) {
+			this.offsets = offsets;
+			this.lengths = lengths;
+		}
+
+		/**
+		 * @param e Entry of the merged action
+		 * @return New entry with the payload of {@code e} appended
+		 */
+		private Entry merge(@NonNull Entry e) {
+			long[] o = Arrays.copyOf(offsets, offsets.length + 1);
+			int[] l = Arrays.copyOf(lengths, lengths.length + 1);
+			o[offsets.length] = e.offsets[0];
+			l[lengths.length] = e.lengths[0];
+			return new Entry(o, l);
+		}
+
+		/**
+		 * @return Size of the records of this entry
+		 */
+		private long size() {
+			long s = 0;
+			for(int l : lengths) {
+				s += RECORD_HEADER_SIZE + l;
+			}
+			return s;
+		}
+
+		/**
+		 * @return Total size of the payloads, in bytes
+		 */
+		public long getPayloadSize() {
+			long s = 0;
+			for(int l : lengths) {
+				s += l;
+			}
+			return s;
+		}
+	}
+
+
+
+	/**
+	 * History of a screen
+	 */
+	public static final class Stacks {
+
+		/** Actions that can be undone, from the oldest to the last executed */
+		public final List<Entry> undo = new ArrayList<>();
+
+		/** Actions that can be redone, from the farthest to the next to redo */
+		public final List<Entry> redo = new ArrayList<>();
+	}
+}
@@ -1,25 +1,97 @@
 package com.macrokeyseditor.fur;
 
-import java.util.Date;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
 import java.util.Objects;
-import java.util.Stack;
+
+import javax.swing.event.EventListenerList;
 
 import org.eclipse.jdt.annotation.NonNull;
 
 /**
  * Manager to the collection of actions
+ * <p>
+ * The actions are kept in a tree: executing an action after some undo opens
+ * a new branch, the undone actions are kept and can be reached with
+ * {@link #jumpTo(Node)}. The redo follows the last visited branch.
+ * </p>
+ * <p>
+ * If a {@link Snapshotter} is given, the state is captured every
+ * {@link #SNAPSHOT_INTERVAL} levels of the tree: a jump restores the nearest
+ * snapshot and executes only the following actions.
+ * </p>
+ * <p>
+ * The history is bounded by a memory budget: when the estimated memory of
+ * the stored actions exceeds the budget the branches no more reachable by
+ * redo are dropped first, then the oldest actions.
+ * </p>
+ * @see Action#estimateSize()
  */
 public final class ActionManager {
-	
-	private final Stack<Action> undo = new Stack<>();
-	private final Stack<Action> redo = new Stack<>();
-	
-	
+
+	/** Default memory budget in bytes for the stored actions */
+	public static final long DEFAULT_BUDGET = 8 * 1024 * 1024;
+
+	/** Levels of the tree between two snapshots of the state */
+	public static final int SNAPSHOT_INTERVAL = 32;
+
+	/** First node of the history; has no action */
+	private Node root = new Node(null, null);
+
+	/** Node of the current state */
+	private Node current = root;
+
+	/** Nodes from the child of {@link #root} to {@link #current} */
+	private final Deque<Node> path = new ArrayDeque<>();
+
+	/**
+	 * Branches no more reachable by redo, from the oldest; can contain
+	 * branches removed or reachable again
+	 */
+	private final Deque<Node> detached = new ArrayDeque<>();
+
+	/** Captures the state for the jumps; null if none */
+	private final Snapshotter<Object> snapshotter;
+
+	/** Maximum estimated memory of the stored actions, in bytes */
+	private long budget;
+
+	/** Estimated memory of the stored actions and snapshots, in bytes */
+	private long memory = 0;
+
+	private final EventListenerList listeners = new EventListenerList();
+
+
 	public ActionManager() {
-		
+		this(DEFAULT_BUDGET);
+	}
+
+
+	/**
+	 * @param budget Maximum estimated memory of the stored actions, in bytes
+	 * @throws IllegalArgumentException If {@code budget} <= 0
+	 */
+	public ActionManager(long budget) {
+		this(budget, null);
+	}
+
+
+	/**
+	 * @param budget Maximum estimated memory of the stored actions, in bytes
+	 * @param snapshotter Captures the state edited by the actions; null to
+	 * never capture the state
+	 * @throws IllegalArgumentException If {@code budget} <= 0
+	 */
+	@SuppressWarnings("unchecked")
+	public ActionManager(long budget, Snapshotter<?> snapshotter) {
+		this.snapshotter = (Snapshotter<Object>) snapshotter;
+		setBudget(budget);
 	}
-	
-	
+
+
 	/**
 	 * Executes the given action and adds it to the executed action list
 	 * @param a Action to add
@@ -27,10 +99,10 @@ public final class ActionManager {
 	 */
 	public void add(@NonNull Action a) {
 		Objects.requireNonNull(a);
-		
+
 		add(a, true);
 	}
-	
+
 	/**
 	 * Add the action in the executed action list
 	 * @param a Action to add
@@ -39,54 +111,618 @@ public final class ActionManager {
 	 */
 	public void add(@NonNull Action a, boolean execute) {
 		Objects.requireNonNull(a);
-		
-		a.date = new Date();
-		
+
+		a.addTime = System.nanoTime();
+
+		// Tried before the execution, so the current node is captured only
+		// if a new node follows it. A merge would change the state of the
+		// following branches
+		boolean merged = current != root && current.children.isEmpty() &&
+				current.action.tryToMerge(a);
 		if(execute) {
+			if(!merged) {
+				// The state is still the one of the current node
+				snapshot(current);
+			}
 			a.execute();
 		}
-		
-		redo.clear();
-		
-		if(undo.isEmpty()) {
-			undo.push(a);
-		} else if(undo.peek().tryToMerge(a)) {
-			// Update the merge date
-			undo.peek().dateLastMerge = new Date();
+
+		if(merged) {
+			// Update the merge time
+			Action top = current.action;
+			top.lastMergeTime = System.nanoTime();
+			top.merged = true;
+
+			// The merge can change the memory used
+			memory -= top.size;
+			top.size = top.estimateSize();
+			memory += top.size;
+
+			// The state of the node is changed
+			dropSnapshot(current);
 		} else {
-			undo.push(a);
+			a.size = a.estimateSize();
+			memory += a.size;
+
+			Node n = new Node(a, current);
+			current.children.add(n);
+			setRedo(current, n);
+			current = n;
+			path.addLast(n);
+		}
+
+		trim();
+
+		for(ActionManagerListener l :
+			listeners.getListeners(ActionManagerListener.class)) {
+			l.actionAdded(a, merged);
+		}
+	}
+
+
+	/**
+	 * Replace the history with the given actions, without executing them
+	 * and without notifying the listeners
+	 * @param undoable Actions that can be undone, from the oldest
+	 * to the last executed
+	 * @param redoable Actions that can be redone, from the farthest
+	 * to the next to redo
+	 */
+	public void restore(@NonNull List<? extends Action> undoable,
+			@NonNull List<? extends Action> redoable) {
+		Objects.requireNonNull(undoable);
+		Objects.requireNonNull(redoable);
+
+		reset();
+
+		for(Action a : undoable) {
+			Node n = append(current, a);
+			current = n;
+			path.addLast(n);
 		}
+		Node p = current;
+		for(int i = redoable.size() - 1; i >= 0; i--) {
+			p = append(p, redoable.get(i));
+		}
+
+		trim();
+	}
+
+
+	/**
+	 * Drops all the history, keeping the current state as the first node,
+	 * eg. when an action can no more be undone
+	 */
+	public void clear() {
+		reset();
+
+		for(ActionManagerListener l :
+			listeners.getListeners(ActionManagerListener.class)) {
+			l.historyCleared();
+		}
+	}
+
+
+	/**
+	 * Replaces the history with an empty one
+	 */
+	private void reset() {
+		// The nodes of the old history are no more valid
+		remove(root);
+
+		root = new Node(null, null);
+		current = root;
+		path.clear();
+		detached.clear();
+		memory = 0;
+	}
+
+
+	/**
+	 * Adds a node as the redo child of the given node
+	 * @param parent Parent of the node
+	 * @param a Action of the node
+	 * @return Created node
+	 */
+	private Node append(@NonNull Node parent, @NonNull Action a) {
+		a.size = a.estimateSize();
+		memory += a.size;
+
+		Node n = new Node(a, parent);
+		parent.children.add(n);
+		parent.redo = n;
+		return n;
+	}
+
+
+	/**
+	 * Adds a listener for the changes of the history
+	 * @param l Listener to add
+	 */
+	public void addListener(@NonNull ActionManagerListener l) {
+		Objects.requireNonNull(l);
+		listeners.add(ActionManagerListener.class, l);
+	}
+
+
+	/**
+	 * Remove a listener for the changes of the history
+	 * @param l Listener to remove
+	 */
+	public void removeListener(@NonNull ActionManagerListener l) {
+		Objects.requireNonNull(l);
+		listeners.remove(ActionManagerListener.class, l);
 	}
-	
+
 	/**
 	 * Undo the last action
 	 * @return Cancelled action; null if none
 	 */
 	public Action undo() {
-		if(undo.isEmpty()) {
+		if(current == root) {
 			return null;
 		} else {
-			Action a = undo.pop();
-			redo.push(a);
-			a.undoExecute();
-			
-			return a;
+			snapshot(current);
+
+			Node n = current;
+			n.action.undoExecute();
+			path.removeLast();
+			current = n.parent;
+
+			trim();
+
+			for(ActionManagerListener l :
+				listeners.getListeners(ActionManagerListener.class)) {
+				l.actionUndone(n.action);
+			}
+
+			return n.action;
 		}
 	}
-	
+
 	/**
 	 * Redo the last undo action
 	 * @return Actio redone; null if none
 	 */
 	public Action redo() {
-		if(redo.isEmpty()) {
+		Node n = current.redo;
+		if(n == null) {
 			return null;
 		} else {
-			Action a = redo.pop();
-			undo.push(a);
-			a.execute();
-			
-			return a;
+			snapshot(current);
+
+			n.action.execute();
+			current = n;
+			path.addLast(n);
+
+			trim();
+
+			for(ActionManagerListener l :
+				listeners.getListeners(ActionManagerListener.class)) {
+				l.actionRedone(n.action);
+			}
+
+			return n.action;
+		}
+	}
+
+
+	/**
+	 * Moves the history to the given node, undoing and redoing the actions
+	 * between the current node and {@code target}; the listeners are
+	 * notified once.
+	 * <p>
+	 * If a snapshot of an ancestor of {@code target} is near enough, the state
+	 * is restored from it and only the following actions are executed.
+	 * </p>
+	 * @param target Node to reach
+	 * @throws IllegalArgumentException If {@code target} is not in this history
+	 */
+	public void jumpTo(@NonNull Node target) {
+		Objects.requireNonNull(target);
+		if(target.manager() != this || target.removed) {
+			throw new IllegalArgumentException("Node not in the history");
+		} else if(target == current) {
+			return;
+		}
+
+		snapshot(current);
+
+		// Nodes to execute, from the common ancestor to the target
+		List<Node> down = new ArrayList<>();
+		Node a = current;
+		Node b = target;
+		while(a.depth > b.depth) {
+			a = a.parent;
+		}
+		while(b.depth > a.depth) {
+			down.add(b);
+			b = b.parent;
+		}
+		while(a != b) {
+			a = a.parent;
+			down.add(b);
+			b = b.parent;
+		}
+		Collections.reverse(down);
+		Node ancestor = a;
+		int undone = current.depth - ancestor.depth;
+
+		// True if the target is not reachable only by redo
+		boolean branched = false;
+		Node p = ancestor;
+		for(Node n : down) {
+			if(p.redo != n) {
+				branched = true;
+				break;
+			}
+			p = n;
+		}
+
+		// The snapshot is used only if saves more actions than its cost
+		Node s = nearestSnapshot(target,
+				undone + down.size() - SNAPSHOT_INTERVAL);
+		if(s != null) {
+			snapshotter.restore(s.snapshot);
+
+			List<Node> replay = new ArrayList<>(target.depth - s.depth);
+			for(Node n = target; n != s; n = n.parent) {
+				replay.add(n);
+			}
+			for(int i = replay.size() - 1; i >= 0; i--) {
+				replay.get(i).action.execute();
+			}
+		} else {
+			for(Node n = current; n != ancestor; n = n.parent) {
+				n.action.undoExecute();
+			}
+			for(Node n : down) {
+				n.action.execute();
+			}
+		}
+
+		for(int i = 0; i < undone; i++) {
+			path.removeLast();
+		}
+		p = ancestor;
+		for(Node n : down) {
+			setRedo(p, n);
+			path.addLast(n);
+			p = n;
+		}
+		current = target;
+
+		trim();
+
+		for(ActionManagerListener l :
+			listeners.getListeners(ActionManagerListener.class)) {
+			l.historyJumped(undone, down.size(), branched);
+		}
+	}
+
+
+	/**
+	 * Finds the nearest node, from the given node to the root, with a snapshot
+	 * @param n First node to check
+	 * @param maxReplay Maximum number of actions to execute from the found
+	 * node to {@code n}
+	 * @return Node with a snapshot; null if not found in {@code maxReplay} levels
+	 */
+	private Node nearestSnapshot(@NonNull Node n, int maxReplay) {
+		if(snapshotter == null) {
+			return null;
+		}
+
+		for(int i = 0; i <= maxReplay && n != null; i++) {
+			if(n.snapshot != null) {
+				return n;
+			}
+			n = n.parent;
+		}
+		return null;
+	}
+
+
+	/**
+	 * Captures the state of the given node, if its level requires a snapshot;
+	 * the current state must be the one of the node
+	 * @param n Node of the current state
+	 */
+	private void snapshot(@NonNull Node n) {
+		if(snapshotter != null && n.snapshot == null &&
+				n.depth % SNAPSHOT_INTERVAL == 0) {
+			n.snapshot = snapshotter.capture();
+			n.snapshotSize = snapshotter.estimateSize(n.snapshot);
+			memory += n.snapshotSize;
+		}
+	}
+
+
+	/**
+	 * Drops the snapshot of the given node, if any
+	 * @param n Node of the snapshot
+	 */
+	private void dropSnapshot(@NonNull Node n) {
+		if(n.snapshot != null) {
+			memory -= n.snapshotSize;
+			n.snapshot = null;
+		}
+	}
+
+
+	/**
+	 * Sets the child reached by redo; the old child branch is detached
+	 * @param parent Node where to set the child
+	 * @param n New child to redo
+	 */
+	private void setRedo(@NonNull Node parent, @NonNull Node n) {
+		if(parent.redo != n) {
+			if(parent.redo != null) {
+				detached.addLast(parent.redo);
+			}
+			parent.redo = n;
+		}
+	}
+
+
+	/**
+	 * Drops the actions until the memory used is in the budget.
+	 * The branches no more reachable by redo are dropped first, then
+	 * the oldest undoable actions, then the farthest redoable actions;
+	 * the last executed action is always kept.
+	 */
+	private void trim() {
+		while(memory > budget) {
+			if(!pruneDetached() && !pruneRoot() && !pruneRedo()) {
+				return;
+			}
+		}
+	}
+
+
+	/**
+	 * Drops the oldest branch not reachable by undo or redo
+	 * @return True if a branch was dropped, false if none
+	 */
+	private boolean pruneDetached() {
+		while(!detached.isEmpty()) {
+			Node n = detached.removeFirst();
+			// The branch may be already dropped or reachable again
+			if(!n.removed && n.parent != null && n.parent.redo != n) {
+				n.parent.children.remove(n);
+				remove(n);
+				return true;
+			}
+		}
+		return false;
+	}
+
+
+	/**
+	 * Drops the oldest executed action, with the other branches of the root
+	 * @return True if the action was dropped, false if it is the last executed
+	 */
+	private boolean pruneRoot() {
+		if(path.size() <= 1) {
+			return false;
+		}
+
+		Node r = path.removeFirst();
+		root.children.remove(r);
+		remove(root);
+
+		// The action of the new root can no more be undone
+		memory -= r.action.size;
+		r.action = null;
+		r.parent = null;
+		root = r;
+		return true;
+	}
+
+
+	/**
+	 * Drops the farthest action that can be redone
+	 * @return True if the action was dropped, false if none
+	 */
+	private boolean pruneRedo() {
+		Node n = current.redo;
+		if(n == null) {
+			return false;
+		}
+
+		while(n.redo != null) {
+			n = n.redo;
+		}
+		n.parent.children.remove(n);
+		n.parent.redo = null;
+		remove(n);
+		return true;
+	}
+
+
+	/**
+	 * Marks the node and its descendants as removed, releasing their memory
+	 * @param n First node to remove
+	 */
+	private void remove(@NonNull Node n) {
+		Deque<Node> stack = new ArrayDeque<>();
+		stack.push(n);
+		while(!stack.isEmpty()) {
+			Node x = stack.pop();
+			x.removed = true;
+			if(x.action != null) {
+				memory -= x.action.size;
+			}
+			dropSnapshot(x);
+			for(Node c : x.children) {
+				stack.push(c);
+			}
+		}
+	}
+
+
+	/**
+	 * @return First node of the history; its action can not be undone
+	 */
+	public @NonNull Node getRoot() {
+		return root;
+	}
+
+
+	/**
+	 * @return Node of the current state
+	 */
+	public @NonNull Node getCurrent() {
+		return current;
+	}
+
+
+	/**
+	 * @return Maximum estimated memory of the stored actions, in bytes
+	 */
+	public long getBudget() {
+		return budget;
+	}
+
+
+	/**
+	 * Sets the memory budget; the actions exceeding the budget are dropped
+	 * @param budget Maximum estimated memory of the stored actions, in bytes
+	 * @throws IllegalArgumentException If {@code budget} <= 0
+	 */
+	public void setBudget(long budget) {
+		if(budget <= 0) {
+			throw new IllegalArgumentException("Budget must be > 0");
+		}
+
+		this.budget = budget;
+		trim();
+	}
+
+
+	/**
+	 * @return Estimated memory used by the stored actions, in bytes
+	 */
+	public long getMemoryUsage() {
+		return memory;
+	}
+
+
+	/**
+	 * @return Number of actions that can be undone
+	 */
+	public int getUndoDepth() {
+		return current.depth - root.depth;
+	}
+
+
+	/**
+	 * @return Number of actions that can be redone
+	 */
+	public int getRedoDepth() {
+		int c = 0;
+		for(Node n = current.redo; n != null; n = n.redo) {
+			c++;
+		}
+		return c;
+	}
+
+
+
+	/**
+	 * Node of the history: the state after the execution of its action
+	 */
+	public final class Node {
+
+		/** Action that leads to this from the parent; null for the root */
+		private Action action;
+
+		/** Null for the root */
+		private Node parent;
+
+		private final List<Node> children = new ArrayList<>(1);
+
+		/** Child reached by redo; null if none */
+		private Node redo;
+
+		/** Distance from the first node ever created */
+		private final int depth;
+
+		/** Captured state of this; null if none */
+		private Object snapshot;
+
+		/** Memory estimated for {@link #snapshot} */
+		private long snapshotSize;
+
+		/** True if dropped from the history */
+		private boolean removed = false;
+
+
+		private Node(Action action, Node parent) {
+			this.action = action;
+			this.parent = parent;
+			this.depth = parent == null ? 0 : parent.depth + 1;
+		}
+
+
+		private ActionManager manager() {
+			return ActionManager.this;
+		}
+
+
+		/**
+		 * @return Action that leads to this from the parent; null for the root
+		 */
+		public Action getAction() {
+			return action;
+		}
+
+
+		/**
+		 * @return Parent of this; null for the root
+		 */
+		public Node getParent() {
+			return parent;
+		}
+
+
+		/**
+		 * @return Read-only children of this, from the oldest
+		 */
+		public @NonNull List<Node> getChildren() {
+			return Collections.unmodifiableList(children);
+		}
+
+
+		/**
+		 * @return Child reached by redo from this; null if none
+		 */
+		public Node getRedoChild() {
+			return redo;
+		}
+
+
+		/**
+		 * @return Level of this in the tree; meaningful only to compare nodes
+		 */
+		public int getDepth() {
+			return depth;
+		}
+
+
+		/**
+		 * @return True if the state of this was captured
+		 */
+		public boolean hasSnapshot() {
+			return snapshot != null;
+		}
+
+
+		/**
+		 * @return True if this is no more in the history
+		 */
+		public boolean isRemoved() {
+			return removed;
 		}
 	}
 }
@@ -0,0 +1,50 @@
+package com.macrokeyseditor.fur;
+
+import java.util.EventListener;
+
+import org.eclipse.jdt.annotation.NonNull;
+
+/**
+ * Listener for the changes of the history of an {@link ActionManager}
+ */
+public interface ActionManagerListener extends EventListener {
+	
+	/**
+	 * Called when an action is added to the history
+	 * @param a Added action
+	 * @param merged True if {@code a} was merged in the last executed action,
+	 * false if it was added as a new action
+	 */
+	void actionAdded(@NonNull Action a, boolean merged);
+	
+	/**
+	 * Called when an action is undone
+	 * @param a Undone action
+	 */
+	void actionUndone(@NonNull Action a);
+	
+	/**
+	 * Called when an action is redone
+	 * @param a Redone action
+	 */
+	void actionRedone(@NonNull Action a);
+	
+	/**
+	 * Called when the history jumps to another node
+	 * @param undone Number of actions undone, from the current node to the
+	 * common ancestor with the reached node
+	 * @param redone Number of actions redone, from the common ancestor
+	 * to the reached node
+	 * @param branched True if the reached node is not on the redo path of
+	 * the common ancestor, so the redone actions are not the ones of
+	 * {@link #actionRedone(Action)}
+	 * @see ActionManager#jumpTo(ActionManager.Node)
+	 */
+	void historyJumped(int undone, int redone, boolean branched);
+	
+	/**
+	 * Called when the history is dropped; the current state is kept
+	 * @see ActionManager#clear()
+	 */
+	void historyCleared();
+}
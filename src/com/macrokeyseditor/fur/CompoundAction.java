@@ -0,0 +1,81 @@
+package com.macrokeyseditor.fur;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Objects;
+
+import org.eclipse.jdt.annotation.NonNull;
+
+/**
+ * Action made of many actions, undone and redone as one.
+ * The actions are executed in the order of insertion and undone in the
+ * inverse order
+ */
+public class CompoundAction extends Action {
+
+	/** Actions in the order of execution */
+	private final List<Action> actions = new ArrayList<>();
+
+
+
+	/**
+	 * Adds an action, after the ones already added.
+	 * The action is not executed by this method
+	 * @param a Action to add
+	 */
+	public void add(@NonNull Action a) {
+		Objects.requireNonNull(a);
+		actions.add(a);
+	}
+
+
+	/**
+	 * @return Actions in the order of execution
+	 */
+	public @NonNull List<Action> getActions() {
+		return Collections.unmodifiableList(actions);
+	}
+
+
+	/**
+	 * @return True if there are no actions
+	 */
+	public boolean isEmpty() {
+		return actions.isEmpty();
+	}
+
+
+	@Override
+	public long estimateSize() {
+		long s = super.estimateSize();
+		for(Action a : actions) {
+			s += a.estimateSize();
+		}
+		return s;
+	}
+
+
+	@Override
+	public void undoExecute() {
+		ListIterator<Action> it = actions.listIterator(actions.size());
+		while(it.hasPrevious()) {
+			it.previous().undoExecute();
+		}
+	}
+
+
+	@Override
+	public void execute() {
+		for(Action a : actions) {
+			a.execute();
+		}
+	}
+
+
+	@Override
+	public boolean tryToMerge(@NonNull Action followingAction) {
+		return false;
+	}
+}
@@ -1,9 +1,10 @@
 package com.macrokeyseditor.fur;
 
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
+import java.lang.reflect.Array;
 import java.util.ArrayList;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 
 import org.eclipse.jdt.annotation.NonNull;
@@ -23,8 +24,21 @@ public class ModifyAction<T> extends Action {
 	/** Instances of the edited objects */
 	private final List<T> instances;
 	
-	private final Method mSet;
-	private final String propertyName;
+	/** State of each instance; null until the first merge */
+	private Map<T, State> stateOf;
+	
+	/** Accessor of the edited property */
+	private final PropertyAccessor property;
+	
+	/**
+	 * Memory estimated for each edited instance: the state with the old
+	 * and the new value, the references in the lists and in the map; the
+	 * strings and the arrays are added by {@link #valueSize(Object)}
+	 */
+	private static final long INSTANCE_SIZE = 160;
+	
+	/** Memory estimated for a string or an array, without the elements */
+	private static final long ARRAY_SIZE = 40;
 	
 	/** 
 	 * Maximum elapsed time to merge two {@link ModifyAction}
@@ -36,54 +50,108 @@ public class ModifyAction<T> extends Action {
 	 * @param sets List of couples (instance, new value) where the instance is
 	 * the object subject to the edit and the new value is the new value to set
 	 * @param maxElapsedTime Maximum elapsed time to merge two {@link ModifyAction}
-	 * @throws NoSuchMethodException If one method {@code get}(+name) or
+	 * @throws IllegalArgumentException If one method {@code get}(+name) or
 	 * {@code set}(+name) does not exists
-	 * @throws SecurityException If the set or get methods are not accessible
-	 * @throws IllegalAccessException If the set or get methods are not present
-	 * @throws IllegalArgumentException If the parameter of the set is not correct
 	 * @throws IllegalArgumentException If {@code sets} is empty
-	 * @throws InvocationTargetException If the get or the set generates exceptions
+	 * @throws ClassCastException If a new value is not of the type of the field
+	 * @see PropertyAccessor#of(Class, String)
 	 */
-	public ModifyAction(@NonNull String name, @NonNull List<Set<T>> sets, int maxElapsedTime)
-			throws NullPointerException, NoSuchMethodException, SecurityException,
-			IllegalAccessException, IllegalArgumentException, InvocationTargetException {
-		Objects.requireNonNull(name);
+	public ModifyAction(@NonNull String name, @NonNull List<Set<T>> sets,
+			int maxElapsedTime) {
+		this(accessorOf(name, sets), sets, maxElapsedTime);
+	}
+	
+	
+	/**
+	 * The new values are set by {@link #execute()}
+	 * @param property Accessor of the field to edit
+	 * @param sets List of couples (instance, new value) where the instance is
+	 * the object subject to the edit and the new value is the new value to set
+	 * @param maxElapsedTime Maximum elapsed time to merge two {@link ModifyAction}
+	 * @throws IllegalArgumentException If {@code sets} is empty
+	 * @throws ClassCastException If a new value is not of the type of the field
+	 */
+	public ModifyAction(@NonNull PropertyAccessor property,
+			@NonNull List<Set<T>> sets, int maxElapsedTime) {
+		Objects.requireNonNull(property);
 		Objects.requireNonNull(sets);
-		
-		if(!Character.isUpperCase(name.charAt(0))) {
-			// The first letter must be uppercase
-			name = name.substring(0, 1).toUpperCase() + name.substring(1);
-		} else if(sets.isEmpty()) {
+		if(sets.isEmpty()) {
 			throw new IllegalArgumentException("Sets list empty");
 		}
 		
-		final String getter = "get" + name;
-		final String setter = "set" + name;
-		
-		Class<?> templateClass = sets.get(0).instance.getClass();
-		Method mGet = templateClass.getMethod(getter);
-		
-		// The return type of the get find the correct set
-		mSet = templateClass.getMethod(setter, mGet.getReturnType());
-		
-		
-		instances = new ArrayList<>();
+		instances = new ArrayList<>(sets.size());
 		for(Set<T> s : sets) {
+			property.check(s.value);
+			
 			State p = new State();
 			p.instance = s.instance;
-			p.oldValue = mGet.invoke(s.instance);
+			p.oldValue = property.get(s.instance);
 			p.newValue = s.value;
 			
-			mSet.invoke(s.instance, s.value);
-			
 			instancesValues.add(p);
 			instances.add(s.instance);
 		}
 		
 		
-		this.propertyName = name;
+		this.property = property;
 		this.maxElapsedTime = maxElapsedTime;
+	}
+	
+	
+	/**
+	 * Creates the action of an edit already described, without setting the values;
+	 * used to restore a stored action
+	 * @param property Accessor of the edited field
+	 * @param instances Instances subject to the edit
+	 * @param oldValues Value of the field of each instance before the edit
+	 * @param newValues Value of the field of each instance after the edit
+	 * @param maxElapsedTime Maximum elapsed time to merge two {@link ModifyAction}
+	 * @throws IllegalArgumentException If the lists are empty or have different sizes
+	 */
+	public ModifyAction(@NonNull PropertyAccessor property,
+			@NonNull List<T> instances, @NonNull List<?> oldValues,
+			@NonNull List<?> newValues, int maxElapsedTime) {
+		Objects.requireNonNull(property);
+		Objects.requireNonNull(instances);
+		Objects.requireNonNull(oldValues);
+		Objects.requireNonNull(newValues);
+		if(instances.isEmpty()) {
+			throw new IllegalArgumentException("Instances list empty");
+		} else if(oldValues.size() != instances.size() ||
+				newValues.size() != instances.size()) {
+			throw new IllegalArgumentException("Lists of different size");
+		}
+		
+		this.instances = new ArrayList<>(instances);
+		for(int i = 0; i < instances.size(); i++) {
+			State p = new State();
+			p.instance = Objects.requireNonNull(instances.get(i));
+			p.oldValue = oldValues.get(i);
+			p.newValue = newValues.get(i);
+			instancesValues.add(p);
+		}
 		
+		this.property = property;
+		this.maxElapsedTime = maxElapsedTime;
+	}
+	
+	
+	/**
+	 * Finds the accessor for the field of the instances in {@code sets}
+	 * @param name Name of the field
+	 * @param sets List of couples (instance, new value)
+	 * @return Accessor of the field
+	 * @throws IllegalArgumentException If {@code sets} is empty or the field is not found
+	 */
+	private static <T> PropertyAccessor accessorOf(@NonNull String name,
+			@NonNull List<Set<T>> sets) {
+		Objects.requireNonNull(name);
+		Objects.requireNonNull(sets);
+		if(sets.isEmpty()) {
+			throw new IllegalArgumentException("Sets list empty");
+		}
+		
+		return PropertyAccessor.of(sets.get(0).instance.getClass(), name);
 	}
 	
 	
@@ -91,7 +159,7 @@ public class ModifyAction<T> extends Action {
 	 * @return Name of the field that is modified
 	 */
 	public String getPropertyName() {
-		return propertyName;
+		return property.getName();
 	}
 	
 	
@@ -103,27 +171,88 @@ public class ModifyAction<T> extends Action {
 	}
 	
 	
+	/**
+	 * @return Value of the field of each instance of {@link #getObject()}
+	 * before the edit
+	 */
+	public @NonNull List<Object> getOldValues() {
+		List<Object> l = new ArrayList<>(instancesValues.size());
+		for(State s : instancesValues) {
+			l.add(s.oldValue);
+		}
+		return l;
+	}
+	
+	
+	/**
+	 * @return Value of the field of each instance of {@link #getObject()}
+	 * after the edit
+	 */
+	public @NonNull List<Object> getNewValues() {
+		List<Object> l = new ArrayList<>(instancesValues.size());
+		for(State s : instancesValues) {
+			l.add(s.newValue);
+		}
+		return l;
+	}
+	
+	
+	@Override
+	public long estimateSize() {
+		long size = super.estimateSize() + INSTANCE_SIZE * instancesValues.size();
+		for(State s : instancesValues) {
+			size += valueSize(s.oldValue) + valueSize(s.newValue);
+		}
+		return size;
+	}
+	
+	
+	/**
+	 * @param v Value of a property
+	 * @return Memory estimated for {@code v} if a string or an array, with
+	 * its elements; 0 otherwise, as the other values are small
+	 */
+	private static long valueSize(Object v) {
+		if(v instanceof String) {
+			return ARRAY_SIZE + 2L * ((String) v).length();
+		} else if(v instanceof Object[]) {
+			// The elements are references, often to shared instances
+			return ARRAY_SIZE + 8L * ((Object[]) v).length;
+		} else if(v != null && v.getClass().isArray()) {
+			return ARRAY_SIZE + (long) Array.getLength(v) *
+					elementSize(v.getClass().getComponentType());
+		}
+		return 0;
+	}
+	
+	
+	/**
+	 * @param c Primitive type
+	 * @return Bytes of an element of an array of {@code c}
+	 */
+	private static int elementSize(@NonNull Class<?> c) {
+		if(c == byte.class || c == boolean.class) {
+			return 1;
+		} else if(c == short.class || c == char.class) {
+			return 2;
+		} else if(c == long.class || c == double.class) {
+			return 8;
+		}
+		return 4;
+	}
+	
+	
 	@Override
 	public void undoExecute() {
-		try {
-			for(State p : instancesValues) {
-				mSet.invoke(p.instance, p.oldValue);				
-			}
-		} catch (IllegalAccessException | IllegalArgumentException
-				| InvocationTargetException e) {
-			assert false : "Il metodo deve funzionare (già testato nel costruttore)";
+		for(State p : instancesValues) {
+			property.set(p.instance, p.oldValue);
 		}
 	}
 
 	@Override
 	public void execute() {
-		try {
-			for(State p : instancesValues) {
-				mSet.invoke(p.instance, p.newValue);
-			}
-		} catch (IllegalAccessException | IllegalArgumentException
-				| InvocationTargetException e) {
-			assert false : "Il metodo deve funzionare (già testato nel costruttore)";
+		for(State p : instancesValues) {
+			property.set(p.instance, p.newValue);
 		}
 	}
 
@@ -131,7 +260,12 @@ public class ModifyAction<T> extends Action {
 
 	@Override
 	public boolean tryToMerge(Action followingAction) {
+		// Time since the last change of this action
 		long elapsed = elapsedTimeLastMerge();
+		if(elapsed == -1) {
+			elapsed = elapsedTimeAdd();
+		}
+		
 		if(!followingAction.getClass().isAssignableFrom(getClass())) {
 			return false;
 		} else if(elapsed > maxElapsedTime) {
@@ -143,75 +277,37 @@ public class ModifyAction<T> extends Action {
 		ModifyAction<T> fa = (ModifyAction<T>)followingAction;
 		
 		// Check if the edit is done at the same field and the same instances
-		if(propertyName.equals(fa.propertyName) &&
-				sameInstances(fa.instancesValues, instancesValues)) {
-			for(State s : fa.instancesValues) {
-				State ss = findState(s.instance, instancesValues);
-				ss.newValue = s.newValue;
-			}
-			return true;
+		if(property != fa.property ||
+				fa.instancesValues.size() != instancesValues.size()) {
+			return false;
 		}
 		
-		
-		return false;
-	}
-	
-	
-	
-	/**
-	 * Finds the instance of the instance
-	 * @param instance Instance to find
-	 * @param l List where do the search
-	 * @return {@link State} of the instance; null if not found
-	 */
-	private State findState(@NonNull T instance, @NonNull List<State> l) {		
-		for(State s : l) {
-			if(s.instance == instance) {
-				return s;
+		Map<T, State> states = states();
+		for(State s : fa.instancesValues) {
+			if(!states.containsKey(s.instance)) {
+				return false;
 			}
 		}
-		return null;
-	}
-	
-	
-	/**
-	 * Check if two lists have the same instances. Each list must not contain duplications
-	 * @param a First list
-	 * @param b Second list
-	 * @return True if the two lists have the same instances
-	 */
-	private boolean sameInstances(List<State> a, List<State> b) {
-		if(a.size() != b.size()) {
-			return false;
-		}
 		
-		boolean aInB = sameInstancesOfAInB(a, b);
-		boolean bInA = sameInstancesOfAInB(b, a);
-		return aInB && bInA;
+		for(State s : fa.instancesValues) {
+			states.get(s.instance).newValue = s.newValue;
+		}
+		return true;
 	}
 	
 	
+	
 	/**
-	 * Checks if the instances of {@code a} are contained in {@code b}
-	 * @param a List a
-	 * @param b List b
-	 * @return True if instances of {@code a} are contained in {@code b}, false otherwise
+	 * @return State of each edited instance, with the instances compared by identity
 	 */
-	private boolean sameInstancesOfAInB(List<State> a, List<State> b) {
-		for(State s : a) {
-			boolean found = false;
-			for(State ss : b) {
-				if(ss.instance == s.instance) {
-					found = true;
-					break;
-				}
-			}
-			if(!found) {
-				return false;
+	private Map<T, State> states() {
+		if(stateOf == null) {
+			stateOf = new IdentityHashMap<>(instancesValues.size() * 2);
+			for(State s : instancesValues) {
+				stateOf.put(s.instance, s);
 			}
 		}
-		
-		return true;
+		return stateOf;
 	}
 
 	
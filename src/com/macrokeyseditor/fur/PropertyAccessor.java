@@ -0,0 +1,203 @@
+package com.macrokeyseditor.fur;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.eclipse.jdt.annotation.NonNull;
+
+/**
+ * Accessor to a property of a class, made by a couple of methods
+ * {@code get}(+name) and {@code set}(+name).
+ * <p>
+ * The methods are resolved only once for each couple (class, property) and
+ * invoked through {@link MethodHandle}, without reflection.
+ * </p>
+ */
+public final class PropertyAccessor {
+
+	/** Type of {@link #getter} */
+	private static final MethodType GETTER_TYPE =
+			MethodType.methodType(Object.class, Object.class);
+
+	/** Type of {@link #setter} */
+	private static final MethodType SETTER_TYPE =
+			MethodType.methodType(void.class, Object.class, Object.class);
+
+	/** Accessors already resolved for each class */
+	private static final ClassValue<Map<String, PropertyAccessor>> CACHE =
+			new ClassValue<Map<String, PropertyAccessor>>() {
+		@Override
+		protected Map<String, PropertyAccessor> computeValue(Class<?> type) {
+			return new ConcurrentHashMap<>();
+		}
+	};
+
+
+	/** Name of the property, with the first letter uppercase */
+	private final String name;
+
+	/** Type of the property */
+	private final Class<?> type;
+	
+	/** {@link #type}, with the primitive types replaced by their wrapper */
+	private final Class<?> boxed;
+
+	private final MethodHandle getter;
+	private final MethodHandle setter;
+
+
+	private PropertyAccessor(@NonNull String name, @NonNull Class<?> type,
+			@NonNull MethodHandle getter, @NonNull MethodHandle setter) {
+		this.name = name;
+		this.type = type;
+		this.boxed = MethodType.methodType(type).wrap().returnType();
+		this.getter = getter;
+		this.setter = setter;
+	}
+
+
+
+	/**
+	 * Gets the accessor for the given property
+	 * @param c Class owning the property
+	 * @param name Name of the property (es. age, weight, length, ...)
+	 * @return Accessor of the property
+	 * @throws IllegalArgumentException If one method {@code get}(+name) or
+	 * {@code set}(+name) does not exists or is not accessible
+	 */
+	public static @NonNull PropertyAccessor of(@NonNull Class<?> c,
+			@NonNull String name) {
+		Objects.requireNonNull(c);
+		Objects.requireNonNull(name);
+		if(name.isEmpty()) {
+			throw new IllegalArgumentException("Empty property name");
+		}
+
+		// A single accessor for each property, however the name is written:
+		// the actions compare the accessors by identity
+		String n = capitalize(name);
+		Map<String, PropertyAccessor> m = CACHE.get(c);
+		PropertyAccessor a = m.get(n);
+		return a != null ? a : m.computeIfAbsent(n, k -> resolve(c, k));
+	}
+
+
+	/**
+	 * @param name Name of a property, not empty
+	 * @return {@code name} with the first letter uppercase
+	 */
+	private static @NonNull String capitalize(@NonNull String name) {
+		if(Character.isUpperCase(name.charAt(0))) {
+			return name;
+		}
+		return name.substring(0, 1).toUpperCase() + name.substring(1);
+	}
+
+
+	/**
+	 * Finds the methods of the property
+	 * @param c Class owning the property
+	 * @param name Name of the property, with the first letter uppercase
+	 * @return Accessor of the property
+	 * @throws IllegalArgumentException If the methods are not found
+	 */
+	private static PropertyAccessor resolve(@NonNull Class<?> c,
+			@NonNull String name) {
+		try {
+			Method mGet = c.getMethod("get" + name);
+			// The return type of the get find the correct set
+			Method mSet = c.getMethod("set" + name, mGet.getReturnType());
+
+			MethodHandles.Lookup l = MethodHandles.publicLookup();
+			MethodHandle get = l.unreflect(mGet).asType(GETTER_TYPE);
+			MethodHandle set = l.unreflect(mSet).asType(SETTER_TYPE);
+
+			return new PropertyAccessor(name, mGet.getReturnType(), get, set);
+		} catch (NoSuchMethodException | SecurityException
+				| IllegalAccessException e) {
+			throw new IllegalArgumentException(
+					"Property " + name + " not accessible", e);
+		}
+	}
+
+
+
+	/**
+	 * @return Name of the property, with the first letter uppercase
+	 */
+	public @NonNull String getName() {
+		return name;
+	}
+
+
+	/**
+	 * @return Type of the property
+	 */
+	public @NonNull Class<?> getType() {
+		return type;
+	}
+
+
+	/**
+	 * Checks that the value can be written in the property
+	 * @param value Value to check
+	 * @throws ClassCastException If {@code value} is not of the type of the property
+	 * @throws NullPointerException If {@code value} is null and the type of the
+	 * property is primitive
+	 */
+	public void check(Object value) {
+		if(value == null) {
+			if(type.isPrimitive()) {
+				throw new NullPointerException("Null value for " + name);
+			}
+		} else if(!boxed.isInstance(value)) {
+			throw new ClassCastException(value.getClass().getName() +
+					" not valid for " + name);
+		}
+	}
+	
+	
+	/**
+	 * Reads the property
+	 * @param instance Instance owning the property
+	 * @return Value of the property
+	 */
+	public Object get(@NonNull Object instance) {
+		try {
+			return (Object) getter.invokeExact(instance);
+		} catch (RuntimeException | Error e) {
+			throw e;
+		} catch (Throwable e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+
+	/**
+	 * Writes the property
+	 * @param instance Instance owning the property
+	 * @param value New value of the property
+	 * @throws ClassCastException If {@code value} is not of the type of the property
+	 */
+	public void set(@NonNull Object instance, Object value) {
+		try {
+			setter.invokeExact(instance, value);
+		} catch (RuntimeException | Error e) {
+			throw e;
+		} catch (Throwable e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+
+
+	@Override
+	public String toString() {
+		return name;
+	}
+}
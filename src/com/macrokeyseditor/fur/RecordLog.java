@@ -0,0 +1,579 @@
+package com.macrokeyseditor.fur;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.zip.CRC32;
+
+import org.eclipse.jdt.annotation.NonNull;
+
+/**
+ * Append-only log of records in a file. Each record has a type, the index
+ * of a screen and a payload checked by a CRC; the meaning is given by
+ * the owner of the log.
+ * <p>
+ * The records are appended in memory and written by {@link #flush()}, eg.
+ * in groups by a background thread: the appends do not wait for the disk.
+ * The records are kept in memory until written, so a failed write loses
+ * nothing: the log is then broken and no more written, and its records
+ * can still be read to be copied in a new log.
+ * </p>
+ * <p>
+ * A new file is written by a {@link Writer}, and replaces the existing one
+ * atomically when a log is opened on it; the records appended meanwhile
+ * are kept in memory. The records of a file are read by a {@link Reader}.
+ * </p>
+ */
+public final class RecordLog implements Closeable {
+
+	/** Size of the header of a record: type, screen, payload length, CRC */
+	public static final int RECORD_HEADER_SIZE = 13;
+
+
+	/** Guard for the writes in {@link #channel} */
+	private final Object writeLock = new Object();
+
+	/**
+	 * Records appended and not yet written, from the position {@link #written};
+	 * guarded by itself
+	 */
+	private final Pending pending = new Pending();
+
+	/** Size of the log, including {@link #pending}; guarded by {@link #pending} */
+	private long end;
+
+	/** Size of the log written in {@link #channel}; guarded by {@link #pending} */
+	private long written;
+
+	/** Channel of the file of the log; null if not opened or closed.
+	 * Guarded by {@link #pending}, changed only with {@link #writeLock} */
+	private FileChannel channel;
+
+	/** Error of the last failed write; null if none. Guarded by {@link #pending} */
+	private IOException broken;
+
+
+
+	/**
+	 * Creates a log without file: the records are kept in memory until
+	 * {@link #open(Writer)}
+	 * @param start Position of the first record in the file
+	 */
+	public RecordLog(long start) {
+		end = start;
+		written = start;
+	}
+
+
+	/**
+	 * Creates a log appending the records at the end of an existing file
+	 * @param c Channel of the file, opened for read and write; closed by this
+	 * @throws IOException In case of an IO error
+	 */
+	public RecordLog(@NonNull FileChannel c) throws IOException {
+		this(c.size());
+		channel = c;
+	}
+
+
+
+	/**
+	 * Replaces the file written by a {@link Writer} and writes the records
+	 * of this log after its content
+	 * @param w Writer of the file; its position must be the one of the first
+	 * record of this log
+	 * @throws IOException In case of an IO error; the file is not replaced
+	 * @throws IllegalStateException If the log has already a file
+	 * @throws IllegalArgumentException If the position of {@code w} does not match
+	 */
+	public void open(@NonNull Writer w) throws IOException {
+		Objects.requireNonNull(w);
+
+		synchronized (writeLock) {
+			synchronized (pending) {
+				if(channel != null) {
+					throw new IllegalStateException("Log already opened");
+				} else if(w.position != written) {
+					throw new IllegalArgumentException("Position not matching");
+				}
+			}
+
+			FileChannel c = w.commit();
+			synchronized (pending) {
+				channel = c;
+			}
+		}
+	}
+
+
+
+	/**
+	 * Appends a record, in memory
+	 * @param type Type of the record
+	 * @param screen Index of the screen of the record
+	 * @param payload Payload of the record
+	 * @return Position of the payload in the log
+	 */
+	public long append(byte type, int screen, @NonNull byte[] payload) {
+		Objects.requireNonNull(payload);
+
+		synchronized (pending) {
+			try {
+				DataOutputStream out = new DataOutputStream(pending);
+				out.writeByte(type);
+				out.writeInt(screen);
+				out.writeInt(payload.length);
+				out.writeInt(crc(payload));
+				out.write(payload);
+			} catch (IOException ex) {
+				throw new AssertionError("Memory stream", ex);
+			}
+
+			long p = end + RECORD_HEADER_SIZE;
+			end = p + payload.length;
+			return p;
+		}
+	}
+
+
+
+	/**
+	 * @return Size of the log, including the records not yet written
+	 */
+	public long getSize() {
+		synchronized (pending) {
+			return end;
+		}
+	}
+
+
+
+	/**
+	 * @return Error of the failed write that broke the log; null if
+	 * the log is written
+	 */
+	public IOException getError() {
+		synchronized (pending) {
+			return broken;
+		}
+	}
+
+
+
+	/**
+	 * Writes the appended records to the disk; nothing if the log has no
+	 * file or is broken
+	 * @throws IOException In case of an IO error; the log is then broken
+	 */
+	public void flush() throws IOException {
+		synchronized (writeLock) {
+			FileChannel c;
+			long pos;
+			byte[] data;
+			synchronized (pending) {
+				if(channel == null || broken != null || pending.size() == 0) {
+					return;
+				}
+				c = channel;
+				pos = written;
+				data = pending.toByteArray();
+			}
+
+			try {
+				ByteBuffer b = ByteBuffer.wrap(data);
+				while(b.hasRemaining()) {
+					pos += c.write(b, pos);
+				}
+				c.force(false);
+			} catch (IOException e) {
+				synchronized (pending) {
+					broken = e;
+				}
+				throw e;
+			}
+
+			// The records appended meanwhile follow the written ones
+			synchronized (pending) {
+				pending.drop(data.length);
+				written += data.length;
+			}
+		}
+	}
+
+
+
+	/**
+	 * Reads a payload of the log; the payloads not yet written are read
+	 * from memory, without waiting for the disk
+	 * @param position Position of the payload
+	 * @param length Length of the payload
+	 * @return The payload
+	 * @throws IOException In case of an IO error, or if the payload is
+	 * not in the log
+	 */
+	public @NonNull byte[] read(long position, int length) throws IOException {
+		FileChannel c;
+		synchronized (pending) {
+			if(position >= written) {
+				return pending.copy(position - written, length);
+			}
+			c = channel;
+		}
+
+		ByteBuffer b = ByteBuffer.allocate(length);
+		if(c == null || !readFully(c, b, position)) {
+			throw new EOFException("Log truncated");
+		}
+		return b.array();
+	}
+
+
+
+	/**
+	 * Writes the appended records and closes the file
+	 * @throws IOException In case of an IO error, or if the log is broken:
+	 * the records not written are lost
+	 */
+	@Override
+	public void close() throws IOException {
+		synchronized (writeLock) {
+			try {
+				flush();
+			} finally {
+				discard();
+			}
+
+			IOException e = getError();
+			if(e != null) {
+				throw new IOException("Log not written", e);
+			}
+		}
+	}
+
+
+	/**
+	 * Closes the file without writing the appended records, eg. once
+	 * copied in another log
+	 */
+	public void discard() {
+		synchronized (writeLock) {
+			FileChannel c;
+			synchronized (pending) {
+				c = channel;
+				channel = null;
+			}
+			if(c != null) {
+				try {
+					c.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+
+
+	/**
+	 * Reads from the channel until the buffer is full
+	 * @param c Channel to read
+	 * @param b Buffer to fill
+	 * @param pos Position in the channel
+	 * @return True if the buffer was filled, false if the end of the channel was reached
+	 * @throws IOException In case of an IO error
+	 */
+	public static boolean readFully(@NonNull FileChannel c, @NonNull ByteBuffer b,
+			long pos) throws IOException {
+		while(b.hasRemaining()) {
+			int n = c.read(b, pos);
+			if(n < 0) {
+				return false;
+			}
+			pos += n;
+		}
+		return true;
+	}
+
+
+	/**
+	 * @param data Data to check
+	 * @return CRC32 of {@code data}
+	 */
+	private static int crc(@NonNull byte[] data) {
+		CRC32 c = new CRC32();
+		c.update(data, 0, data.length);
+		return (int) c.getValue();
+	}
+
+
+
+	/** Memory stream giving access to its content */
+	private static final class Pending extends ByteArrayOutputStream {
+
+		/**
+		 * @param from Position of the first byte
+		 * @param length Number of bytes
+		 * @return Copy of the bytes
+		 * @throws EOFException If the bytes are not all present
+		 */
+		byte[] copy(long from, int length) throws EOFException {
+			if(length < 0 || from + length > count) {
+				throw new EOFException("Log truncated");
+			}
+			return Arrays.copyOfRange(buf, (int) from, (int) from + length);
+		}
+
+		/**
+		 * Removes the first bytes
+		 * @param n Number of bytes to remove
+		 */
+		void drop(int n) {
+			System.arraycopy(buf, n, buf, 0, count - n);
+			count -= n;
+		}
+	}
+
+
+
+	/**
+	 * Writer of a new file of a log, replacing the existing one only
+	 * when a {@link RecordLog} is opened on it; if closed before, the
+	 * existing file is left as it was
+	 */
+	public static final class Writer implements Closeable {
+
+		/** Size of the buffer of the writes */
+		private static final int BUFFER_SIZE = 64 * 1024;
+
+		/** File to replace */
+		private final File file;
+
+		/** Temporary file written */
+		private final File tmp;
+
+		private final FileChannel out;
+		private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		private final DataOutputStream data = new DataOutputStream(buffer);
+
+		/** Position in {@link #out} of the next record */
+		private long position = 0;
+
+		/** True once {@link #file} is replaced */
+		private boolean committed = false;
+
+		/**
+		 * @param file File to replace
+		 * @throws IOException In case of an IO error
+		 */
+		public Writer(@NonNull File file) throws IOException {
+			this.file = Objects.requireNonNull(file);
+			File dir = file.getAbsoluteFile().getParentFile();
+			tmp = File.createTempFile(file.getName() + ".", ".tmp", dir);
+			try {
+				out = FileChannel.open(tmp.toPath(), StandardOpenOption.READ,
+						StandardOpenOption.WRITE);
+			} catch (IOException e) {
+				tmp.delete();
+				throw e;
+			}
+		}
+
+		/**
+		 * Writes the header of the file, before the records
+		 * @param header Content of the header
+		 * @throws IOException In case of an IO error
+		 */
+		public void header(@NonNull byte[] header) throws IOException {
+			data.write(header);
+			position += header.length;
+		}
+
+		/**
+		 * Writes a record
+		 * @param type Type of the record
+		 * @param screen Index of the screen of the record
+		 * @param payload Payload of the record
+		 * @return Position of the payload in the file
+		 * @throws IOException In case of an IO error
+		 */
+		public long record(byte type, int screen, @NonNull byte[] payload)
+				throws IOException {
+			data.writeByte(type);
+			data.writeInt(screen);
+			data.writeInt(payload.length);
+			data.writeInt(crc(payload));
+			data.write(payload);
+
+			long p = position + RECORD_HEADER_SIZE;
+			position = p + payload.length;
+			if(buffer.size() > BUFFER_SIZE) {
+				flush();
+			}
+			return p;
+		}
+
+		/**
+		 * @return Size of the content written
+		 */
+		public long getPosition() {
+			return position;
+		}
+
+		private void flush() throws IOException {
+			data.flush();
+			ByteBuffer b = ByteBuffer.wrap(buffer.toByteArray());
+			while(b.hasRemaining()) {
+				out.write(b);
+			}
+			buffer.reset();
+		}
+
+		/**
+		 * Writes the content to the disk and replaces the file with it
+		 * @return Channel of the replaced file, positioned at its end
+		 * @throws IOException In case of an IO error
+		 */
+		private FileChannel commit() throws IOException {
+			flush();
+			// On the disk before the rename, else a crash could leave
+			// the file renamed but empty
+			out.force(true);
+
+			try {
+				Files.move(tmp.toPath(), file.toPath(),
+						StandardCopyOption.ATOMIC_MOVE,
+						StandardCopyOption.REPLACE_EXISTING);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(tmp.toPath(), file.toPath(),
+						StandardCopyOption.REPLACE_EXISTING);
+			}
+			committed = true;
+			return out;
+		}
+
+		/**
+		 * Deletes the content written, if the file is not replaced
+		 */
+		@Override
+		public void close() throws IOException {
+			if(!committed) {
+				try {
+					out.close();
+				} finally {
+					tmp.delete();
+				}
+			}
+		}
+	}
+
+
+
+	/**
+	 * Reader of the records of a file, up to the first not valid, eg.
+	 * truncated by a crash
+	 */
+	public static final class Reader {
+
+		private final FileChannel in;
+		private final long size;
+		private final ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+
+		/** Position of the next record */
+		private long position;
+
+		private byte type;
+		private int screen;
+		private int length;
+		private int crc;
+
+		/**
+		 * @param in Channel of the file
+		 * @param position Position of the first record
+		 * @throws IOException In case of an IO error
+		 */
+		public Reader(@NonNull FileChannel in, long position) throws IOException {
+			this.in = Objects.requireNonNull(in);
+			this.size = in.size();
+			this.position = position;
+		}
+
+		/**
+		 * Reads the header of the next record
+		 * @return True if read, false at the end of the valid records
+		 * @throws IOException In case of an IO error
+		 */
+		public boolean next() throws IOException {
+			if(position >= size) {
+				return false;
+			}
+			header.clear();
+			if(!readFully(in, header, position)) {
+				return false;
+			}
+			header.flip();
+			type = header.get();
+			screen = header.getInt();
+			length = header.getInt();
+			crc = header.getInt();
+
+			long p = position + RECORD_HEADER_SIZE;
+			if(length < 0 || p + length > size) {
+				return false;
+			}
+			position = p + length;
+			return true;
+		}
+
+		/**
+		 * @return Type of the record
+		 */
+		public byte getType() {
+			return type;
+		}
+
+		/**
+		 * @return Index of the screen of the record
+		 */
+		public int getScreen() {
+			return screen;
+		}
+
+		/**
+		 * @return Length of the payload of the record
+		 */
+		public int getLength() {
+			return length;
+		}
+
+		/**
+		 * @return Position of the payload of the record
+		 */
+		public long getPayloadPosition() {
+			return position - length;
+		}
+
+		/**
+		 * Reads the payload of the record, checking the CRC
+		 * @return The payload; null if corrupted
+		 * @throws IOException In case of an IO error
+		 */
+		public byte[] payload() throws IOException {
+			ByteBuffer b = ByteBuffer.allocate(length);
+			if(!readFully(in, b, getPayloadPosition()) || crc(b.array()) != crc) {
+				return null;
+			}
+			return b.array();
+		}
+	}
+}
@@ -0,0 +1,29 @@
+package com.macrokeyseditor.fur;
+
+import org.eclipse.jdt.annotation.NonNull;
+
+/**
+ * Captures and restores the whole state edited by the actions of an
+ * {@link ActionManager}, so a far point of the history can be reached
+ * without executing all the actions in between.
+ * @param <S> Type of the captured state
+ */
+public interface Snapshotter<S> {
+
+	/**
+	 * @return Current state; must not be changed by the following actions
+	 */
+	@NonNull S capture();
+
+	/**
+	 * Sets the current state
+	 * @param state State returned by {@link #capture()}
+	 */
+	void restore(@NonNull S state);
+
+	/**
+	 * @param state State returned by {@link #capture()}
+	 * @return Memory estimated for {@code state}, in bytes
+	 */
+	long estimateSize(@NonNull S state);
+}
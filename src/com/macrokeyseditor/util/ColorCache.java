@@ -0,0 +1,34 @@
+package com.macrokeyseditor.util;
+
+import java.awt.Color;
+
+/**
+ * Table of the {@link Color} converted from the format AARRGGBB, so the same
+ * color is not allocated at each use. The table has a fixed size: a color
+ * can replace another with the same slot
+ * @see ColorUtil#ARGBtoColor(int)
+ */
+public final class ColorCache {
+	
+	/** Number of slots; power of 2 */
+	private static final int SIZE = 256;
+	
+	private final Color[] colors = new Color[SIZE];
+	
+	/**
+	 * @param argb Color in the format AARRGGBB
+	 * @return Converted color
+	 */
+	public Color get(int argb) {
+		// Mix the components, the similar colors differ in the low bits
+		int h = argb ^ (argb >>> 8) ^ (argb >>> 16) ^ (argb >>> 24);
+		int i = h & (SIZE - 1);
+		
+		Color c = colors[i];
+		if(c == null || c.getRGB() != argb) {
+			c = ColorUtil.ARGBtoColor(argb);
+			colors[i] = c;
+		}
+		return c;
+	}
+}
@@ -10,5 +10,8 @@ public final class FileExtensions {
 	private FileExtensions() { }
 	
 	/** File extension for {@link MacroSetup} */
-	public static String MACRO_SETUP = "ser";
+	public static String MACRO_SETUP = "mks";
+	
+	/** File extension for {@link MacroSetup} saved by the Java serialization */
+	public static String MACRO_SETUP_LEGACY = "ser";
 }
\ No newline at end of file
@@ -0,0 +1,84 @@
+package com.macrokeyseditor.util;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Objects;
+
+import org.eclipse.jdt.annotation.NonNull;
+
+/**
+ * Static class for the files
+ */
+public final class FileUtil {
+
+	/** Suffix of the temporary files of {@link #replace(File, Content)} */
+	private static final String TEMP_SUFFIX = ".tmp";
+
+	/** Size of the buffer of the writing */
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+
+	private FileUtil() { }
+
+
+
+	/**
+	 * Writes a file replacing it atomically. The content is written in a
+	 * temporary file, then renamed as {@code f}: if the write fails, or the
+	 * process ends while writing, {@code f} is left as it was
+	 * @param f File to write
+	 * @param c Content of the file
+	 * @throws IOException In case of an IO error
+	 */
+	public static void replace(@NonNull File f, @NonNull Content c)
+			throws IOException {
+		Objects.requireNonNull(f);
+		Objects.requireNonNull(c);
+
+		File dir = f.getAbsoluteFile().getParentFile();
+		File tmp = File.createTempFile(f.getName() + ".", TEMP_SUFFIX, dir);
+		boolean replaced = false;
+		try {
+			try(FileOutputStream fo = new FileOutputStream(tmp)) {
+				OutputStream out = new BufferedOutputStream(fo, BUFFER_SIZE);
+				c.write(out);
+				out.flush();
+				// On the disk before the rename, else a crash could leave
+				// the file renamed but empty
+				fo.getFD().sync();
+			}
+
+			try {
+				Files.move(tmp.toPath(), f.toPath(),
+						StandardCopyOption.ATOMIC_MOVE,
+						StandardCopyOption.REPLACE_EXISTING);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(tmp.toPath(), f.toPath(),
+						StandardCopyOption.REPLACE_EXISTING);
+			}
+			replaced = true;
+		} finally {
+			if(!replaced) {
+				tmp.delete();
+			}
+		}
+	}
+
+
+
+	/** Content of a file written by {@link FileUtil#replace(File, Content)} */
+	public interface Content {
+
+		/**
+		 * @param out Where to write the content; not closed
+		 * @throws IOException In case of an IO error
+		 */
+		void write(@NonNull OutputStream out) throws IOException;
+	}
+}
@@ -0,0 +1,65 @@
+package com.macrokeyseditor.util;
+
+import java.awt.Rectangle;
+
+import org.eclipse.jdt.annotation.NonNull;
+
+import com.macrokeys.rendering.RectF;
+import com.macrokeys.screen.Screen;
+import com.macrokeys.screen.ScreenUtility;
+
+/**
+ * Static utility class for the conversions from millimeters to pixels;
+ * inverse of {@link ScreenUtility}
+ */
+public final class ScreenUtil {
+
+	private ScreenUtil() {}
+
+	/**
+	 * @param mm Length in millimeters on the X axis
+	 * @param s Screen to operate
+	 * @return Length in pixels
+	 */
+	public static float mmtopx_X(float mm, @NonNull Screen s) {
+		return mm / 25.4f * s.getXDpi();
+	}
+
+	/**
+	 * @param mm Length in millimeters on the Y axis
+	 * @param s Screen to operate
+	 * @return Length in pixels
+	 */
+	public static float mmtopx_Y(float mm, @NonNull Screen s) {
+		return mm / 25.4f * s.getYDpi();
+	}
+
+	/**
+	 * Converts a rectangle in millimeters to the smallest rectangle
+	 * of pixels that contains it
+	 * @param r Rectangle in millimeters
+	 * @param s Screen to operate
+	 * @return Rectangle in pixels
+	 */
+	public static @NonNull Rectangle mmtopx(@NonNull RectF r, @NonNull Screen s) {
+		return mmtopx(r, s, new Rectangle());
+	}
+
+	/**
+	 * Converts a rectangle in millimeters to the smallest rectangle
+	 * of pixels that contains it
+	 * @param r Rectangle in millimeters
+	 * @param s Screen to operate
+	 * @param dst Where to put the rectangle in pixels
+	 * @return {@code dst}
+	 */
+	public static @NonNull Rectangle mmtopx(@NonNull RectF r, @NonNull Screen s,
+			@NonNull Rectangle dst) {
+		int left = (int) Math.floor(mmtopx_X(Math.min(r.left, r.right), s));
+		int top = (int) Math.floor(mmtopx_Y(Math.min(r.top, r.bottom), s));
+		int right = (int) Math.ceil(mmtopx_X(Math.max(r.left, r.right), s));
+		int bottom = (int) Math.ceil(mmtopx_Y(Math.max(r.top, r.bottom), s));
+		dst.setBounds(left, top, right - left, bottom - top);
+		return dst;
+	}
+}
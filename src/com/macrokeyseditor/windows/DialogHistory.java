@@ -0,0 +1,165 @@
+package com.macrokeyseditor.windows;
+
+import javax.swing.JDialog;
+import javax.swing.JPanel;
+import javax.swing.JScrollPane;
+import javax.swing.JTree;
+import javax.swing.tree.DefaultMutableTreeNode;
+import javax.swing.tree.DefaultTreeModel;
+import javax.swing.tree.TreePath;
+import javax.swing.tree.TreeSelectionModel;
+
+import com.macrokeyseditor.MacroScreenEditor;
+import com.macrokeyseditor.fur.ActionManager;
+
+import java.awt.BorderLayout;
+import java.awt.Dimension;
+import java.awt.Window;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+import javax.swing.JButton;
+
+/**
+ * Dialog for browsing the history of the edits of a {@link MacroScreenEditor}
+ * and jumping to any of its states, including the undone branches
+ */
+public class DialogHistory extends JDialog {
+
+	private final MacroScreenEditor editor;
+
+	private JTree treHistory;
+	private final DefaultTreeModel historyModel =
+			new DefaultTreeModel(new DefaultMutableTreeNode());
+	private JButton btnGoTo;
+
+
+
+	/**
+	 * @param editor Editor of the history to show
+	 * @param parent Parent window
+	 */
+	public DialogHistory(MacroScreenEditor editor, Window parent) {
+		super(parent, ModalityType.DOCUMENT_MODAL);
+
+		this.editor = editor;
+
+		init();
+	}
+
+
+
+	private void init() {
+		setSize(400, 300);
+		setTitle("History");
+
+		getContentPane().setLayout(new BorderLayout(0, 0));
+		JPanel pnlRight = new JPanel();
+		pnlRight.setLayout(null);
+		getContentPane().add(pnlRight, BorderLayout.LINE_END);
+		setLocationRelativeTo(null);
+
+		treHistory = new JTree(historyModel);
+		treHistory.getSelectionModel().setSelectionMode(
+				TreeSelectionModel.SINGLE_TREE_SELECTION);
+		treHistory.addMouseListener(new MouseAdapter() {
+			@Override
+			public void mouseClicked(MouseEvent e) {
+				if(e.getClickCount() == 2) {
+					goToSelected();
+				}
+			}
+		});
+		insertInTree();
+		getContentPane().add(new JScrollPane(treHistory), BorderLayout.CENTER);
+
+		btnGoTo = new JButton("Go to");
+		btnGoTo.setLocation(0, 0);
+		btnGoTo.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent e) {
+				goToSelected();
+			}
+		});
+		btnGoTo.setSize(71, 23);
+		pnlRight.add(btnGoTo);
+
+		// The width of the panel varies in base of the size of the buttons
+		pnlRight.setPreferredSize(new Dimension(btnGoTo.getWidth(), 100));
+	}
+
+
+
+	/**
+	 * Moves the history to the selected state
+	 */
+	private void goToSelected() {
+		TreePath p = treHistory.getSelectionPath();
+		if(p != null) {
+			DefaultMutableTreeNode n =
+					(DefaultMutableTreeNode) p.getLastPathComponent();
+			try {
+				editor.jumpTo(((Item) n.getUserObject()).node);
+			} catch (IOException e) {
+				WindowMacroSetupEditor.showHistoryLost(this, e,
+						"Error while moving in the history");
+			}
+			insertInTree();
+		}
+	}
+
+
+
+	/**
+	 * Insert in {@link #treHistory} all the nodes of the history,
+	 * selecting the current one
+	 */
+	private void insertInTree() {
+		ActionManager.Node current = editor.getHistoryCurrent();
+		DefaultMutableTreeNode root = new DefaultMutableTreeNode(
+				new Item(editor.getHistoryRoot()));
+		DefaultMutableTreeNode selected = root;
+
+		// Visit without recursion: the history can be deep
+		Deque<DefaultMutableTreeNode> stack = new ArrayDeque<>();
+		stack.push(root);
+		while(!stack.isEmpty()) {
+			DefaultMutableTreeNode t = stack.pop();
+			ActionManager.Node n = ((Item) t.getUserObject()).node;
+			if(n == current) {
+				selected = t;
+			}
+			for(ActionManager.Node c : n.getChildren()) {
+				DefaultMutableTreeNode tc = new DefaultMutableTreeNode(new Item(c));
+				t.add(tc);
+				stack.push(tc);
+			}
+		}
+
+		historyModel.setRoot(root);
+		TreePath p = new TreePath(selected.getPath());
+		treHistory.setSelectionPath(p);
+		treHistory.scrollPathToVisible(p);
+	}
+
+
+
+	/** Node of the history shown in {@link #treHistory} */
+	private class Item {
+
+		final ActionManager.Node node;
+
+		Item(ActionManager.Node node) {
+			this.node = node;
+		}
+
+		@Override
+		public String toString() {
+			return editor.describe(node);
+		}
+	}
+}
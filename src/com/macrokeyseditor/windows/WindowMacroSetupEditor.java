@@ -2,6 +2,7 @@ package com.macrokeyseditor.windows;
 
 
 import java.awt.BorderLayout;
+import java.awt.Component;
 import java.awt.Toolkit;
 import java.awt.datatransfer.Clipboard;
 import java.awt.datatransfer.Transferable;
@@ -12,12 +13,15 @@ import java.awt.event.InputEvent;
 import java.awt.event.KeyEvent;
 import java.awt.event.WindowEvent;
 import java.awt.event.WindowListener;
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
 
 import org.eclipse.jdt.annotation.NonNull;
 
@@ -27,14 +31,18 @@ import com.macrokeys.MacroSetup;
 import com.macrokeys.rendering.RectF;
 import com.macrokeyseditor.MacroScreenEditor;
 import com.macrokeyseditor.MacroSetupEditor;
+import com.macrokeyseditor.MacroSetupFile;
 import com.macrokeyseditor.Mask;
+import com.macrokeyseditor.SetupAutosave;
 import com.macrokeyseditor.MasksManager;
 import com.macrokeyseditor.MasksManager.MasksManagerListener;
+import com.macrokeyseditor.SetupJournal;
 import com.macrokeyseditor.components.MKPropetyComponent;
 import com.macrokeyseditor.components.MacroScreenTabPane;
 import com.macrokeyseditor.util.FileExtensions;
 import com.macrokeyseditor.copypaste.MKClipboardOwner;
 import com.macrokeyseditor.copypaste.MKTransfer;
+import com.macrokeyseditor.fur.ActionJournal;
 import com.macrokeyseditor.settings.SettingLoadException;
 import com.macrokeyseditor.settings.Settings;
 import com.macrokeyseditor.windows.DialogMacroScreen;
@@ -52,6 +60,7 @@ public class WindowMacroSetupEditor extends JFrame {
 	private final JMenuItem mniLoad;
 	private final JMenuItem mniUndo;
 	private final JMenuItem mniRedo;
+	private final JMenuItem mniHistory;
 	private final JMenuItem mniAddKey;
 	private final JMenuItem mniAddScreen;
 	private final JMenuItem mniEditScreen;
@@ -84,6 +93,29 @@ public class WindowMacroSetupEditor extends JFrame {
 	private MacroSetupEditor editor;
 	private MasksManager masksManager;
 	
+	/** File loaded, open while its screens are read; null if none */
+	private MacroSetupFile.LazySetup opened;
+	
+	/** Journal of the history of the loaded or saved file; null if none */
+	private SetupJournal journal;
+	
+	/** Shows the result of the last save */
+	private final JLabel lblStatus;
+	
+	/** Save running; null if none */
+	private SwingWorker<Void, Void> saving;
+	
+	/**
+	 * File of the setup never saved, for its autosave; in a directory of
+	 * the user, not in the working directory that can change at each start
+	 */
+	private static final File UNTITLED = new File(
+			new File(System.getProperty("user.home"), ".macrokeyseditor"),
+			"untitled." + FileExtensions.MACRO_SETUP);
+	
+	/** Autosave of the edits not saved; null if none */
+	private SetupAutosave autosave;
+	
 	private JMenuItem mniSelectAll;
 	private JMenu mnMacroScreen;
 	private JMenu mnMasks;
@@ -135,6 +167,10 @@ public class WindowMacroSetupEditor extends JFrame {
 		mniRedo.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_Y, InputEvent.CTRL_MASK));
 		mnEdit.add(mniRedo);
 		
+		mniHistory = new JMenuItem("History...");
+		mniHistory.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_H, InputEvent.CTRL_MASK));
+		mnEdit.add(mniHistory);
+		
 		mniDeleteKey = new JMenuItem("Delete key");
 		mniDeleteKey.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_DELETE, 0));
 		mnEdit.add(mniDeleteKey);
@@ -235,6 +271,9 @@ public class WindowMacroSetupEditor extends JFrame {
 		tapMacroScreen = new MacroScreenTabPane(tbbScreens, editor, masksManager);
 		contentPane.add(tbbScreens, BorderLayout.CENTER);
 		
+		lblStatus = new JLabel(" ");
+		contentPane.add(lblStatus, BorderLayout.SOUTH);
+		
 		
 		menuMaskManager = new MenuMaskManager(masksManager, mnMasks);
 		
@@ -242,7 +281,13 @@ public class WindowMacroSetupEditor extends JFrame {
 			
 			@Override
 			public void windowOpened(WindowEvent e) {
-				// Nothing
+				// Edits of a setup never saved, lost by a crash
+				UNTITLED.getParentFile().mkdirs();
+				MacroSetup recovered = recover(UNTITLED);
+				if(recovered != null) {
+					editor.replaceMacroScreens(recovered.getMacroScreens(), null);
+				}
+				startAutosave(UNTITLED, recovered != null);
 			}
 			
 			@Override
@@ -268,6 +313,21 @@ public class WindowMacroSetupEditor extends JFrame {
 					// Nothing
 				}
 				
+				// The file being saved is completed
+				if(saving != null) {
+					try {
+						saving.get();
+					} catch (InterruptedException | ExecutionException ignored) {
+						// The previous file is left as it was
+					}
+				}
+				
+				closeJournal();
+				closeOpened();
+				
+				// The edits not saved are kept for the next session
+				closeAutosave();
+				
 				// Close the app
 				// Without this the application continues
 				System.exit(NORMAL);
@@ -298,54 +358,41 @@ public class WindowMacroSetupEditor extends JFrame {
 			public void actionPerformed(ActionEvent arg0) {
 				String path = macroSetupFileChooser(false);
 				if(path != null) {
-					MacroSetup setup = null;
-					try {
-						setup = MacroSetup.load(path);
-					} catch (Exception e) {
-						JOptionPane.showMessageDialog(null,
-								e.getLocalizedMessage(),
-								"Error while loading the file", 
-								JOptionPane.ERROR_MESSAGE);
-					}
-					
-					// The loading has succes
-					if(setup != null) {
-						// Delete the old MacroScreens
-						for(MacroScreen s : editor.getMacroScreens()) {
-							editor.removeMacroScreen(s);
-						}
-						
-						// Load the new MacroScreens
-						for(final MacroScreen sc : setup.getMacroScreens()) {
-							editor.addMacroScreen(sc);
-						}
-					}
+					load(new File(path));
 				}
 			}
 		});
 		
 		mniSaveAs.addActionListener(new ActionListener() {
 			public void actionPerformed(ActionEvent arg0) {
-				List<MacroScreen> screens = Arrays.asList(
-						editor.getMacroScreens());
-				MacroSetup s = new MacroSetup(screens);
-				
 				String path = macroSetupFileChooser(true);
 				if(path != null) {
+					save(new File(path));
+				}
+			}
+		});
+		
+		mniRedo.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent arg0) {
+				MacroScreenEditor e = editor.getMacroScreenEditorSelected();
+				if(e != null) {
 					try {
-						s.save(path);
-					} catch (IOException e) {
-						e.printStackTrace();
+						e.redo();
+					} catch (IOException ex) {
+						showHistoryLost(WindowMacroSetupEditor.this, ex,
+								"Error while redoing");
 					}
 				}
 			}
 		});
 		
-		mniRedo.addActionListener(new ActionListener() {
+		mniHistory.addActionListener(new ActionListener() {
 			public void actionPerformed(ActionEvent arg0) {
 				MacroScreenEditor e = editor.getMacroScreenEditorSelected();
 				if(e != null) {
-					e.redo();
+					DialogHistory d = new DialogHistory(e,
+							WindowMacroSetupEditor.this);
+					d.setVisible(true);
 				}
 			}
 		});
@@ -354,7 +401,12 @@ public class WindowMacroSetupEditor extends JFrame {
 			public void actionPerformed(ActionEvent arg0) {
 				MacroScreenEditor e = editor.getMacroScreenEditorSelected();
 				if(e != null) {
-					e.undo();
+					try {
+						e.undo();
+					} catch (IOException ex) {
+						showHistoryLost(WindowMacroSetupEditor.this, ex,
+								"Error while undoing");
+					}
 				}
 			}
 		});
@@ -462,10 +514,16 @@ public class WindowMacroSetupEditor extends JFrame {
 						
 						@SuppressWarnings("unchecked")
 						List<MacroKey> k = (List<MacroKey>)o;
-						mse.add(k);
-						
-						// Added keys are selected
-						mse.select(k, true);
+						// Undone and notified as one edit
+						mse.beginBatch();
+						try {
+							mse.add(k);
+							
+							// Added keys are selected
+							mse.select(k, true);
+						} finally {
+							mse.endBatch();
+						}
 						
 					}
 				}
@@ -551,6 +609,346 @@ public class WindowMacroSetupEditor extends JFrame {
 	}
 	
 	
+	/**
+	 * Loads a {@link MacroSetup} in background, showing the progress; the
+	 * user can cancel the load, keeping the actual {@link MacroSetup}
+	 * @param f File to load
+	 */
+	private void load(@NonNull File f) {
+		ProgressMonitor monitor = new ProgressMonitor(this,
+				"Loading " + f.getName(), null, 0, 100);
+		
+		SwingWorker<MacroSetupFile.LazySetup, Void> worker =
+				new SwingWorker<MacroSetupFile.LazySetup, Void>() {
+			
+			/** Edits not saved in the file; null if none */
+			private MacroSetup recovered;
+			
+			/** Setup opened, closed if the load is canceled; null if none */
+			private volatile MacroSetupFile.LazySetup setup;
+			
+			@Override
+			protected MacroSetupFile.LazySetup doInBackground()
+					throws IOException {
+				// Only the properties of the screens: the keys are read
+				// when each screen is shown
+				MacroSetupFile.LazySetup s = MacroSetupFile.open(f,
+						new MacroSetupFile.ProgressListener() {
+					@Override
+					public void progress(int done, int total) {
+						setProgress(done * 100 / total);
+					}
+				});
+				setup = s;
+				
+				try {
+					// The first screen is shown at once
+					if(!s.getMacroScreens().isEmpty()) {
+						s.load(0);
+					}
+				} catch (IOException e) {
+					s.close();
+					throw e;
+				}
+				
+				try {
+					recovered = SetupAutosave.recover(f);
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+				
+				if(isCancelled()) {
+					// The setup is not used
+					s.close();
+				}
+				return s;
+			}
+			
+			@Override
+			protected void done() {
+				monitor.close();
+				mniLoad.setEnabled(true);
+				mniSaveAs.setEnabled(true);
+				
+				MacroSetupFile.LazySetup setup;
+				try {
+					setup = get();
+				} catch (CancellationException | InterruptedException e) {
+					// Closed here if canceled after the check of the worker
+					if(this.setup != null) {
+						close(this.setup);
+					}
+					return;
+				} catch (ExecutionException e) {
+					JOptionPane.showMessageDialog(WindowMacroSetupEditor.this,
+							e.getCause().getLocalizedMessage(),
+							"Error while loading the file", 
+							JOptionPane.ERROR_MESSAGE);
+					return;
+				}
+				
+				// The history of the old file is no more recorded
+				closeJournal();
+				closeAutosave();
+				
+				if(recovered != null && JOptionPane.showConfirmDialog(
+						WindowMacroSetupEditor.this,
+						"The file has edits not saved. Recover them?",
+						"Recover " + f.getName(),
+						JOptionPane.YES_NO_OPTION) == JOptionPane.YES_OPTION) {
+					// The history of the journal is not the one of the edits
+					editor.replaceMacroScreens(recovered.getMacroScreens(), null);
+					closeOpened();
+					close(setup);
+					startAutosave(f, true);
+					return;
+				}
+				
+				// The tabs are rebuilt once
+				editor.replaceMacroScreens(setup.getMacroScreens(),
+						setup.getLoaders());
+				closeOpened();
+				opened = setup;
+				
+				// Restore the history of the last session
+				try {
+					journal = SetupJournal.open(editor, f);
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+				startAutosave(f, false);
+			}
+		};
+		
+		worker.addPropertyChangeListener(new PropertyChangeListener() {
+			@Override
+			public void propertyChange(PropertyChangeEvent e) {
+				if("progress".equals(e.getPropertyName())) {
+					monitor.setProgress((Integer) e.getNewValue());
+				}
+			}
+		});
+		
+		// The monitor has no listener of the cancel
+		Timer cancel = new Timer(100, null);
+		cancel.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent e) {
+				if(worker.isDone()) {
+					cancel.stop();
+				} else if(monitor.isCanceled()) {
+					cancel.stop();
+					worker.cancel(true);
+				}
+			}
+		});
+		
+		// The setup can not change while loading
+		mniLoad.setEnabled(false);
+		mniSaveAs.setEnabled(false);
+		cancel.start();
+		worker.execute();
+	}
+	
+	
+	/**
+	 * Saves a copy of the {@link MacroSetup} in background; the editing can
+	 * continue while saving
+	 * @param f File where to save
+	 */
+	private void save(@NonNull File f) {
+		MacroSetupEditor.RetainedSnapshot retained;
+		try {
+			// The screens never shown are read while saving
+			retained = editor.retainedSnapshot();
+		} catch (IOException e) {
+			JOptionPane.showMessageDialog(this,
+					e.getLocalizedMessage(),
+					"Error while saving the file", 
+					JOptionPane.ERROR_MESSAGE);
+			return;
+		}
+		MacroSetupEditor.Snapshot snapshot = retained.getSnapshot();
+		
+		// The history of the copy is marked now: the edits while saving
+		// follow the mark
+		SetupJournal saved = journal != null &&
+				journal.getSetupFile().equals(f) ? journal : null;
+		ActionJournal.Mark mark = saved == null ? null : saved.mark();
+		
+		saving = new SwingWorker<Void, Void>() {
+			@Override
+			protected Void doInBackground() throws IOException {
+				// Read and released before the save, that can replace the file read
+				MacroSetup s;
+				try {
+					s = retained.read();
+				} finally {
+					retained.close();
+				}
+				MacroSetupFile.save(s, f);
+				
+				// Mark the history as the one of the saved file
+				if(saved != null) {
+					try {
+						saved.checkpoint(mark);
+					} catch (IOException e) {
+						e.printStackTrace();
+					}
+				}
+				return null;
+			}
+			
+			@Override
+			protected void done() {
+				saving = null;
+				mniLoad.setEnabled(true);
+				mniSaveAs.setEnabled(true);
+				
+				try {
+					get();
+				} catch (InterruptedException e) {
+					return;
+				} catch (ExecutionException e) {
+					lblStatus.setText("Not saved " + f.getName());
+					JOptionPane.showMessageDialog(WindowMacroSetupEditor.this,
+							e.getCause().getLocalizedMessage(),
+							"Error while saving the file", 
+							JOptionPane.ERROR_MESSAGE);
+					return;
+				}
+				lblStatus.setText("Saved " + f.getName());
+				
+				// The edits are in the file, except the ones while saving
+				if(autosave != null) {
+					autosave.discard();
+					autosave = null;
+				}
+				startAutosave(f, !editor.isCurrent(snapshot));
+				
+				// The history of another file is no more recorded
+				if(saved == null) {
+					closeJournal();
+					try {
+						// If edited while saving the history would not
+						// start from the file
+						if(editor.isCurrent(snapshot)) {
+							journal = SetupJournal.create(editor, f);
+						}
+					} catch (IOException e) {
+						e.printStackTrace();
+					}
+				}
+			}
+		};
+		
+		// One save at a time, of the setup loaded
+		mniLoad.setEnabled(false);
+		mniSaveAs.setEnabled(false);
+		lblStatus.setText("Saving " + f.getName() + "...");
+		saving.execute();
+	}
+	
+	
+	/**
+	 * Reads the edits not saved of a file, asking to the user to recover them
+	 * @param f File of the setup
+	 * @return Setup with the edits to recover; null if none or if the user
+	 * does not recover them
+	 */
+	private MacroSetup recover(@NonNull File f) {
+		MacroSetup s;
+		try {
+			s = SetupAutosave.recover(f);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return null;
+		}
+		
+		if(s != null && JOptionPane.showConfirmDialog(this,
+				"There are edits not saved of the last session. Recover them?",
+				"Recover " + f.getName(),
+				JOptionPane.YES_NO_OPTION) == JOptionPane.YES_OPTION) {
+			return s;
+		}
+		return null;
+	}
+	
+	
+	/**
+	 * Starts the autosave of the edits
+	 * @param f File of the setup
+	 * @param copy False if the editor contains the setup of {@code f}
+	 * @see SetupAutosave#start(MacroSetupEditor, File, boolean)
+	 */
+	private void startAutosave(@NonNull File f, boolean copy) {
+		closeAutosave();
+		try {
+			autosave = SetupAutosave.start(editor, f, copy);
+		} catch (IOException e) {
+			lblStatus.setText("Edits not autosaved: " + e.getLocalizedMessage());
+			return;
+		}
+		autosave.addErrorListener(new SetupAutosave.ErrorListener() {
+			@Override
+			public void autosaveFailed(@NonNull IOException e) {
+				lblStatus.setText("Edits not autosaved: " +
+						e.getLocalizedMessage());
+			}
+		});
+	}
+	
+	
+	/**
+	 * Stops the autosave, if any; the edits not saved are kept
+	 */
+	private void closeAutosave() {
+		if(autosave != null) {
+			autosave.close();
+			autosave = null;
+		}
+	}
+	
+	
+	/**
+	 * Closes the file loaded, if any: its screens not yet shown can not be
+	 * read anymore
+	 */
+	private void closeOpened() {
+		if(opened != null) {
+			close(opened);
+			opened = null;
+		}
+	}
+	
+	
+	/**
+	 * Closes a setup opened; the errors are ignored
+	 * @param s Setup to close
+	 */
+	private static void close(MacroSetupFile.LazySetup s) {
+		try {
+			s.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	
+	/**
+	 * Close the journal of the history, if any
+	 */
+	private void closeJournal() {
+		if(journal != null) {
+			try {
+				journal.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			journal = null;
+		}
+	}
+	
+	
 	/**
 	 * Show a {@link JFileChooser} for saving or loading a {@link MacroSetup}
 	 * @param mode True: save; False: loading
@@ -558,10 +956,20 @@ public class WindowMacroSetupEditor extends JFrame {
 	 */
 	private String macroSetupFileChooser(boolean mode) {
 		JFileChooser f = new JFileChooser();
-		f.setFileFilter(new FileNameExtensionFilter(
-				"File di macro (." + FileExtensions.MACRO_SETUP + ")",
-				FileExtensions.MACRO_SETUP
-				));
+		if(mode) {
+			f.setFileFilter(new FileNameExtensionFilter(
+					"File di macro (." + FileExtensions.MACRO_SETUP + ")",
+					FileExtensions.MACRO_SETUP
+					));
+		} else {
+			// The files of the old format are still loaded
+			f.setFileFilter(new FileNameExtensionFilter(
+					"File di macro (." + FileExtensions.MACRO_SETUP + ", ." +
+							FileExtensions.MACRO_SETUP_LEGACY + ")",
+					FileExtensions.MACRO_SETUP,
+					FileExtensions.MACRO_SETUP_LEGACY
+					));
+		}
 		
 		f.setAcceptAllFileFilterUsed(false);
 		f.setCurrentDirectory(new File(System.getProperty("user.dir")));
@@ -591,13 +999,37 @@ public class WindowMacroSetupEditor extends JFrame {
 	private void selectMacroScreen(MacroScreen.SwipeType pos) {
 		for(MacroScreen m : editor.getMacroScreens()) {
 			if(m.getSwipeType().equals(pos)) {
-				editor.selectMacroScreen(m);
+				try {
+					editor.selectMacroScreen(m);
+				} catch (IOException e) {
+					JOptionPane.showMessageDialog(this,
+							e.getLocalizedMessage(),
+							"Error while reading the screen",
+							JOptionPane.ERROR_MESSAGE);
+				}
 				return;
 			}
 		}
 	}
 	
 	
+	/**
+	 * Tells the user that the history of a screen is dropped, since an edit
+	 * restored from the journal cannot be read
+	 * @param parent Parent of the dialog
+	 * @param e Error of the read
+	 * @param title Title of the dialog
+	 */
+	static void showHistoryLost(Component parent, @NonNull IOException e,
+			@NonNull String title) {
+		JOptionPane.showMessageDialog(parent,
+				e.getLocalizedMessage() +
+				"\nThe history of the edits of the screen is dropped",
+				title,
+				JOptionPane.ERROR_MESSAGE);
+	}
+	
+	
 	
 	/**
 	 * Manage the menus of the mask
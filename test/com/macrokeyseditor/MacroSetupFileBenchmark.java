@@ -0,0 +1,128 @@
+package com.macrokeyseditor;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import com.macrokeys.KeyShape;
+import com.macrokeys.LimitedKeySequence;
+import com.macrokeys.MacroKey;
+import com.macrokeys.MacroKeyType;
+import com.macrokeys.MacroScreen;
+import com.macrokeys.MacroSetup;
+import com.macrokeys.rendering.RectF;
+
+/**
+ * Compares the time of load and save and the size of the files of
+ * {@link MacroSetupFile} against the Java serialization of {@link MacroSetup}.
+ * Measures also the time to open a file reading only the first screen,
+ * as done to show it.
+ * <p>
+ * Arguments: number of keys of each screen (default 5000) and number of
+ * repetitions (default 10). The setup has a screen for each swipe type.
+ * </p>
+ */
+public final class MacroSetupFileBenchmark {
+
+	private MacroSetupFileBenchmark() { }
+
+
+	public static void main(String[] args) throws Exception {
+		int keys = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+		int runs = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+
+		MacroSetup setup = createSetup(keys, new Random(1));
+		File ser = File.createTempFile("benchmark", ".ser");
+		File bin = File.createTempFile("benchmark", ".mks");
+		try {
+			System.out.println("Screens: " + setup.getMacroScreens().size() +
+					", keys per screen: " + keys + ", runs: " + runs);
+			// The first runs warm up the JIT
+			for(int i = 0; i < 3; i++) {
+				run(setup, ser, bin, 1);
+			}
+			long[] t = run(setup, ser, bin, runs);
+			print("Java serialization", t[0], t[1], ser.length());
+			print("Binary format", t[2], t[3], bin.length());
+			System.out.printf("%-20s first screen %8.2f ms%n", "Lazy open", t[4] / 1e6);
+		} finally {
+			ser.delete();
+			bin.delete();
+		}
+	}
+
+
+	/**
+	 * @return Nanoseconds of each run: save and load of the serialization,
+	 * save and load of the binary format, open reading the first screen
+	 */
+	private static long[] run(MacroSetup setup, File ser, File bin, int runs)
+			throws IOException, ClassNotFoundException {
+		long[] t = new long[5];
+		for(int i = 0; i < runs; i++) {
+			long start = System.nanoTime();
+			setup.save(ser.getPath());
+			t[0] += System.nanoTime() - start;
+
+			start = System.nanoTime();
+			MacroSetup.load(ser.getPath());
+			t[1] += System.nanoTime() - start;
+
+			start = System.nanoTime();
+			MacroSetupFile.save(setup, bin);
+			t[2] += System.nanoTime() - start;
+
+			start = System.nanoTime();
+			MacroSetupFile.load(bin);
+			t[3] += System.nanoTime() - start;
+
+			start = System.nanoTime();
+			MacroSetupFile.LazySetup l = MacroSetupFile.open(bin);
+			l.getMacroScreens().get(0).getKeys().addAll(l.getLoader(0).load());
+			t[4] += System.nanoTime() - start;
+		}
+		for(int i = 0; i < t.length; i++) {
+			t[i] /= runs;
+		}
+		return t;
+	}
+
+
+	private static void print(String name, long save, long load, long size) {
+		System.out.printf("%-20s save %8.2f ms   load %8.2f ms   size %10d bytes%n",
+				name, save / 1e6, load / 1e6, size);
+	}
+
+
+	private static MacroSetup createSetup(int keys, Random r) {
+		List<MacroScreen> screens = new ArrayList<>();
+		for(MacroScreen.SwipeType t : MacroScreen.SwipeType.values()) {
+			MacroScreen m = new MacroScreen();
+			m.setSwipeType(t);
+			m.setBackgroundColor(r.nextInt());
+			for(int i = 0; i < keys; i++) {
+				MacroKey k = new MacroKey();
+				float x = r.nextFloat() * 200;
+				float y = r.nextFloat() * 100;
+				k.setArea(new RectF(x, y, x + 5 + r.nextFloat() * 20,
+						y + 5 + r.nextFloat() * 20));
+				k.setText("K" + i);
+				k.setColorEdge(r.nextInt());
+				k.setColorFill(r.nextInt());
+				k.setColorEdgePress(r.nextInt());
+				k.setColorFillPress(r.nextInt());
+				KeyShape.Type[] shapes = KeyShape.Type.values();
+				k.setShape(new KeyShape(shapes[r.nextInt(shapes.length)]));
+				MacroKeyType[] types = MacroKeyType.values();
+				k.setType(types[r.nextInt(types.length)]);
+				k.setKeySeq(new LimitedKeySequence(
+						new Integer[] { 17, 65 + r.nextInt(26) }));
+				m.getKeys().add(k);
+			}
+			screens.add(m);
+		}
+		return new MacroSetup(screens);
+	}
+}
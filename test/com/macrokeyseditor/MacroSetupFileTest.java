@@ -0,0 +1,254 @@
+package com.macrokeyseditor;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.macrokeys.KeyShape;
+import com.macrokeys.LimitedKeySequence;
+import com.macrokeys.MacroKey;
+import com.macrokeys.MacroKeyType;
+import com.macrokeys.MacroScreen;
+import com.macrokeys.MacroSetup;
+import com.macrokeys.rendering.RectF;
+
+/**
+ * Tests of {@link MacroSetupFile}
+ */
+public class MacroSetupFileTest {
+
+	/** Corruptions tried on a file */
+	private static final int CORRUPTIONS = 2000;
+
+
+	@Test
+	public void roundTrip() throws IOException {
+		MacroSetup s = createSetup(new Random(1));
+		assertSetupEquals(s, MacroSetupFile.read(ByteBuffer.wrap(write(s))));
+	}
+
+
+	@Test
+	public void roundTripEmpty() throws IOException {
+		MacroSetup s = new MacroSetup(new ArrayList<MacroScreen>());
+		assertSetupEquals(s, MacroSetupFile.read(ByteBuffer.wrap(write(s))));
+	}
+
+
+	@Test
+	public void roundTripLazy() throws IOException {
+		MacroSetup s = createSetup(new Random(2));
+		File f = File.createTempFile("test", ".mks");
+		try {
+			MacroSetupFile.save(s, f);
+			MacroSetupFile.LazySetup l = MacroSetupFile.open(f);
+			// Read in another order than the one written
+			for(int i = l.getMacroScreens().size() - 1; i >= 0; i--) {
+				l.load(i);
+				assertNull(l.getLoader(i));
+			}
+			assertSetupEquals(s, new MacroSetup(l.getMacroScreens()));
+			assertSetupEquals(s, MacroSetupFile.load(f));
+		} finally {
+			f.delete();
+		}
+	}
+
+
+	/**
+	 * The directory is read also if bigger than the start of the file read
+	 */
+	@Test
+	public void roundTripLargeDirectory() throws IOException {
+		MacroSetup s = createSetup(new Random(6));
+		char[] text = new char[100 * 1024];
+		Arrays.fill(text, 'a');
+		s.getMacroScreens().get(0).setBackgroundText(new String(text));
+		File f = File.createTempFile("test", ".mks");
+		try {
+			MacroSetupFile.save(s, f);
+			MacroSetupFile.LazySetup l = MacroSetupFile.open(f);
+			for(int i = 0; i < l.getMacroScreens().size(); i++) {
+				l.load(i);
+			}
+			assertSetupEquals(s, new MacroSetup(l.getMacroScreens()));
+		} finally {
+			f.delete();
+		}
+	}
+
+
+	/**
+	 * The keys not read before the close can not be read
+	 */
+	@Test
+	public void closed() throws IOException {
+		File f = File.createTempFile("test", ".mks");
+		try {
+			MacroSetupFile.save(createSetup(new Random(7)), f);
+			MacroSetupFile.LazySetup l = MacroSetupFile.open(f);
+			l.load(0);
+			l.close();
+			try {
+				l.load(1);
+				fail("Keys read after the close");
+			} catch (IOException e) {
+				// Expected
+			}
+		} finally {
+			f.delete();
+		}
+	}
+
+
+	/**
+	 * Each part of a file must be rejected with an {@link IOException}
+	 */
+	@Test
+	public void truncated() throws IOException {
+		byte[] a = write(createSetup(new Random(3)));
+		for(int n = 0; n < a.length; n++) {
+			try {
+				MacroSetupFile.read(ByteBuffer.wrap(Arrays.copyOf(a, n)));
+				fail("Truncated at " + n + " of " + a.length + " bytes read");
+			} catch (IOException e) {
+				// Expected
+			}
+		}
+	}
+
+
+	/**
+	 * A corrupted file must be read or rejected with an {@link IOException},
+	 * not with another exception
+	 */
+	@Test
+	public void corrupted() {
+		byte[] a = write(createSetup(new Random(4)));
+		Random r = new Random(5);
+		for(int i = 0; i < CORRUPTIONS; i++) {
+			byte[] c = a.clone();
+			int n = 1 + r.nextInt(4);
+			for(int j = 0; j < n; j++) {
+				c[r.nextInt(c.length)] = (byte) r.nextInt();
+			}
+			try {
+				MacroSetupFile.read(ByteBuffer.wrap(c));
+			} catch (IOException e) {
+				// Expected
+			}
+		}
+	}
+
+
+
+	private static byte[] write(MacroSetup s) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try {
+			MacroSetupFile.write(s, out);
+		} catch (IOException e) {
+			throw new AssertionError(e);
+		}
+		return out.toByteArray();
+	}
+
+
+	/**
+	 * @return Setup with the values not set and the empty values too
+	 */
+	private static MacroSetup createSetup(Random r) {
+		List<MacroScreen> screens = new ArrayList<>();
+		// A screen without keys and with the properties not set
+		screens.add(new MacroScreen());
+		for(MacroScreen.SwipeType t : MacroScreen.SwipeType.values()) {
+			MacroScreen m = new MacroScreen();
+			m.setSwipeType(t);
+			m.setOrientation(MacroScreen.Orientation.Vertical);
+			m.setBackgroundColor(r.nextInt());
+			m.setBackgroundText("Screen \u00e8 " + t);
+			for(int i = 0; i < 20; i++) {
+				MacroKey k = new MacroKey();
+				float x = r.nextFloat() * 200;
+				float y = r.nextFloat() * 100;
+				k.setArea(new RectF(x, y, x + r.nextFloat() * 20,
+						y + r.nextFloat() * 20));
+				k.setText(i % 5 == 0 ? null : i % 5 == 1 ? "" : "K" + i);
+				k.setColorEdge(r.nextInt());
+				k.setColorFill(r.nextInt());
+				k.setColorEdgePress(r.nextInt());
+				k.setColorFillPress(r.nextInt());
+				KeyShape.Type[] shapes = KeyShape.Type.values();
+				k.setShape(i % 7 == 0 ? null :
+						new KeyShape(shapes[r.nextInt(shapes.length)]));
+				MacroKeyType[] types = MacroKeyType.values();
+				k.setType(i % 6 == 0 ? null : types[r.nextInt(types.length)]);
+				if(i % 4 == 0) {
+					k.setKeySeq(null);
+				} else {
+					Integer[] seq = new Integer[i % LimitedKeySequence.MAX_KEYS];
+					for(int j = 0; j < seq.length; j++) {
+						seq[j] = r.nextInt(256);
+					}
+					k.setKeySeq(new LimitedKeySequence(seq));
+				}
+				m.getKeys().add(k);
+			}
+			screens.add(m);
+		}
+		return new MacroSetup(screens);
+	}
+
+
+	private static void assertSetupEquals(MacroSetup expected, MacroSetup actual) {
+		List<MacroScreen> e = expected.getMacroScreens();
+		List<MacroScreen> a = actual.getMacroScreens();
+		assertEquals(e.size(), a.size());
+		for(int i = 0; i < e.size(); i++) {
+			MacroScreen es = e.get(i);
+			MacroScreen as = a.get(i);
+			assertEquals(es.getSwipeType(), as.getSwipeType());
+			assertEquals(es.getOrientation(), as.getOrientation());
+			assertEquals(es.getBackgroundColor(), as.getBackgroundColor());
+			assertEquals(es.getBackgroundText(), as.getBackgroundText());
+			assertEquals(es.getKeys().size(), as.getKeys().size());
+			for(int j = 0; j < es.getKeys().size(); j++) {
+				assertKeyEquals(es.getKeys().get(j), as.getKeys().get(j));
+			}
+		}
+	}
+
+
+	private static void assertKeyEquals(MacroKey e, MacroKey a) {
+		RectF ea = e.getArea();
+		RectF aa = a.getArea();
+		assertEquals(ea.left, aa.left, 0);
+		assertEquals(ea.top, aa.top, 0);
+		assertEquals(ea.right, aa.right, 0);
+		assertEquals(ea.bottom, aa.bottom, 0);
+		assertEquals(e.getText(), a.getText());
+		assertEquals(e.getColorEdge(), a.getColorEdge());
+		assertEquals(e.getColorFill(), a.getColorFill());
+		assertEquals(e.getColorEdgePress(), a.getColorEdgePress());
+		assertEquals(e.getColorFillPress(), a.getColorFillPress());
+		assertEquals(e.getShape() == null ? null : e.getShape().getType(),
+				a.getShape() == null ? null : a.getShape().getType());
+		assertEquals(e.getType(), a.getType());
+		if(e.getKeySeq() == null) {
+			assertNull(a.getKeySeq());
+		} else {
+			assertArrayEquals(e.getKeySeq().getKeys(), a.getKeySeq().getKeys());
+		}
+	}
+}
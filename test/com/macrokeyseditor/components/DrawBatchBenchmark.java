@@ -0,0 +1,227 @@
+package com.macrokeyseditor.components;
+
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.util.Random;
+
+import com.macrokeys.rendering.PaintStyle;
+import com.macrokeys.rendering.RectF;
+import com.macrokeys.rendering.Renderer;
+import com.macrokeys.rendering.TextAllign;
+
+/**
+ * Compares the drawing of a grid of keys issued directly on a
+ * {@link Graphics2D} against the same drawing grouped by {@link DrawBatch}.
+ * For each it measures the time of a frame and the state changes that
+ * reach the {@link Graphics2D}; the ones that set the state already set
+ * are not counted, as they are skipped also by the painter.
+ * <p>
+ * Arguments: number of fill colors of the keys (default 4), number of
+ * keys (default 1200) and number of frames (default 200). A key has the
+ * drawings of the editor: fill, edge and text.
+ * </p>
+ */
+public final class DrawBatchBenchmark {
+
+	private static final int WIDTH = 1000;
+	private static final int HEIGHT = 800;
+	/** Side of a key with its margin, in pixels */
+	private static final int KEY = 24;
+
+	private DrawBatchBenchmark() { }
+
+
+	public static void main(String[] args) {
+		int colors = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+		int keys = args.length > 1 ? Integer.parseInt(args[1]) : 1200;
+		int frames = args.length > 2 ? Integer.parseInt(args[2]) : 200;
+
+		int[] palette = new int[colors];
+		Random r = new Random(1);
+		for(int i = 0; i < colors; i++) {
+			palette[i] = 0xFF000000 | r.nextInt(0x1000000);
+		}
+		BufferedImage image = new BufferedImage(WIDTH, HEIGHT,
+				BufferedImage.TYPE_INT_RGB);
+		Graphics2D g = image.createGraphics();
+		try {
+			GraphicsRenderer gr = new GraphicsRenderer(g);
+			DrawBatch batch = new DrawBatch();
+			System.out.println("Colors: " + colors + ", keys: " + keys +
+					", frames: " + frames);
+			// The first runs warm up the JIT
+			for(int i = 0; i < 3; i++) {
+				run(gr, null, palette, keys, frames);
+				run(gr, batch, palette, keys, frames);
+			}
+			gr.changes = 0;
+			long t = run(gr, null, palette, keys, frames);
+			print("Direct", t, gr.changes / frames);
+			gr.changes = 0;
+			t = run(gr, batch, palette, keys, frames);
+			print("DrawBatch", t, gr.changes / frames);
+		} finally {
+			g.dispose();
+		}
+	}
+
+
+	/**
+	 * @param batch Batch where to draw the keys; null to draw them directly
+	 * @return Nanoseconds of a frame
+	 */
+	private static long run(GraphicsRenderer gr, DrawBatch batch,
+			int[] palette, int keys, int frames) {
+		Rectangle bounds = new Rectangle();
+		RectF area = new RectF();
+		int columns = WIDTH / KEY;
+		long start = System.nanoTime();
+		for(int f = 0; f < frames; f++) {
+			Random r = new Random(1);
+			if(batch != null) {
+				batch.begin(WIDTH, HEIGHT);
+			}
+			for(int i = 0; i < keys; i++) {
+				int x = (i % columns) * KEY;
+				int y = (i / columns) % (HEIGHT / KEY) * KEY;
+				area.left = x + 2;
+				area.top = y + 2;
+				area.right = x + KEY - 2;
+				area.bottom = y + KEY - 2;
+				Renderer target = gr;
+				if(batch != null) {
+					bounds.setBounds(x, y, KEY, KEY);
+					batch.beginKey(bounds);
+					target = batch;
+				}
+				drawKey(target, area, palette[r.nextInt(palette.length)]);
+			}
+			if(batch != null) {
+				batch.flush(gr);
+			}
+		}
+		return (System.nanoTime() - start) / frames;
+	}
+
+
+	/** Draws a key as the editor does */
+	private static void drawKey(Renderer r, RectF area, int fill) {
+		r.setAntiAlias(true);
+		r.setColor(fill);
+		r.setPaintStyle(PaintStyle.Fill);
+		r.rect(area);
+		r.setColor(0xFF000000);
+		r.setPaintStyle(PaintStyle.Stroke);
+		r.rect(area);
+		r.setTextSize(12);
+		r.setTextAllign(TextAllign.Center);
+		r.setColor(0xFF202020);
+		r.text("K", area);
+	}
+
+
+	private static void print(String name, long frame, int changes) {
+		System.out.printf("%-10s frame %8.3f ms   state changes %6d%n",
+				name, frame / 1e6, changes);
+	}
+
+
+
+	/**
+	 * {@link Renderer} on a {@link Graphics2D} that sets only the state
+	 * that changes, and counts the changes
+	 */
+	private static final class GraphicsRenderer implements Renderer {
+
+		private final Graphics2D g;
+		private final Font base = new Font(Font.DIALOG, Font.PLAIN, 12);
+
+		private PaintStyle style = PaintStyle.Fill;
+		private float textSize = Float.NaN;
+		private int color;
+		private boolean hasColor = false;
+		private Boolean antiAlias;
+
+		int changes = 0;
+
+
+		GraphicsRenderer(Graphics2D g) {
+			this.g = g;
+		}
+
+
+		@Override
+		public void setTextSize(float textSize) {
+			if(Float.compare(textSize, this.textSize) != 0) {
+				this.textSize = textSize;
+				g.setFont(base.deriveFont(textSize));
+				changes++;
+			}
+		}
+
+
+		@Override
+		public void setTextAllign(TextAllign t) { }
+
+
+		@Override
+		public void setPaintStyle(PaintStyle p) {
+			if(p != style) {
+				style = p;
+				changes++;
+			}
+		}
+
+
+		@Override
+		public void setColor(int argb) {
+			if(!hasColor || argb != color) {
+				color = argb;
+				hasColor = true;
+				g.setColor(new Color(argb, true));
+				changes++;
+			}
+		}
+
+
+		@Override
+		public void setAntiAlias(boolean aa) {
+			if(antiAlias == null || antiAlias != aa) {
+				antiAlias = aa;
+				g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, aa ?
+						RenderingHints.VALUE_ANTIALIAS_ON :
+						RenderingHints.VALUE_ANTIALIAS_OFF);
+				changes++;
+			}
+		}
+
+
+		@Override
+		public void rect(RectF a) {
+			int x = (int) a.left, y = (int) a.top;
+			int w = (int) a.width(), h = (int) a.height();
+			if(style == PaintStyle.Stroke) {
+				g.drawRect(x, y, w, h);
+			} else {
+				g.fillRect(x, y, w, h);
+			}
+		}
+
+
+		@Override
+		public void ellipse(RectF a) {
+			g.fillOval((int) a.left, (int) a.top, (int) a.width(),
+					(int) a.height());
+		}
+
+
+		@Override
+		public void text(String s, RectF r) {
+			g.drawString(s, r.left, r.bottom);
+		}
+	}
+}
@@ -0,0 +1,110 @@
+package com.macrokeyseditor.components;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+
+import java.awt.Font;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.lang.management.ManagementFactory;
+
+import org.junit.Test;
+
+import com.macrokeys.MacroKey;
+import com.macrokeys.MacroScreen;
+import com.macrokeys.rendering.RectF;
+import com.macrokeys.screen.Screen;
+import com.macrokeyseditor.MacroScreenEditor;
+import com.macrokeyseditor.MasksManager;
+
+/**
+ * Tests of {@link MKRenderingComponent}
+ */
+public class MKRenderingComponentTest {
+	
+	/**
+	 * Frames rendered before the measure, to fill the caches and to let
+	 * the compiler remove the temporary objects of the drawing of images
+	 */
+	private static final int WARM_UP_FRAMES = 20000;
+	
+	/** Frames of a measure */
+	private static final int FRAMES = 100;
+	
+	/** Measures after the warm up, each must not allocate */
+	private static final int MEASURES = 10;
+	
+	/** Fixed screen, not to need a display */
+	private static final Screen SCREEN = new Screen() {
+		@Override
+		public float getXDpi() {
+			return 96;
+		}
+		
+		@Override
+		public float getYDpi() {
+			return 96;
+		}
+	};
+	
+	
+	/**
+	 * A frame of a screen not edited draws the cached images: the
+	 * rendering must not allocate, with the whole component or a part
+	 * of it to draw
+	 */
+	@Test
+	public void steadyPaintDoesNotAllocate() throws Exception {
+		java.lang.management.ThreadMXBean b = ManagementFactory.getThreadMXBean();
+		assumeTrue(b instanceof com.sun.management.ThreadMXBean);
+		com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) b;
+		assumeTrue(bean.isThreadAllocatedMemorySupported());
+		bean.setThreadAllocatedMemoryEnabled(true);
+		
+		MacroScreen s = new MacroScreen();
+		for(int i = 0; i < 200; i++) {
+			MacroKey k = new MacroKey();
+			float x = i % 20 * 12, y = i / 20 * 12;
+			k.setArea(new RectF(x, y, x + 10, y + 10));
+			k.setText("K" + i);
+			s.getKeys().add(k);
+		}
+		MacroScreenEditor e = new MacroScreenEditor(s);
+		e.select(s.getKeys().subList(0, 10), true);
+		
+		MKRenderingComponent c = new MKRenderingComponent(e, new MasksManager(), SCREEN);
+		// Without a parent the component has no font, needed by the texts
+		c.setFont(new Font(Font.DIALOG, Font.PLAIN, 12));
+		c.setSize(800, 600);
+		BufferedImage img = new BufferedImage(800, 600, BufferedImage.TYPE_INT_RGB);
+		Graphics2D g = img.createGraphics();
+		// Only some of the cells are drawn: the others are culled
+		Graphics2D part = img.createGraphics();
+		part.setClip(130, 70, 210, 160);
+		try {
+			for(int i = 0; i < WARM_UP_FRAMES; i++) {
+				c.paintComponent(g);
+				c.paintComponent(part);
+			}
+			
+			long id = Thread.currentThread().getId();
+			// Allocated by the measure itself
+			long start = bean.getThreadAllocatedBytes(id);
+			long overhead = bean.getThreadAllocatedBytes(id) - start;
+			
+			for(int m = 0; m < MEASURES; m++) {
+				start = bean.getThreadAllocatedBytes(id);
+				for(int i = 0; i < FRAMES; i++) {
+					c.paintComponent(g);
+					c.paintComponent(part);
+				}
+				long allocated = bean.getThreadAllocatedBytes(id) - start - overhead;
+				assertEquals("Bytes allocated in " + FRAMES + " frames of measure " + m,
+						0, allocated);
+			}
+		} finally {
+			g.dispose();
+			part.dispose();
+		}
+	}
+}